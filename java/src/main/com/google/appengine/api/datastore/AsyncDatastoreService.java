@@ -17,6 +17,9 @@ import java.util.concurrent.Future;
  * to determine that a put/get/delete that has been implicitly enrolled in a
  * transaction is complete and therefore ready to be committed.  See
  * {@link ImplicitTransactionManagementPolicy} for more information.
+ * <p>
+ * To write a large stream of entities without batching them by hand, see
+ * {@link BulkWriter}.
  *
  */
 public interface AsyncDatastoreService extends BaseDatastoreService {
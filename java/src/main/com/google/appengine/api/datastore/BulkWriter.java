@@ -0,0 +1,256 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.datastore;
+
+import com.google.appengine.api.datastore.AsyncDatastoreServiceImpl.EntityGroupGrouper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a stream of entities through an {@link AsyncDatastoreService}
+ * without requiring the caller to batch them.
+ * <p>
+ * Entities passed to {@link #put(Entity)} are buffered by entity group.  A
+ * batch is sent as a single non-transactional put once it holds
+ * {@code maxEntitiesPerRpc} entities, or when an entity from a new entity
+ * group would take it past {@code maxEntityGroupsPerRpc} groups.  Entities
+ * of the same group that arrive close together are therefore written by the
+ * same RPC.
+ * <p>
+ * At most {@code maxRpcsInFlight} batches are outstanding at any time.  When
+ * that many are in flight, {@link #put(Entity)} blocks until the oldest one
+ * completes, which bounds the memory held by the writer however fast
+ * entities are produced.
+ * <p>
+ * The outcome of every batch is reported to the {@link Callback}, in the
+ * order the batches were sent, on the thread that calls {@link #put(Entity)}
+ * or {@link #flush()}.  A failed batch does not stop later ones.  If the
+ * calling thread is interrupted while waiting for a batch, the batch and
+ * any buffered entities are kept, so a later call to {@link #flush()} still
+ * writes and reports them.
+ * <p>
+ * Notes on usage:<br>
+ *
+ * <blockquote>
+ * <pre>
+ * BulkWriter writer = new BulkWriter(datastore, callback).maxRpcsInFlight(8);
+ * for (Entity entity : source) {
+ *   writer.put(entity);
+ * }
+ * writer.flush();
+ * </pre>
+ * </blockquote>
+ * <p>
+ * This class is not thread-safe.
+ *
+ */
+public final class BulkWriter {
+
+  /**
+   * Receives the outcome of each batch written by a {@link BulkWriter}.
+   */
+  public interface Callback {
+    /**
+     * Called when a batch has been written.
+     *
+     * @param entities the entities in the batch
+     * @param keys the keys of {@code entities}, in the same order
+     */
+    void onSuccess(List<Entity> entities, List<Key> keys);
+
+    /**
+     * Called when a batch could not be written.  Some of its entities may
+     * nevertheless have been written.
+     *
+     * @param entities the entities in the batch
+     * @param cause the reason the put failed
+     */
+    void onFailure(List<Entity> entities, Throwable cause);
+  }
+
+  static final int DEFAULT_MAX_RPCS_IN_FLIGHT = 4;
+
+  /**
+   * A batch that has been sent.
+   */
+  private static final class Batch {
+    final List<Entity> entities;
+    final Future<List<Key>> future;
+
+    Batch(List<Entity> entities, Future<List<Key>> future) {
+      this.entities = entities;
+      this.future = future;
+    }
+  }
+
+  private final AsyncDatastoreService datastore;
+  private final Callback callback;
+
+  private int maxEntitiesPerRpc = DatastoreServiceConfig.DEFAULT_MAX_BATCH_WRITE_ENTITIES;
+  private Integer maxEntityGroupsPerRpc;
+  private int maxRpcsInFlight = DEFAULT_MAX_RPCS_IN_FLIGHT;
+
+  private final Map<Key, List<Entity>> pendingByEntityGroup =
+      new LinkedHashMap<Key, List<Entity>>();
+  private int numPending = 0;
+  private final LinkedList<Batch> inFlight = new LinkedList<Batch>();
+
+  /**
+   * @param datastore The service through which to write.
+   * @param callback The callback to notify of the outcome of each batch.
+   */
+  public BulkWriter(AsyncDatastoreService datastore, Callback callback) {
+    if (datastore == null) {
+      throw new NullPointerException("datastore must not be null");
+    }
+    if (callback == null) {
+      throw new NullPointerException("callback must not be null");
+    }
+    this.datastore = datastore;
+    this.callback = callback;
+  }
+
+  /**
+   * Sets the maximum number of entities sent in a single RPC.
+   * @param maxEntitiesPerRpc the limit to set
+   * @throws IllegalArgumentException if maxEntitiesPerRpc is not greater
+   * than zero
+   * @return {@code this} (for chaining)
+   */
+  public BulkWriter maxEntitiesPerRpc(int maxEntitiesPerRpc) {
+    if (maxEntitiesPerRpc <= 0) {
+      throw new IllegalArgumentException("maxEntitiesPerRpc must be > 0, got "
+          + maxEntitiesPerRpc);
+    }
+    this.maxEntitiesPerRpc = maxEntitiesPerRpc;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of entity groups represented in a single RPC.
+   * By default there is no limit.
+   * @param maxEntityGroupsPerRpc the limit to set
+   * @throws IllegalArgumentException if maxEntityGroupsPerRpc is not greater
+   * than zero
+   * @return {@code this} (for chaining)
+   */
+  public BulkWriter maxEntityGroupsPerRpc(int maxEntityGroupsPerRpc) {
+    if (maxEntityGroupsPerRpc <= 0) {
+      throw new IllegalArgumentException("maxEntityGroupsPerRpc must be > 0, got "
+          + maxEntityGroupsPerRpc);
+    }
+    this.maxEntityGroupsPerRpc = maxEntityGroupsPerRpc;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of batches outstanding at once.
+   * @param maxRpcsInFlight the limit to set
+   * @throws IllegalArgumentException if maxRpcsInFlight is not greater than
+   * zero
+   * @return {@code this} (for chaining)
+   */
+  public BulkWriter maxRpcsInFlight(int maxRpcsInFlight) {
+    if (maxRpcsInFlight <= 0) {
+      throw new IllegalArgumentException("maxRpcsInFlight must be > 0, got " + maxRpcsInFlight);
+    }
+    this.maxRpcsInFlight = maxRpcsInFlight;
+    return this;
+  }
+
+  /**
+   * Adds {@code entity} to the stream.  It is written by a later RPC, and
+   * its key is only updated once that RPC completes.
+   *
+   * @param entity the entity to write
+   * @throws DatastoreFailureException if the thread is interrupted while
+   * waiting for an outstanding batch
+   */
+  public void put(Entity entity) {
+    Key entityGroupKey = EntityGroupGrouper.getEntityGroupKey(entity.getKey());
+    List<Entity> entitiesInGroup = pendingByEntityGroup.get(entityGroupKey);
+    if (entitiesInGroup == null) {
+      if (maxEntityGroupsPerRpc != null
+          && pendingByEntityGroup.size() >= maxEntityGroupsPerRpc) {
+        sendPending();
+      }
+      entitiesInGroup = new ArrayList<Entity>();
+      pendingByEntityGroup.put(entityGroupKey, entitiesInGroup);
+    }
+    entitiesInGroup.add(entity);
+    numPending++;
+    if (numPending >= maxEntitiesPerRpc) {
+      sendPending();
+    }
+  }
+
+  /**
+   * Sends any buffered entities and waits for every outstanding batch to
+   * complete, reporting each to the {@link Callback}.
+   *
+   * @throws DatastoreFailureException if the thread is interrupted while
+   * waiting for an outstanding batch
+   */
+  public void flush() {
+    sendPending();
+    while (!inFlight.isEmpty()) {
+      completeOldest();
+    }
+  }
+
+  private void sendPending() {
+    if (numPending == 0) {
+      return;
+    }
+    while (!inFlight.isEmpty() && inFlight.getFirst().future.isDone()) {
+      completeOldest();
+    }
+    while (inFlight.size() >= maxRpcsInFlight) {
+      completeOldest();
+    }
+
+    List<Entity> batch = new ArrayList<Entity>(numPending);
+    for (List<Entity> entitiesInGroup : pendingByEntityGroup.values()) {
+      batch.addAll(entitiesInGroup);
+    }
+    pendingByEntityGroup.clear();
+    numPending = 0;
+
+    Future<List<Key>> future;
+    try {
+      future = datastore.put(null, batch);
+    } catch (RuntimeException e) {
+      callback.onFailure(batch, e);
+      return;
+    }
+    inFlight.add(new Batch(batch, future));
+  }
+
+  /**
+   * Waits for the oldest outstanding batch and reports its outcome.  The
+   * batch is only removed from {@link #inFlight} once it has completed, so
+   * it is still reported if the wait is interrupted.
+   */
+  private void completeOldest() {
+    Batch batch = inFlight.getFirst();
+    List<Key> keys;
+    try {
+      keys = batch.future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatastoreFailureException("Interrupted while waiting for a batch", e);
+    } catch (ExecutionException e) {
+      inFlight.removeFirst();
+      callback.onFailure(batch.entities, e.getCause());
+      return;
+    }
+    inFlight.removeFirst();
+    callback.onSuccess(batch.entities, keys);
+  }
+}
@@ -19,7 +19,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +34,7 @@ import java.util.Map;
 public final class DataTypeTranslator  {
 
   private static final StringType STRING_TYPE = new StringType();
+  private static final Int64Type INT_64_TYPE = new Int64Type();
 
   /**
    * The list of supported types.
@@ -46,12 +49,13 @@ public final class DataTypeTranslator  {
   private static final Map<Class<?>, Type<?>> typeMap = new HashMap<Class<?>, Type<?>>();
   static {
     typeMap.put(String.class, STRING_TYPE);
-    typeMap.put(Byte.class, new Int64Type());
-    typeMap.put(Short.class, new Int64Type());
-    typeMap.put(Integer.class, new Int64Type());
-    typeMap.put(Long.class, new Int64Type());
-    typeMap.put(Float.class, new DoubleType());
-    typeMap.put(Double.class, new DoubleType());
+    typeMap.put(Byte.class, INT_64_TYPE);
+    typeMap.put(Short.class, INT_64_TYPE);
+    typeMap.put(Integer.class, INT_64_TYPE);
+    typeMap.put(Long.class, INT_64_TYPE);
+    DoubleType doubleType = new DoubleType();
+    typeMap.put(Float.class, doubleType);
+    typeMap.put(Double.class, doubleType);
     typeMap.put(Boolean.class, new BoolType());
     typeMap.put(User.class, new UserType());
     typeMap.put(Key.class, new ReferenceType());
@@ -75,6 +79,38 @@ public final class DataTypeTranslator  {
         DataTypeUtils.getSupportedTypes();
   }
 
+  /**
+   * The distinct {@link Type Types} that have no meaning, and those that
+   * share each meaning.  Reading a {@link Property} only has to try the
+   * types with its meaning, usually just one, instead of every type.
+   */
+  private static final Type<?>[] typesWithoutMeaning;
+  private static final Map<Property.Meaning, Type<?>[]> typesByMeaning =
+      new EnumMap<Property.Meaning, Type<?>[]>(Property.Meaning.class);
+  static {
+    List<Type<?>> withoutMeaning = new ArrayList<Type<?>>();
+    Map<Property.Meaning, List<Type<?>>> byMeaning =
+        new EnumMap<Property.Meaning, List<Type<?>>>(Property.Meaning.class);
+    for (Type<?> type : new LinkedHashSet<Type<?>>(typeMap.values())) {
+      Property.Meaning meaning = type.getMeaning();
+      if (meaning == null) {
+        withoutMeaning.add(type);
+      } else {
+        List<Type<?>> types = byMeaning.get(meaning);
+        if (types == null) {
+          types = new ArrayList<Type<?>>();
+          byMeaning.put(meaning, types);
+        }
+        types.add(type);
+      }
+    }
+    typesWithoutMeaning = withoutMeaning.toArray(new Type<?>[withoutMeaning.size()]);
+    for (Map.Entry<Property.Meaning, List<Type<?>>> entry : byMeaning.entrySet()) {
+      List<Type<?>> types = entry.getValue();
+      typesByMeaning.put(entry.getKey(), types.toArray(new Type<?>[types.size()]));
+    }
+  }
+
   /**
    * A map with the {@link Comparable} classes returned by all the instances of
    * {@link AsComparableFunction} as keys and the pb code point as the value.
@@ -141,9 +177,8 @@ public final class DataTypeTranslator  {
    */
   private static void addProperty(EntityProto entity, String name, Object value,
                                   boolean indexed, boolean multiple) {
-    Pair<Type<?>, Property> pair = createProperty(name, value, multiple);
-    Type<?> type = pair.first();
-    Property property = pair.second();
+    Type<?> type = (value == null) ? null : getType(value.getClass());
+    Property property = createProperty(name, type, value, multiple);
 
     if (!indexed || (type != null && type.getComparableFunction() == null)) {
       entity.addRawProperty(property);
@@ -157,40 +192,35 @@ public final class DataTypeTranslator  {
    * and {@code multiplicity}.
    *
    * @param name The name used as a key
+   * @param type The {@link Type} of {@code value}, or {@code null} iff
+   * {@code value} is null
    * @param value The value for the Property
    * @param multiple true iff there are also other Properties with the same name
    *
-   * @return a not {@code null} Pair<Type, Property>. The {@code Type} will be null
-   * iff {@code value} is null. {@code Property} will not be null.
+   * @return a not {@code null} {@code Property}.
    */
-  private static Pair<Type<?>, Property> createProperty(String name, Object value,
+  private static Property createProperty(String name, Type<?> type, Object value,
       boolean multiple) {
     Property property = new Property();
     property.setName(name);
     property.setMultiple(multiple);
 
     if (value == null) {
-      return Pair.of(null, property);
+      return property;
     }
 
-    Pair<Type<?>, PropertyValue> newValue = createPropertyValue(value);
-    Type<?> type = newValue.first;
     Property.Meaning meaning = type.getMeaning();
     if (meaning != null) {
       property.setMeaning(meaning);
     }
-    property.setValue(newValue.second);
-    return new Pair<Type<?>, Property>(type, property);
+    property.setValue(createPropertyValue(type, value));
+    return property;
   }
 
-  private static Pair<Type<?>, PropertyValue> createPropertyValue(Object value) {
-    if (value == null) {
-      return Pair.of(null, null);
-    }
+  private static PropertyValue createPropertyValue(Type<?> type, Object value) {
     PropertyValue newValue = new PropertyValue();
-    Type<?> type = getType(value.getClass());
     type.setPropertyValue(newValue, value);
-    return new Pair<Type<?>, PropertyValue>(type, newValue);
+    return newValue;
   }
 
   /**
@@ -222,6 +252,25 @@ public final class DataTypeTranslator  {
     extractUnindexedPropertiesFromPb(proto, map);
   }
 
+  /**
+   * Copy the properties present on {@code proto} whose names are in
+   * {@code propertyNames} into {@code map}.  The values of all other
+   * properties are never converted.
+   */
+  public static void extractPropertiesFromPb(EntityProto proto,
+      Collection<String> propertyNames, Map<String, Object> map) {
+    for (Property property : proto.propertys()) {
+      if (propertyNames.contains(property.getName())) {
+        addPropertyValueToMap(property, map, true);
+      }
+    }
+    for (Property property : proto.rawPropertys()) {
+      if (propertyNames.contains(property.getName())) {
+        addPropertyValueToMap(property, map, false);
+      }
+    }
+  }
+
   /**
    * Copy all of the implicit properties present on {@code proto}
    * into {@code map}.
@@ -286,7 +335,7 @@ public final class DataTypeTranslator  {
     return null;
   }
 
-  private static void addPropertyValueToMap(
+  static void addPropertyValueToMap(
       Property property, Map<String, Object> map, boolean indexed) {
     String name = property.getName();
     Object value = getPropertyValue(property);
@@ -312,12 +361,8 @@ public final class DataTypeTranslator  {
    */
   public static Object getPropertyValue(Property property) {
     PropertyValue value = property.getValue();
-    for (Type<?> type : typeMap.values()) {
-      if (type.hasPropertyValue(value) && type.getMeaning() == property.getMeaningEnum()) {
-        return type.getPropertyValue(value);
-      }
-    }
-    return null;
+    Type<?> type = findType(property, value);
+    return (type == null) ? null : type.getPropertyValue(value);
   }
 
   /**
@@ -328,12 +373,28 @@ public final class DataTypeTranslator  {
    */
   public static Comparable<Object> getComparablePropertyValue(Property property) {
     PropertyValue value = property.getValue();
-    for (Type<?> type : typeMap.values()) {
-      if (type.hasPropertyValue(value) &&
-          type.getMeaning() == property.getMeaningEnum() &&
-          type.getComparableFunction() != null) {
-        return toComparableObject(
-            type.getComparableFunction().asComparable(value));
+    Type<?> type = findType(property, value);
+    if (type != null && type.getComparableFunction() != null) {
+      return toComparableObject(type.getComparableFunction().asComparable(value));
+    }
+    return null;
+  }
+
+  /**
+   * Returns the {@link Type} that stored {@code value}, or {@code null} if
+   * no value was set.
+   *
+   * @param property a not {@code null} property
+   * @param value the value of {@code property}
+   */
+  private static Type<?> findType(Property property, PropertyValue value) {
+    Property.Meaning meaning = property.getMeaningEnum();
+    Type<?>[] candidates = (meaning == null) ? typesWithoutMeaning : typesByMeaning.get(meaning);
+    if (candidates != null) {
+      for (Type<?> type : candidates) {
+        if (type.hasPropertyValue(value)) {
+          return type;
+        }
       }
     }
     return null;
@@ -348,12 +409,12 @@ public final class DataTypeTranslator  {
    * @throws UnsupportedOperationException if value is not supported
    */
   static Comparable<Object> getComparablePropertyValue(Object value) {
-    Pair<Type<?>, PropertyValue> newValue = createPropertyValue(value);
-    if (newValue.first != null) {
-        return toComparableObject(
-            newValue.first.getComparableFunction().asComparable(newValue.second));
+    if (value == null) {
+      return null;
     }
-    return null;
+    Type<?> type = getType(value.getClass());
+    return toComparableObject(
+        type.getComparableFunction().asComparable(createPropertyValue(type, value)));
   }
 
   /**
@@ -378,7 +439,8 @@ public final class DataTypeTranslator  {
    * and {@code value}.
    */
   static Property toProperty(String propertyName, Object value) {
-    return createProperty(propertyName, value, false).second();
+    Type<?> type = (value == null) ? null : getType(value.getClass());
+    return createProperty(propertyName, type, value, false);
   }
 
   /**
@@ -389,11 +451,17 @@ public final class DataTypeTranslator  {
    */
   @SuppressWarnings("unchecked")
   private static <T> Type<T> getType(Class<T> clazz) {
-    if (typeMap.containsKey(clazz)) {
-      return (Type<T>) typeMap.get(clazz);
-    } else {
+    if (clazz == String.class) {
+      return (Type<T>) STRING_TYPE;
+    }
+    if (clazz == Long.class) {
+      return (Type<T>) INT_64_TYPE;
+    }
+    Type<T> type = (Type<T>) typeMap.get(clazz);
+    if (type == null) {
       throw new UnsupportedOperationException("Unsupported data type: " + clazz.getName());
     }
+    return type;
   }
 
   /**
@@ -1101,30 +1169,6 @@ public final class DataTypeTranslator  {
     }
   }
 
-  private static class Pair<T, U> {
-
-    private final T first;
-
-    private final U second;
-
-    Pair(T t, U u) {
-      first = t;
-      second = u;
-    }
-
-    T first() {
-      return first;
-    }
-
-    U second() {
-      return second;
-    }
-
-    public static <T, U> Pair<T, U> of(T t, U u) {
-      return new Pair<T, U>(t, u);
-    }
-  }
-
   static Map<Class<?>, Type<?>> getTypeMap() {
     return typeMap;
   }
@@ -62,6 +62,39 @@ public final class DatastoreServiceConfig {
         Integer.parseInt(defaultMaxEntityGroupsPerRpc);
   }
 
+  /**
+   * How a query that is split into several sub-queries (for example because
+   * of an {@code IN} or {@code !=} filter) suppresses entities returned by
+   * more than one of them.
+   */
+  public enum MultiQueryDeduplication {
+
+    /**
+     * Remembers the key of every entity returned.  Exact, but memory grows
+     * with the number of results.
+     */
+    EXACT,
+
+    /**
+     * Remembers a 64 bit fingerprint of the key of every entity returned,
+     * using a fraction of the memory of {@link #EXACT}.  Two distinct keys
+     * with the same fingerprint cause one entity to be dropped, which is
+     * very unlikely but possible.
+     */
+    COMPACT,
+
+    /**
+     * Relies on the sort order of the merged results, in which every copy
+     * of an entity follows the first one, and remembers only the last key
+     * returned, so memory stays constant however many results are read.
+     * Only applies when all results come from a single in-memory merge and
+     * every sort order is on the key or on a property that no filter
+     * constrains; otherwise behaves as {@link #COMPACT}.  An entity that is modified
+     * while the sub-queries run may be returned twice.
+     */
+    ORDERED
+  }
+
   private ImplicitTransactionManagementPolicy implicitTransactionManagementPolicy =
       ImplicitTransactionManagementPolicy.NONE;
 
@@ -73,6 +106,8 @@ public final class DatastoreServiceConfig {
   private int maxBatchWriteEntities = DEFAULT_MAX_BATCH_WRITE_ENTITIES;
   private int maxBatchReadEntities = DEFAULT_MAX_BATCH_GET_KEYS; private Integer maxEntityGroupsPerRpc = DEFAULT_MAX_ENTITY_GROUPS_PER_RPC;
 
+  private MultiQueryDeduplication multiQueryDeduplication = MultiQueryDeduplication.EXACT;
+
   /**
    * Cannot be directly instantiated, use {@link Builder} instead.
    */
@@ -89,6 +124,7 @@ public final class DatastoreServiceConfig {
     maxBatchWriteEntities = config.maxBatchWriteEntities;
     maxBatchReadEntities = config.maxBatchReadEntities;
     maxEntityGroupsPerRpc = config.maxEntityGroupsPerRpc;
+    multiQueryDeduplication = config.multiQueryDeduplication;
   }
 
   /**
@@ -213,6 +249,21 @@ public final class DatastoreServiceConfig {
     return this;
   }
 
+  /**
+   * Sets how queries that are split into several sub-queries suppress
+   * duplicate results.
+   * @param multiQueryDeduplication the deduplication mode to set.
+   * @return {@code this} (for chaining)
+   */
+  public DatastoreServiceConfig multiQueryDeduplication(
+      MultiQueryDeduplication multiQueryDeduplication) {
+    if (multiQueryDeduplication == null) {
+      throw new NullPointerException("multi-query deduplication must not be null");
+    }
+    this.multiQueryDeduplication = multiQueryDeduplication;
+    return this;
+  }
+
   /**
    * @return The {@code ImplicitTransactionManagementPolicy} to use.
    */
@@ -241,6 +292,13 @@ public final class DatastoreServiceConfig {
     return deadline;
   }
 
+  /**
+   * @return The {@code MultiQueryDeduplication} to use.
+   */
+  public MultiQueryDeduplication getMultiQueryDeduplication() {
+    return multiQueryDeduplication;
+  }
+
   boolean exceedsWriteLimits(int count, int size) {
     return (count > maxBatchWriteEntities ||
         (count > 1 && size > maxRpcSizeBytes));
@@ -299,6 +357,17 @@ public final class DatastoreServiceConfig {
     public static DatastoreServiceConfig withMaxEntityGroupsPerRpc(int maxEntityGroupsPerRpc) {
       return withDefaults().maxEntityGroupsPerRpc(maxEntityGroupsPerRpc);
     }
+
+    /**
+     * Create a {@link DatastoreServiceConfig} with the given multi-query
+     * deduplication mode.
+     * @param multiQueryDeduplication the deduplication mode to set.
+     * @return The newly created DatastoreServiceConfig instance.
+     */
+    public static DatastoreServiceConfig withMultiQueryDeduplication(
+        MultiQueryDeduplication multiQueryDeduplication) {
+      return withDefaults().multiQueryDeduplication(multiQueryDeduplication);
+    }
     /**
      * Helper method for creating a {@link DatastoreServiceConfig}
      * instance with default values: Implicit transactions are disabled, reads
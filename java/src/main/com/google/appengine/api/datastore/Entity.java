@@ -4,12 +4,15 @@ package com.google.appengine.api.datastore;
 
 import com.google.storage.onestore.v3.OnestoreEntity;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -43,6 +46,40 @@ public final class Entity implements Cloneable, Serializable {
 
   private transient OnestoreEntity.EntityProto entityProto;
 
+  /**
+   * True while some properties of {@link #entityProto} have not yet been
+   * copied into {@link #propertyMap}.  Properties are then decoded by name
+   * on first access, and all at once by any operation that needs the whole
+   * map.  Decoding is synchronized on this entity, so that an entity that
+   * is only read can be shared between threads; once this is false, reads
+   * need no locking.
+   */
+  private transient volatile boolean hasUndecodedProperties;
+
+  /**
+   * The properties of {@link #entityProto} not yet copied into
+   * {@link #propertyMap}, by name, or {@code null} if they have not been
+   * indexed yet.  Guarded by this entity.
+   */
+  private transient Map<String, UndecodedProperty> undecodedProperties;
+
+  /**
+   * The values of one property in {@link #entityProto}.
+   */
+  private static final class UndecodedProperty {
+    final List<OnestoreEntity.Property> indexed = new ArrayList<OnestoreEntity.Property>(1);
+    final List<OnestoreEntity.Property> unindexed = new ArrayList<OnestoreEntity.Property>(1);
+
+    void decodeTo(Map<String, Object> map) {
+      for (OnestoreEntity.Property property : indexed) {
+        DataTypeTranslator.addPropertyValueToMap(property, map, true);
+      }
+      for (OnestoreEntity.Property property : unindexed) {
+        DataTypeTranslator.addPropertyValueToMap(property, map, false);
+      }
+    }
+  }
+
   static final class UnindexedValue implements Serializable {
     private final Object value;
 
@@ -221,7 +258,7 @@ public final class Entity implements Cloneable, Serializable {
    * @return the property corresponding to {@code propertyName}.
    */
   public Object getProperty(String propertyName) {
-    return unwrapValue(propertyMap.get(propertyName));
+    return unwrapValue(getPropertyMapValue(propertyName));
   }
 
   /**
@@ -230,6 +267,7 @@ public final class Entity implements Cloneable, Serializable {
    * @return an unmodifiable {@code Map} of properties.
    */
   public Map<String, Object> getProperties() {
+    decodeAllProperties();
     Map<String, Object> properties = new HashMap<String, Object>(propertyMap.size());
 
     for (Map.Entry<String, Object> entry : propertyMap.entrySet()) {
@@ -252,6 +290,12 @@ public final class Entity implements Cloneable, Serializable {
    * @return true iff the property named {@code propertyName} exists.
    */
   public boolean hasProperty(String propertyName) {
+    if (hasUndecodedProperties) {
+      synchronized (this) {
+        decodeProperty(propertyName);
+        return propertyMap.containsKey(propertyName);
+      }
+    }
     return propertyMap.containsKey(propertyName);
   }
 
@@ -262,6 +306,7 @@ public final class Entity implements Cloneable, Serializable {
    * @throws NullPointerException If {@code propertyName} is null.
    */
   public void removeProperty(String propertyName) {
+    skipDecoding(propertyName);
     propertyMap.remove(propertyName);
   }
 
@@ -296,6 +341,7 @@ public final class Entity implements Cloneable, Serializable {
    */
   public void setProperty(String propertyName, Object value) {
     DataTypeUtils.checkSupportedValue(propertyName, value);
+    skipDecoding(propertyName);
     propertyMap.put(propertyName, value);
   }
 
@@ -316,6 +362,7 @@ public final class Entity implements Cloneable, Serializable {
    */
   public void setUnindexedProperty(String propertyName, Object value) {
     DataTypeUtils.checkSupportedValue(propertyName, value);
+    skipDecoding(propertyName);
     propertyMap.put(propertyName, new UnindexedValue(value));
   }
 
@@ -325,13 +372,14 @@ public final class Entity implements Cloneable, Serializable {
    * added using {@link #setUnindexedProperty}.
    */
   public boolean isUnindexedProperty(String propertyName) {
-    Object value = propertyMap.get(propertyName);
+    Object value = getPropertyMapValue(propertyName);
     return (value instanceof UnindexedValue) || (value instanceof Text) ||
           (value instanceof Blob);
   }
 
   @Override
   public String toString() {
+    decodeAllProperties();
     StringBuffer buffer = new StringBuffer();
     buffer.append("<Entity [" + key + "]:\n");
     for (Map.Entry<String, Object> entry : propertyMap.entrySet()) {
@@ -391,6 +439,8 @@ public final class Entity implements Cloneable, Serializable {
    * @param src The entity from which we will populate ourself.
    */
   public void setPropertiesFrom(Entity src) {
+    src.decodeAllProperties();
+    decodeAllProperties();
     for (Map.Entry<String, Object> entry : src.propertyMap.entrySet()) {
       String name = entry.getKey();
       Object entryValue = entry.getValue();
@@ -443,6 +493,7 @@ public final class Entity implements Cloneable, Serializable {
   }
 
   Map<String, Object> getPropertyMap() {
+    decodeAllProperties();
     return propertyMap;
   }
 
@@ -450,6 +501,116 @@ public final class Entity implements Cloneable, Serializable {
     this.entityProto = entityProto;
   }
 
+  /**
+   * Defers copying the properties of the {@code EntityProto} passed to
+   * {@link #setEntityProto} until they are accessed.  The proto must not
+   * be modified afterwards.
+   */
+  void decodePropertiesLazily() {
+    hasUndecodedProperties = true;
+  }
+
+  /**
+   * Returns the entry of {@code propertyName} in {@link #propertyMap},
+   * decoding it first if needed.
+   */
+  private Object getPropertyMapValue(String propertyName) {
+    if (hasUndecodedProperties) {
+      synchronized (this) {
+        decodeProperty(propertyName);
+        return propertyMap.get(propertyName);
+      }
+    }
+    return propertyMap.get(propertyName);
+  }
+
+  /**
+   * Copies the property named {@code propertyName} out of
+   * {@link #entityProto} if it has not been yet.  Must be called while
+   * holding the lock on this entity.
+   */
+  private void decodeProperty(String propertyName) {
+    if (hasUndecodedProperties) {
+      UndecodedProperty property = getUndecodedProperties().remove(propertyName);
+      if (property != null) {
+        property.decodeTo(propertyMap);
+      }
+    }
+  }
+
+  /**
+   * Records that {@code propertyName} is about to be overwritten, so its
+   * value in {@link #entityProto} is never decoded.
+   */
+  private void skipDecoding(String propertyName) {
+    if (hasUndecodedProperties) {
+      synchronized (this) {
+        if (hasUndecodedProperties) {
+          getUndecodedProperties().remove(propertyName);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns {@link #undecodedProperties}, indexing the properties of
+   * {@link #entityProto} on first use.  Must be called while holding the
+   * lock on this entity.
+   */
+  private Map<String, UndecodedProperty> getUndecodedProperties() {
+    if (undecodedProperties == null) {
+      undecodedProperties = new HashMap<String, UndecodedProperty>();
+      for (OnestoreEntity.Property property : entityProto.propertys()) {
+        getUndecodedProperty(property.getName()).indexed.add(property);
+      }
+      for (OnestoreEntity.Property property : entityProto.rawPropertys()) {
+        getUndecodedProperty(property.getName()).unindexed.add(property);
+      }
+    }
+    return undecodedProperties;
+  }
+
+  private UndecodedProperty getUndecodedProperty(String propertyName) {
+    UndecodedProperty property = undecodedProperties.get(propertyName);
+    if (property == null) {
+      property = new UndecodedProperty();
+      undecodedProperties.put(propertyName, property);
+    }
+    return property;
+  }
+
+  /**
+   * Copies every property not yet decoded out of {@link #entityProto}.
+   */
+  private void decodeAllProperties() {
+    if (!hasUndecodedProperties) {
+      return;
+    }
+    synchronized (this) {
+      if (!hasUndecodedProperties) {
+        return;
+      }
+      if (undecodedProperties == null) {
+        DataTypeTranslator.extractPropertiesFromPb(entityProto, propertyMap);
+      } else {
+        for (UndecodedProperty property : undecodedProperties.values()) {
+          property.decodeTo(propertyMap);
+        }
+        undecodedProperties = null;
+      }
+      hasUndecodedProperties = false;
+    }
+  }
+
+  /**
+   * Decodes any remaining properties, which are not serialized with the
+   * proto.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    decodeAllProperties();
+    out.defaultWriteObject();
+  }
+
   OnestoreEntity.EntityProto getEntityProto() {
     return entityProto;
   }
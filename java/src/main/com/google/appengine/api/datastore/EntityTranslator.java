@@ -6,6 +6,8 @@ import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
 import com.google.storage.onestore.v3.OnestoreEntity.Reference;
 import com.google.storage.onestore.v3.OnestoreEntity.Path;
 
+import java.util.Collection;
+
 /**
  * {@code EntityTranslator} contains the logic to translate an {@code
  * Entity} into the protocol buffers that are used to pass it to the
@@ -14,12 +16,30 @@ import com.google.storage.onestore.v3.OnestoreEntity.Path;
  */
 public class EntityTranslator {
 
+  /**
+   * Creates an {@code Entity} backed by {@code proto}.  Property values are
+   * converted from the proto as they are accessed, so {@code proto} must not
+   * be modified afterwards.
+   */
   public static Entity createFromPb(EntityProto proto) {
     Key key = KeyTranslator.createFromPb(proto.getKey());
 
     Entity entity = new Entity(key);
     entity.setEntityProto(proto);
-    DataTypeTranslator.extractPropertiesFromPb(proto, entity.getPropertyMap());
+    entity.decodePropertiesLazily();
+    return entity;
+  }
+
+  /**
+   * Creates an {@code Entity} holding only the properties of {@code proto}
+   * named in {@code propertyNames}.
+   */
+  public static Entity createFromPb(EntityProto proto, Collection<String> propertyNames) {
+    Key key = KeyTranslator.createFromPb(proto.getKey());
+
+    Entity entity = new Entity(key);
+    entity.setEntityProto(proto);
+    DataTypeTranslator.extractPropertiesFromPb(proto, propertyNames, entity.getPropertyMap());
     return entity;
   }
 
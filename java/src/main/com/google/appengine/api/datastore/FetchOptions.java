@@ -27,10 +27,15 @@ import java.util.List;
  * and the {@link Iterable} returned by
  * {@link PreparedQuery#asIterable(FetchOptions)}.
  * <p>
+ * {@code prefetchBatches} is the maximum number of chunks requested ahead of
+ * the results being consumed.  The read-ahead starts at one chunk and grows
+ * toward this maximum whenever results are consumed faster than the
+ * datastore returns them.
+ * <p>
  * Note that unlike {@code limit}, {@code offset} and {@code cursor},
- * {@code prefetchSize} and {@code chunkSize} have no impact on the result of
- * the {@link PreparedQuery}, but rather only the performance of the
- * {@link PreparedQuery}.
+ * {@code prefetchSize}, {@code chunkSize} and {@code prefetchBatches} have no
+ * impact on the result of the {@link PreparedQuery}, but rather only the
+ * performance of the {@link PreparedQuery}.
  * <p>
  * Notes on usage:<br>
  * The recommended way to instantiate a {@code FetchOptions} object is to
@@ -63,6 +68,7 @@ public final class FetchOptions {
   private Integer offset;
   private Integer prefetchSize;
   private Integer chunkSize;
+  private Integer prefetchBatches;
   private Cursor startCursor;
   private Cursor endCursor;
   private Boolean compile;
@@ -75,6 +81,7 @@ public final class FetchOptions {
     this.offset = original.offset;
     this.prefetchSize = original.prefetchSize;
     this.chunkSize = original.chunkSize;
+    this.prefetchBatches = original.prefetchBatches;
     this.startCursor = original.startCursor;
     this.endCursor = original.endCursor;
     this.compile = original.compile;
@@ -155,6 +162,21 @@ public final class FetchOptions {
     return this;
   }
 
+  /**
+   * Sets the maximum number of chunks to read ahead.  Please read the class
+   * javadoc for an explanation of how prefetch batches is used.
+   * @param prefetchBatches The number of chunks to set.  Must be greater
+   * than 0.
+   * @return {@code this} (for chaining)
+   */
+  public FetchOptions prefetchBatches(int prefetchBatches) {
+    if (prefetchBatches < 1) {
+      throw new IllegalArgumentException("Prefetch batches must be greater than 0.");
+    }
+    this.prefetchBatches = prefetchBatches;
+    return this;
+  }
+
   /**
    * Sets the cursor to start the query from.
    * @param cursor the cursor to set
@@ -243,6 +265,14 @@ public final class FetchOptions {
     return prefetchSize;
   }
 
+  /**
+   * @return The maximum number of chunks to read ahead, or {@code null} if
+   * none was provided.
+   */
+  public Integer getPrefetchBatches() {
+    return prefetchBatches;
+  }
+
   /**
    * @return The start cursor, or {@code null} if no cursor was provided.
    * @deprecated use {@link #getStartCursor()} instead
@@ -282,6 +312,10 @@ public final class FetchOptions {
       result = result * 31 + chunkSize.hashCode();
     }
 
+    if (prefetchBatches != null) {
+      result = result * 31 + prefetchBatches.hashCode();
+    }
+
     if (limit != null) {
       result = result * 31 + limit.hashCode();
     }
@@ -333,6 +367,14 @@ public final class FetchOptions {
       return false;
     }
 
+    if (prefetchBatches != null) {
+      if (!prefetchBatches.equals(that.prefetchBatches)) {
+        return false;
+      }
+    } else if (that.prefetchBatches != null) {
+      return false;
+    }
+
     if (limit != null) {
       if (!limit.equals(that.limit)) {
         return false;
@@ -388,6 +430,10 @@ public final class FetchOptions {
       result.add("chunkSize=" + chunkSize);
     }
 
+    if (prefetchBatches != null) {
+      result.add("prefetchBatches=" + prefetchBatches);
+    }
+
     if (limit != null) {
       result.add("limit=" + limit);
     }
@@ -463,6 +509,19 @@ public final class FetchOptions {
       return withDefaults().prefetchSize(prefetchSize);
     }
 
+    /**
+     * Create a {@link FetchOptions} with the given number of chunks to read
+     * ahead.  Shorthand for
+     * <code>FetchOptions.withDefaults().prefetchBatches(...);</code>.
+     * Please read the {@link FetchOptions} class javadoc for an explanation of
+     * how prefetch batches is used.
+     * @param prefetchBatches the prefetchBatches to set.
+     * @return The newly created FetchOptions instance.
+     */
+    public static FetchOptions withPrefetchBatches(int prefetchBatches) {
+      return withDefaults().prefetchBatches(prefetchBatches);
+    }
+
     /**
      * Create a {@link FetchOptions} with the given cursor.
      * Shorthand for <code>FetchOptions.withDefaults().cursor(cursor);</code>.
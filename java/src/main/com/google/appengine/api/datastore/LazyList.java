@@ -275,6 +275,9 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
   public void clear() {
     results.clear();
     cleared = true;
+    if (resultIterator != null) {
+      resultIterator.stopReadAhead();
+    }
   }
 
   /**
@@ -6,6 +6,7 @@ import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Query.SortPredicate;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -54,6 +55,7 @@ class MultiQueryBuilder implements Iterable<List<Query>> {
   final List<MultiQueryComponent> components;
   final Set<EntityFilter> entityFilters;
   final boolean hasParallelQueries;
+  final boolean isSingleMerge;
 
   public MultiQueryBuilder(Query query,
                            List<FilterPredicate> remainingFilters,
@@ -67,13 +69,45 @@ class MultiQueryBuilder implements Iterable<List<Query>> {
     this.entityFilters = entityFilters;
 
     boolean hasParallelComponents = false;
+    boolean hasSerialComponents = false;
     for (MultiQueryComponent c : components) {
       if (c.getOrder() == Order.PARALLEL) {
         hasParallelComponents = true;
-        break;
+      } else {
+        hasSerialComponents = true;
       }
     }
     this.hasParallelQueries = hasParallelComponents;
+    this.isSingleMerge = hasParallelComponents && !hasSerialComponents
+        && sortsOnUnfilteredProperties(query.getSortPredicates(), remainingFilters, components);
+  }
+
+  /**
+   * Returns true if every sort is on the key or on a property that no filter
+   * constrains.  The value a sub-query sorts a multi-valued property by
+   * depends on the filters on that property, so otherwise the copies of an
+   * entity returned by different sub-queries may be far apart once merged.
+   */
+  private static boolean sortsOnUnfilteredProperties(List<SortPredicate> sorts,
+      List<FilterPredicate> remainingFilters, List<MultiQueryComponent> components) {
+    Set<String> filteredProperties = new HashSet<String>();
+    for (FilterPredicate filter : remainingFilters) {
+      filteredProperties.add(filter.getPropertyName());
+    }
+    for (MultiQueryComponent component : components) {
+      for (List<FilterPredicate> filters : component.getFilters()) {
+        for (FilterPredicate filter : filters) {
+          filteredProperties.add(filter.getPropertyName());
+        }
+      }
+    }
+    for (SortPredicate sort : sorts) {
+      if (!sort.getPropertyName().equals(Entity.KEY_RESERVED_PROPERTY)
+          && filteredProperties.contains(sort.getPropertyName())) {
+        return false;
+      }
+    }
+    return true;
   }
 
   static Query cloneQueryWithFilters(Query query, List<FilterPredicate> filters) {
@@ -100,6 +134,16 @@ class MultiQueryBuilder implements Iterable<List<Query>> {
     return hasParallelQueries;
   }
 
+  /**
+   * Returns true if all queries are produced as a single list, whose results
+   * are merged in memory, and every sort is on the key or on an unfiltered
+   * property, so that all copies of an entity are adjacent in the merged
+   * results.
+   */
+  public boolean isSingleMerge() {
+    return isSingleMerge;
+  }
+
   public Set<EntityFilter> getEntityFilters() {
     return entityFilters;
   }
@@ -9,7 +9,6 @@ import com.google.apphosting.api.DatastorePb.Query.Order;
 
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -30,6 +29,15 @@ import java.util.Set;
  * {@link PriorityQueue} to merge the results from the sub-query as new results
  * are requested.
  *
+ * The sub-queries in a list are all started before any of them is waited on,
+ * so their first RPCs are in flight concurrently and the list costs roughly
+ * one round trip to start rather than one per sub-query.  Each sub-query then
+ * prefetches its next batch while the merge drains the current one.
+ *
+ * Entities returned by more than one sub-query are suppressed by a
+ * {@link ResultDeduplicator} chosen through
+ * {@link DatastoreServiceConfig#getMultiQueryDeduplication()}.
+ *
  */
 class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
   private final ApiConfig apiConfig;
@@ -94,8 +102,9 @@ class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
   private class FilteredMultiQueryIterator extends AbstractIterator<Entity> {
     private final Iterator<List<Query>> multiQueryIterator;
     private final FetchOptions baseFetchOptions;
-    private final Set<Key> returnedKeys = new HashSet<Key>();
+    private final ResultDeduplicator deduplicator;
     private final Set<EntityFilter> entityFilters;
+    private int numReturned = 0;
 
     private Iterator<Entity> currentIterator = new Iterator<Entity>() {
         @Override
@@ -115,14 +124,9 @@ class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
     public FilteredMultiQueryIterator(FetchOptions fetchOptions) {
       this.multiQueryIterator = queryBuilder.iterator();
       this.baseFetchOptions = fetchOptions;
-      this.entityFilters = new HashSet<EntityFilter>(queryBuilder.getEntityFilters());
-
-      this.entityFilters.add(new EntityFilter() {
-        @Override
-        public boolean apply(Entity entity) {
-          return returnedKeys.add(entity.getKey());
-        }
-      });
+      this.entityFilters = queryBuilder.getEntityFilters();
+      this.deduplicator = ResultDeduplicators.newDeduplicator(
+          datastoreServiceConfig.getMultiQueryDeduplication(), queryBuilder.isSingleMerge());
     }
 
     /**
@@ -130,7 +134,7 @@ class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
      */
     private FetchOptions getFetchOptions() {
       if (baseFetchOptions.getLimit() != null) {
-        int limit = baseFetchOptions.getLimit() - returnedKeys.size();
+        int limit = baseFetchOptions.getLimit() - numReturned;
         if (limit > 0) {
           return new FetchOptions(baseFetchOptions).clearLimit().limit(limit);
         } else {
@@ -186,6 +190,10 @@ class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
           return false;
         }
       }
+      if (!deduplicator.isFirstOccurrence(result)) {
+        return false;
+      }
+      ++numReturned;
       return true;
     }
   }
@@ -210,9 +218,13 @@ class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
 
   Iterator<Entity> makeHeapIterator(List<PreparedQuery> preparedQueries,
                                               FetchOptions fetchOptions) {
-    final PriorityQueue<EntitySource> heap = new PriorityQueue<EntitySource>();
+    List<Iterator<Entity>> iterators = new ArrayList<Iterator<Entity>>(preparedQueries.size());
     for (PreparedQuery pq : preparedQueries) {
-      Iterator<Entity> iter = pq.asIterator(fetchOptions);
+      iterators.add(pq.asIterator(fetchOptions));
+    }
+
+    final PriorityQueue<EntitySource> heap = new PriorityQueue<EntitySource>();
+    for (Iterator<Entity> iter : iterators) {
       if (iter.hasNext()) {
         heap.add(new EntitySource(entityComparator, iter));
       }
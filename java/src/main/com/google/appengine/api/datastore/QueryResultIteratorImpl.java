@@ -162,4 +162,12 @@ class QueryResultIteratorImpl implements QueryResultIterator<Entity> {
     ensureInitialized();
     return resultsSource.getNumSkipped();
   }
+
+  /**
+   * Stops the results source from requesting results ahead of their use,
+   * for callers that are unlikely to read further.
+   */
+  void stopReadAhead() {
+    resultsSource.stopReadAhead();
+  }
 }
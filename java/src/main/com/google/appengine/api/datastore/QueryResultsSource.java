@@ -58,4 +58,12 @@ interface QueryResultsSource {
    * Entities are skipped when an offset has been set on the query.
    */
   int getNumSkipped();
+
+  /**
+   * Stops requesting results ahead of their use.  Any request already in
+   * flight is left to complete, since it may already have advanced the
+   * underlying cursor; after that, each batch is only requested when it is
+   * loaded.
+   */
+  void stopReadAhead();
 }
@@ -17,6 +17,13 @@ import java.util.logging.Logger;
  * make callbacks back into the datastore to retrieve more entities
  * for the specified cursor.
  *
+ * After each batch is consumed the next one is requested asynchronously.
+ * Since each {@code Next} call advances the same server-side cursor, the
+ * calls cannot overlap; read-ahead is deepened instead by asking for
+ * several chunks in one call.  Whenever the consumer finds the read-ahead
+ * still outstanding the number of chunks requested doubles, up to
+ * {@link FetchOptions#getPrefetchBatches()}.
+ *
  */
 class QueryResultsSourceImpl implements QueryResultsSource {
   static Logger logger = Logger.getLogger(QueryResultsSourceImpl.class.getName());
@@ -31,8 +38,14 @@ class QueryResultsSourceImpl implements QueryResultsSource {
   private final int chunkSize;
   private final int offset;
   private final Transaction txn;
+  private final int maxReadAheadBatches;
 
   private Future<QueryResult> nextResult;
+  private boolean nextResultIsReadAhead = false;
+  private NextRequest deferredRequest;
+  private boolean readAheadEnabled = true;
+  private int readAheadBatches = 1;
+  private int lastBatchSize = 0;
   private int skippedResults;
   private int totalResults = 0;
 
@@ -44,13 +57,21 @@ class QueryResultsSourceImpl implements QueryResultsSource {
     this.offset = fetchOptions.getOffset() != null ?
         fetchOptions.getOffset() : 0;
     this.txn = txn;
+    this.maxReadAheadBatches = fetchOptions.getPrefetchBatches() != null ?
+        fetchOptions.getPrefetchBatches() : 1;
     this.nextResult = firstResult;
     this.skippedResults = 0;
   }
 
   @Override
   public boolean hasMoreEntities() {
-    return nextResult != null;
+    return nextResult != null || deferredRequest != null;
+  }
+
+  @Override
+  public void stopReadAhead() {
+    readAheadEnabled = false;
+    readAheadBatches = 1;
   }
 
   @Override
@@ -66,15 +87,24 @@ class QueryResultsSourceImpl implements QueryResultsSource {
   @Override
   public Cursor loadMoreEntities(int numberToLoad, List<Entity> buffer) {
     TransactionImpl.ensureTxnActive(txn);
-    if (nextResult != null) {
+    if (hasMoreEntities()) {
       if (numberToLoad == 0 &&
           offset <= skippedResults) {
         return null;
       }
 
+      if (nextResult == null) {
+        nextResult = DatastoreApiHelper.makeAsyncCall(
+            apiConfig, "Next", deferredRequest, new QueryResult());
+        deferredRequest = null;
+      } else if (nextResultIsReadAhead && !nextResult.isDone()) {
+        readAheadBatches = Math.min(readAheadBatches * 2, maxReadAheadBatches);
+      }
+
       int previousSize = buffer.size();
       QueryResult res = FutureHelper.quietGet(nextResult);
       nextResult = null;
+      nextResultIsReadAhead = false;
       processQueryResult(res, buffer);
 
       if (res.isMoreResults()) {
@@ -113,13 +143,15 @@ class QueryResultsSourceImpl implements QueryResultsSource {
         }
 
         if (res.isMoreResults()) {
-          if (chunkSize != AT_LEAST_ONE) {
-            req.setCount(chunkSize);
+          setReadAheadCount(req);
+          req.clearOffset();
+          if (readAheadEnabled) {
+            nextResult = DatastoreApiHelper.makeAsyncCall(
+                apiConfig, "Next", req, new QueryResult());
+            nextResultIsReadAhead = true;
           } else {
-            req.clearCount();
+            deferredRequest = req;
           }
-          req.clearOffset();
-          nextResult = DatastoreApiHelper.makeAsyncCall(apiConfig, "Next", req, new QueryResult());
         }
       }
       return res.hasCompiledCursor() ? new Cursor(res.getCompiledCursor()) : null;
@@ -127,6 +159,22 @@ class QueryResultsSourceImpl implements QueryResultsSource {
     return null;
   }
 
+  /**
+   * Sets the count of a read-ahead request to {@link #readAheadBatches}
+   * chunks.  Without a chunk size the size of the last batch received
+   * stands in for it.
+   */
+  private void setReadAheadCount(NextRequest req) {
+    int batchSize = chunkSize != AT_LEAST_ONE ? chunkSize : lastBatchSize;
+    if (readAheadBatches > 1 && batchSize > 0) {
+      req.setCount((int) Math.min((long) batchSize * readAheadBatches, Integer.MAX_VALUE));
+    } else if (chunkSize != AT_LEAST_ONE) {
+      req.setCount(chunkSize);
+    } else {
+      req.clearCount();
+    }
+  }
+
   /**
    * Helper function to process the query results.
    *
@@ -142,6 +190,9 @@ class QueryResultsSourceImpl implements QueryResultsSource {
       buffer.add(EntityTranslator.createFromPb(entityProto));
     }
     totalResults += res.resultSize();
+    if (res.resultSize() > 0) {
+      lastBatchSize = res.resultSize();
+    }
     if (chunkSize == AT_LEAST_ONE && totalResults > CHUNK_SIZE_WARNING_RESULT_SET_SIZE_THRESHOLD &&
         System.getProperty(DISABLE_CHUNK_SIZE_WARNING_SYS_PROP) == null) {
       logChunkSizeWarning();
@@ -0,0 +1,18 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.datastore;
+
+/**
+ * An interface for suppressing entities that a multi-query returns more than
+ * once.  Implementations trade memory for exactness; see
+ * {@link ResultDeduplicators}.
+ *
+ */
+interface ResultDeduplicator {
+  /**
+   * Returns true if no entity with the same key as {@code result} has been
+   * passed to this method before.  Results are passed in the order they
+   * are returned to the user.
+   */
+  boolean isFirstOccurrence(Entity result);
+}
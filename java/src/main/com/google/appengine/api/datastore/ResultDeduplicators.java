@@ -0,0 +1,195 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.datastore;
+
+import com.google.appengine.api.datastore.DatastoreServiceConfig.MultiQueryDeduplication;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Implementations of {@link ResultDeduplicator} used by
+ * {@link PreparedMultiQuery} to suppress entities returned by more than one
+ * sub-query.
+ *
+ */
+final class ResultDeduplicators {
+
+  private ResultDeduplicators() {}
+
+  /**
+   * Returns a deduplicator for a multi-query.
+   *
+   * @param mode the requested deduplication mode
+   * @param singleMerge {@code true} if every result of the multi-query comes
+   * from a single in-memory merge, so that all copies of an entity are
+   * adjacent in the result stream
+   */
+  static ResultDeduplicator newDeduplicator(MultiQueryDeduplication mode, boolean singleMerge) {
+    switch (mode) {
+      case ORDERED:
+        if (singleMerge) {
+          return new OrderedDeduplicator();
+        }
+        return new FingerprintDeduplicator();
+      case COMPACT:
+        return new FingerprintDeduplicator();
+      case EXACT:
+        return new ExactDeduplicator();
+      default:
+        throw new IllegalArgumentException("Unknown deduplication mode: " + mode);
+    }
+  }
+
+  /**
+   * Remembers every key returned.
+   */
+  static final class ExactDeduplicator implements ResultDeduplicator {
+    private final Set<Key> returnedKeys = new HashSet<Key>();
+
+    @Override
+    public boolean isFirstOccurrence(Entity result) {
+      return returnedKeys.add(result.getKey());
+    }
+  }
+
+  /**
+   * Remembers a 64 bit fingerprint of every key returned.  Two distinct keys
+   * with the same fingerprint cause the second one to be dropped; with n
+   * results this happens with a probability of roughly n^2 / 2^65.
+   */
+  static final class FingerprintDeduplicator implements ResultDeduplicator {
+    private final LongHashSet fingerprints = new LongHashSet();
+
+    @Override
+    public boolean isFirstOccurrence(Entity result) {
+      return fingerprints.add(fingerprint(result.getKey()));
+    }
+  }
+
+  /**
+   * Remembers only the last key returned.  The merge comparator always
+   * ends with the key, so the merged stream is totally ordered and every
+   * copy of an entity directly follows the first one.
+   */
+  static final class OrderedDeduplicator implements ResultDeduplicator {
+    private Key lastKey;
+
+    @Override
+    public boolean isFirstOccurrence(Entity result) {
+      Key key = result.getKey();
+      if (key.equals(lastKey)) {
+        return false;
+      }
+      lastKey = key;
+      return true;
+    }
+  }
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * Computes a 64 bit FNV-1a hash over every component of {@code key}.
+   */
+  static long fingerprint(Key key) {
+    long hash = FNV_OFFSET_BASIS;
+    hash = mix(hash, key.getAppId());
+    hash = mix(hash, key.getNamespace());
+    for (Key k = key; k != null; k = k.getParent()) {
+      hash = mix(hash, k.getKind());
+      if (k.getName() != null) {
+        hash = mix(hash, k.getName());
+      } else {
+        hash = mix(hash, k.getId());
+      }
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, String value) {
+    if (value == null) {
+      return mix(hash, -1L);
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+      hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+    }
+    return (hash ^ 0xff) * FNV_PRIME;
+  }
+
+  private static long mix(long hash, long value) {
+    for (int i = 0; i < 8; i++) {
+      hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+      value >>>= 8;
+    }
+    return hash;
+  }
+
+  /**
+   * An open-addressing set of {@code long}s using linear probing.  Zero is
+   * stored out of band so it can mark empty slots.
+   */
+  static final class LongHashSet {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] table = new long[INITIAL_CAPACITY];
+    private int size;
+    private boolean containsZero;
+
+    /**
+     * Adds {@code value}, returning {@code true} if it was not already
+     * present.
+     */
+    boolean add(long value) {
+      if (value == 0) {
+        boolean added = !containsZero;
+        containsZero = true;
+        return added;
+      }
+      if ((size + 1) * 4 > table.length * 3) {
+        resize();
+      }
+      if (insert(table, value)) {
+        size++;
+        return true;
+      }
+      return false;
+    }
+
+    private static boolean insert(long[] table, long value) {
+      int mask = table.length - 1;
+      int index = (int) spread(value) & mask;
+      while (table[index] != 0) {
+        if (table[index] == value) {
+          return false;
+        }
+        index = (index + 1) & mask;
+      }
+      table[index] = value;
+      return true;
+    }
+
+    private void resize() {
+      long[] newTable = new long[table.length * 2];
+      for (long value : table) {
+        if (value != 0) {
+          insert(newTable, value);
+        }
+      }
+      table = newTable;
+    }
+
+    /**
+     * Spreads the bits of {@code value} so the low bits used for indexing
+     * depend on all of them.
+     */
+    private static long spread(long value) {
+      value ^= value >>> 33;
+      value *= 0xff51afd7ed558ccdL;
+      value ^= value >>> 33;
+      return value;
+    }
+  }
+}
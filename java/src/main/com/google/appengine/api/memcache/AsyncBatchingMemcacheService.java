@@ -0,0 +1,39 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * An asynchronous version of {@link BatchingMemcacheService}, available via
+ * {@link MemcacheServiceFactory#getAsyncBatchingMemcacheService()}.
+ * <p>
+ * The streaming writes send every RPC before they return.  Since at most
+ * {@link MemcacheBatchOptions#getMaxConcurrentRpcs()} RPCs are in flight at
+ * once, they may wait for earlier RPCs to complete before returning.
+ *
+ */
+public interface AsyncBatchingMemcacheService extends AsyncMemcacheService {
+
+  /**
+   * @see BatchingMemcacheService#getAllInBatches(Iterable, MemcacheBatchOptions)
+   */
+  <T> Iterator<Map<T, Object>> getAllInBatches(Iterable<T> keys, MemcacheBatchOptions options);
+
+  /**
+   * @see BatchingMemcacheService#putAllInBatches(Iterable, Expiration, SetPolicy,
+   *      MemcacheBatchOptions)
+   */
+  <T> Future<Set<T>> putAllInBatches(Iterable<? extends Map.Entry<T, ?>> entries,
+      Expiration expires, SetPolicy policy, MemcacheBatchOptions options);
+
+  /**
+   * @see BatchingMemcacheService#deleteAllInBatches(Iterable, long, MemcacheBatchOptions)
+   */
+  <T> Future<Set<T>> deleteAllInBatches(Iterable<T> keys, long millisNoReAdd,
+                                        MemcacheBatchOptions options);
+}
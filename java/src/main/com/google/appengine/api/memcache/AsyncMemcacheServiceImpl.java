@@ -0,0 +1,1186 @@
+// Copyright 2010 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheBatchIncrementRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheBatchIncrementResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheDeleteRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheDeleteResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheDeleteResponse.DeleteStatusCode;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheFlushRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheFlushResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGrabTailRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGrabTailResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheIncrementRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheIncrementRequest.Direction;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheIncrementResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheIncrementResponse.IncrementStatusCode;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetResponse.SetStatusCode;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheStatsRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheStatsResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MergedNamespaceStats;
+import com.google.appengine.api.utils.FutureWrapper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java bindings for the Memcache service, issuing every call through
+ * {@link ApiProxy#makeAsyncCall}.  {@link MemcacheServiceImpl} is a
+ * blocking view over this class.
+ *
+ */
+class AsyncMemcacheServiceImpl implements AsyncBatchingMemcacheService {
+
+  static final String PACKAGE = "memcache";
+
+  private static final Logger logger = Logger.getLogger(AsyncMemcacheServiceImpl.class.getName());
+
+  /**
+   * Default handler just logs errors at INFO.
+   */
+  private volatile ErrorHandler handler = new LogAndContinueErrorHandler(Level.INFO);
+
+  /**
+   * If the namespace is not null it overrides current namespace on all API
+   * calls. The current namespace is defined as the one returned by
+   * {@link NamespaceManager#get()}.
+   */
+  private volatile String namespace;
+
+  /**
+   * Our keys will be byte[], which by default doesn't do hashCode() and
+   * equals() correctly.  This wraps it to do so, using {@link Arrays}.
+   * For most methods we don't care, but a few (the multi-puts and delete)
+   * need to map back from the "actual" downstream key to the originating
+   * Object key.
+   */
+  static class CacheKey {
+    private byte[] keyval;
+    private int hashcode;
+
+    public CacheKey(byte[] bytes) {
+      keyval = bytes;
+      hashcode = Arrays.hashCode(keyval);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof CacheKey) {
+        return Arrays.equals(keyval, ((CacheKey) other).keyval);
+      } else {
+        return false;
+     }
+    }
+
+    @Override
+    public int hashCode() {
+      return hashcode;
+    }
+  }
+
+  private static class StatsImpl implements Stats {
+    private long hits, misses, bytesFetched, items, bytesStored;
+    private int maxCachedTime;
+
+    private StatsImpl(long hits, long misses, long bytesFetched, long items,
+                      long bytesStored, int maxCachedTime) {
+      this.hits = hits;
+      this.misses = misses;
+      this.bytesFetched = bytesFetched;
+      this.items = items;
+      this.bytesStored = bytesStored;
+      this.maxCachedTime = maxCachedTime;
+    }
+
+    @Override
+    public long getHitCount() {
+      return hits;
+    }
+
+    @Override
+    public long getMissCount() {
+      return misses;
+    }
+
+    @Override
+    public long getBytesReturnedForHits() {
+      return bytesFetched;
+    }
+
+    @Override
+    public long getItemCount() {
+      return items;
+    }
+
+    @Override
+    public long getTotalItemBytes() {
+      return bytesStored;
+    }
+
+    @Override
+    public int getMaxTimeWithoutAccess() {
+      return maxCachedTime;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder();
+      builder.append("Hits: " + hits + "\n");
+      builder.append("Misses: " + misses + "\n");
+      builder.append("Bytes Fetched: " + bytesFetched + "\n");
+      builder.append("Bytes Stored: " + bytesStored + "\n");
+      builder.append("Items: " + items + "\n");
+      builder.append("Max Cached Time: " + maxCachedTime + "\n");
+      return builder.toString();
+    }
+  }
+
+  protected static class IdentifiableValueImpl implements IdentifiableValue {
+    private Object value;
+    private long casId;
+
+    protected IdentifiableValueImpl(Object value, long casId) {
+      this.value = value;
+      this.casId = casId;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+
+    protected long getCasId() {
+      return casId;
+    }
+  }
+
+  /**
+   * A {@link Future} over a single memcache RPC.  The RPC is issued when the
+   * future is constructed.  On completion the response is parsed and handed to
+   * {@link #wrap}, while failures are routed through the {@link ErrorHandler}
+   * exactly as the blocking API always has.  Anything thrown while resolving
+   * the result, including exceptions raised by the handler, becomes the cause
+   * of the {@link ExecutionException}.  This class is thread-safe.
+   *
+   * @param <M> The response builder type.
+   * @param <T> The type returned by this future.
+   */
+  private abstract class MemcacheFuture<M extends Message.Builder, T> implements Future<T> {
+    private final Future<byte[]> rpc;
+    private final M response;
+    private final String errorText;
+    private final T defaultValue;
+
+    private final Lock lock = new ReentrantLock();
+    private boolean hasResult;
+    private T result;
+    private ExecutionException failure;
+
+    MemcacheFuture(String methodName, Message request, M response, String errorText,
+        T defaultValue) {
+      this.rpc = ApiProxy.makeAsyncCall(PACKAGE, methodName, request.toByteArray());
+      this.response = response;
+      this.errorText = errorText;
+      this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Converts the successfully parsed response into the result.
+     */
+    protected abstract T wrap(M response);
+
+    /**
+     * Returns the result to provide once the {@link ErrorHandler} has
+     * accepted a failure.  {@code response} holds whatever was parsed before
+     * the failure, which is usually nothing.
+     */
+    protected T fallback(M response) {
+      return defaultValue;
+    }
+
+    /**
+     * Handles an application-level error reported by the back end.
+     */
+    protected void handleApplicationException(ApiProxy.ApplicationException ex) {
+      logger.info(errorText + ": " + ex.getErrorDetail());
+      handler.handleServiceError(new MemcacheServiceException(errorText));
+    }
+
+    private T convert(byte[] responseBytes, Throwable cause) throws ExecutionException {
+      if (cause == null) {
+        try {
+          response.mergeFrom(responseBytes);
+          return wrap(response);
+        } catch (InvalidProtocolBufferException ex) {
+          handler.handleServiceError(new MemcacheServiceException("Could not decode response:", ex));
+        }
+      } else if (cause instanceof ApiProxy.ApplicationException) {
+        handleApplicationException((ApiProxy.ApplicationException) cause);
+      } else if (cause instanceof ApiProxy.ApiProxyException) {
+        handler.handleServiceError(new MemcacheServiceException(errorText, cause));
+      } else {
+        throw new ExecutionException(cause);
+      }
+      return fallback(response);
+    }
+
+    private T resolve(byte[] responseBytes, Throwable cause) throws ExecutionException {
+      try {
+        result = convert(responseBytes, cause);
+      } catch (ExecutionException ex) {
+        failure = ex;
+      } catch (RuntimeException ex) {
+        failure = new ExecutionException(ex);
+      }
+      hasResult = true;
+      return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+      if (failure != null) {
+        throw failure;
+      }
+      return result;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return rpc.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return rpc.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      return rpc.isDone();
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+      lock.lock();
+      try {
+        if (hasResult) {
+          return getResult();
+        }
+        byte[] responseBytes;
+        try {
+          responseBytes = rpc.get();
+        } catch (ExecutionException ex) {
+          return resolve(null, ex.getCause());
+        }
+        return resolve(responseBytes, null);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException, ExecutionException {
+      long tryLockStart = System.currentTimeMillis();
+      if (!lock.tryLock(timeout, unit)) {
+        throw new TimeoutException();
+      }
+      try {
+        if (hasResult) {
+          return getResult();
+        }
+        long remainingDeadline = TimeUnit.MILLISECONDS.convert(timeout, unit) -
+            (System.currentTimeMillis() - tryLockStart);
+        byte[] responseBytes;
+        try {
+          responseBytes = rpc.get(remainingDeadline, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+          return resolve(null, ex.getCause());
+        }
+        return resolve(responseBytes, null);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  AsyncMemcacheServiceImpl(String namespace) {
+    if (namespace != null) {
+      NamespaceManager.validateNamespace(namespace);
+    }
+    this.namespace = namespace;
+  }
+
+  /**
+   * @see MemcacheService#getNamespace()
+   */
+  public String getNamespace() {
+    return namespace;
+  }
+
+  /**
+   * Used by the deprecated {@link MemcacheService#setNamespace(String)}.
+   */
+  void setNamespace(String newNamespace) {
+    namespace = newNamespace;
+  }
+
+  /**
+   * Returns namespace which is about to be used by API call. By default it is
+   * the value returned by {@link NamespaceManager#get()} with the exception
+   * that {@code null} is substituted with "" (empty string).
+   * If the {@link #namespace} is not null it overrides the default value.
+   */
+  String getEffectiveNamespace() {
+    String namespace0 = namespace;
+    if (namespace0 != null) {
+      return namespace0;
+    }
+    String namespace1 = NamespaceManager.get();
+    return namespace1 == null ? "" : namespace1;
+  }
+
+  public Future<Boolean> contains(Object key) {
+    MemcacheGetRequest request;
+    try {
+      request = MemcacheGetRequest.newBuilder()
+          .setNameSpace(getEffectiveNamespace())
+          .addKey(ByteString.copyFrom(MemcacheSerialization.makePbKey(key)))
+          .build();
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Cannot use as key: '" + key + "'", ex);
+    }
+    return new MemcacheFuture<MemcacheGetResponse.Builder, Boolean>("Get", request,
+        MemcacheGetResponse.newBuilder(),
+        "Memcache contains: exception testing contains (" + key + ")", false) {
+      @Override
+      protected Boolean wrap(MemcacheGetResponse.Builder response) {
+        return response.getItemCount() == 1;
+      }
+    };
+  }
+
+  private <T> Future<T> doGet(Object key, boolean forCas) {
+    byte[] pbKey;
+    try {
+      pbKey = MemcacheSerialization.makePbKey(key);
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Cannot use as a key: '" + key + "'", ex);
+    }
+    return doGet(key, pbKey, forCas);
+  }
+
+  /**
+   * Fetches {@code key}, whose serialized form {@code pbKey} the caller has
+   * already computed with {@link MemcacheSerialization#makePbKey}.
+   */
+  <T> Future<T> doGet(final Object key, byte[] pbKey, final boolean forCas) {
+    MemcacheGetRequest.Builder requestBuilder = MemcacheGetRequest.newBuilder();
+    requestBuilder.setNameSpace(getEffectiveNamespace())
+        .addKey(ByteString.copyFrom(pbKey));
+    if (forCas) {
+      requestBuilder.setForCas(true);
+    }
+    MemcacheGetRequest request = requestBuilder.build();
+    return new MemcacheFuture<MemcacheGetResponse.Builder, T>("Get", request,
+        MemcacheGetResponse.newBuilder(),
+        "Memcache get: exception getting 1 key (" + key + ")", null) {
+      @Override
+      @SuppressWarnings("unchecked")
+      protected T wrap(MemcacheGetResponse.Builder response) {
+        if (response.getItemCount() == 0) {
+          return null;
+        }
+        MemcacheGetResponse.Item item = response.getItem(0);
+        Object value;
+        try {
+          value = MemcacheSerialization.deserialize(item.getValue().toByteArray(), item.getFlags());
+        } catch (ClassNotFoundException ex) {
+          handler.handleDeserializationError(new InvalidValueException(
+              "Can't find class for value of key '" + key + "'", ex));
+          return null;
+        } catch (IOException ex) {
+          throw new InvalidValueException("IO exception parsing value of '" + key + "'", ex);
+        }
+        if (forCas) {
+          return (T) new IdentifiableValueImpl(value, item.getCasId());
+        } else {
+          return (T) value;
+        }
+      }
+    };
+  }
+
+  public Future<Object> get(Object key) {
+    return doGet(key, false);
+  }
+
+  public Future<IdentifiableValue> getIdentifiable(Object key) {
+    return doGet(key, true);
+  }
+
+  public <T> Future<Map<T, Object>> getAll(Collection<T> keys) {
+    Map<CacheKey, T> cacheKeyToObjectKey = new HashMap<CacheKey,T>();
+    for (T key : keys) {
+      try {
+        byte keybytes[] = MemcacheSerialization.makePbKey(key);
+        cacheKeyToObjectKey.put(new CacheKey(keybytes), key);
+      } catch (IOException ex) {
+        throw new IllegalArgumentException("Cannot use as key: '" + key + "'", ex);
+      }
+    }
+    return getAll(getEffectiveNamespace(), cacheKeyToObjectKey);
+  }
+
+  /**
+   * Fetches the keys in {@code cacheKeyToObjectKey}, which maps each
+   * already-serialized key back to the user's key object.
+   */
+  <T> Future<Map<T, Object>> getAll(String namespace,
+                                    final Map<CacheKey, T> cacheKeyToObjectKey) {
+    MemcacheGetRequest.Builder requestBuilder = MemcacheGetRequest.newBuilder();
+    requestBuilder.setNameSpace(namespace);
+    for (CacheKey cacheKey : cacheKeyToObjectKey.keySet()) {
+      requestBuilder.addKey(ByteString.copyFrom(cacheKey.keyval));
+    }
+    return new MemcacheFuture<MemcacheGetResponse.Builder, Map<T, Object>>("Get",
+        requestBuilder.build(), MemcacheGetResponse.newBuilder(),
+        "Memcache get: exception getting multiple keys", Collections.<T, Object>emptyMap()) {
+      @Override
+      protected Map<T, Object> wrap(MemcacheGetResponse.Builder response) {
+        Map<T, Object> result = new HashMap<T, Object>();
+        for (MemcacheGetResponse.Item item : response.getItemList()) {
+          T key = null;
+          try {
+            key = cacheKeyToObjectKey.get(new CacheKey(item.getKey().toByteArray()));
+            Object obj = MemcacheSerialization.deserialize(item.getValue().toByteArray(),
+                item.getFlags());
+            result.put(key, obj);
+          } catch (ClassNotFoundException ex) {
+            handler.handleDeserializationError(new InvalidValueException(
+                "Can't find class for value of key '" + key + "'", ex));
+            return null;
+          } catch (IOException ex) {
+            throw new InvalidValueException("IO exception parsing value of '" + key + "'", ex);
+          }
+        }
+        return result;
+      }
+    };
+  }
+
+  /**
+   * Note: non-null oldValue implies Compare-and-Swap operation.
+   */
+  private Future<Boolean> doPut(final Object key, IdentifiableValue oldValue, Object value,
+                                Expiration expires, SetPolicy policy) {
+    MemcacheSetRequest.Builder requestBuilder = MemcacheSetRequest.newBuilder();
+    requestBuilder.setNameSpace(getEffectiveNamespace());
+
+    MemcacheSetRequest.Item.Builder itemBuilder = MemcacheSetRequest.Item.newBuilder();
+    try {
+      MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(value);
+      itemBuilder.setValue(ByteString.copyFrom(vaf.value));
+      itemBuilder.setFlags(vaf.flags.ordinal());
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Cannot use as value: '" + value + "'", ex);
+    }
+    try {
+      itemBuilder.setKey(ByteString.copyFrom(MemcacheSerialization.makePbKey(key)));
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Cannot use as key: '" + key + "'", ex);
+    }
+    itemBuilder.setExpirationTime(expires == null ? 0 : expires.getSecondsValue());
+    if (oldValue == null) {
+      itemBuilder.setSetPolicy(convertSetPolicyToPb(policy));
+    } else {
+      itemBuilder.setSetPolicy(MemcacheSetRequest.SetPolicy.CAS);
+      try {
+        itemBuilder.setCasId(((IdentifiableValueImpl) oldValue).getCasId());
+      } catch (ClassCastException ex) {
+        throw new IllegalArgumentException("Not a proper identifiable value: " + oldValue);
+      }
+      itemBuilder.setForCas(true);
+    }
+
+    requestBuilder.addItem(itemBuilder);
+
+    return new MemcacheFuture<MemcacheSetResponse.Builder, Boolean>("Set",
+        requestBuilder.build(), MemcacheSetResponse.newBuilder(),
+        "Memcache put: exception setting 1 key (" + key + ") to '" + value + "'", false) {
+      @Override
+      protected Boolean wrap(MemcacheSetResponse.Builder response) {
+        if (response.getSetStatusCount() != 1) {
+          throw new MemcacheServiceException("Memcache put: Set one item, got "
+              + response.getSetStatusCount() + " response statuses");
+        }
+        SetStatusCode status = response.getSetStatus(0);
+        if (status == SetStatusCode.ERROR) {
+          throw new MemcacheServiceException(
+              "Memcache put: Error setting single item (" + key + ")");
+        }
+        return status == SetStatusCode.STORED;
+      }
+    };
+  }
+
+  private static MemcacheSetRequest.SetPolicy convertSetPolicyToPb(SetPolicy policy) {
+    switch (policy) {
+      case SET_ALWAYS:
+        return MemcacheSetRequest.SetPolicy.SET;
+      case ADD_ONLY_IF_NOT_PRESENT:
+        return MemcacheSetRequest.SetPolicy.ADD;
+      case REPLACE_ONLY_IF_PRESENT:
+        return MemcacheSetRequest.SetPolicy.REPLACE;
+    }
+    throw new IllegalArgumentException("Unknown policy: " + policy);
+  }
+
+  public Future<Boolean> put(Object key, Object value, Expiration expires, SetPolicy policy) {
+    return doPut(key, null, value, expires, policy);
+  }
+
+  public Future<Void> put(Object key, Object value, Expiration expires) {
+    return voidFuture(put(key, value, expires, SetPolicy.SET_ALWAYS));
+  }
+
+  public Future<Void> put(Object key, Object value) {
+    return voidFuture(put(key, value, null, SetPolicy.SET_ALWAYS));
+  }
+
+  public Future<Boolean> putIfUntouched(Object key, IdentifiableValue oldValue,
+                                        Object newValue, Expiration expires) {
+    if (oldValue == null) {
+      throw new IllegalArgumentException("oldValue must not be null.");
+    }
+    if (!(oldValue instanceof IdentifiableValueImpl)) {
+      throw new IllegalArgumentException(
+          "oldValue is an instance of an unapproved IdentifiableValue implementation.  " +
+          "Perhaps you implemented your own version of IdentifiableValue?  " +
+          "If so, don't do this.");
+    }
+    return doPut(key, oldValue, newValue, expires, null);
+  }
+
+  public Future<Boolean> putIfUntouched(Object key, IdentifiableValue oldValue,
+                                        Object newValue) {
+    return putIfUntouched(key, oldValue, newValue, null);
+  }
+
+  public <T> Future<Set<T>> putAll(Map<T, ?> values, Expiration expires,
+                                   SetPolicy policy) {
+    MemcacheSetRequest.Builder requestBuilder = MemcacheSetRequest.newBuilder();
+    requestBuilder.setNameSpace(getEffectiveNamespace());
+
+    Map<CacheKey, T> cacheKeyToObjectKey = new HashMap<CacheKey, T>();
+
+    for (Map.Entry<T, ?> entry : values.entrySet()) {
+      MemcacheSetRequest.Item item =
+          buildSetItem(entry.getKey(), entry.getValue(), expires, policy);
+      cacheKeyToObjectKey.put(new CacheKey(item.getKey().toByteArray()), entry.getKey());
+      requestBuilder.addItem(item);
+    }
+    return doPutAll(requestBuilder.build(), cacheKeyToObjectKey);
+  }
+
+  private static MemcacheSetRequest.Item buildSetItem(Object key, Object value,
+      Expiration expires, SetPolicy policy) {
+    MemcacheSetRequest.Item.Builder itemBuilder = MemcacheSetRequest.Item.newBuilder();
+    try {
+      itemBuilder.setKey(ByteString.copyFrom(MemcacheSerialization.makePbKey(key)));
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Cannot use as key: '" + key + "'", ex);
+    }
+    try {
+      MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(value);
+      itemBuilder.setValue(ByteString.copyFrom(vaf.value));
+      itemBuilder.setFlags(vaf.flags.ordinal());
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Cannot use as value: '" + value + "'", ex);
+    }
+    itemBuilder.setExpirationTime(expires == null ? 0 : expires.getSecondsValue());
+    itemBuilder.setSetPolicy(convertSetPolicyToPb(policy));
+    return itemBuilder.build();
+  }
+
+  /**
+   * Issues a multi-set, mapping the stored keys back through
+   * {@code cacheKeyToObjectKey}.
+   */
+  private <T> Future<Set<T>> doPutAll(final MemcacheSetRequest request,
+                                      final Map<CacheKey, T> cacheKeyToObjectKey) {
+    final int size = request.getItemCount();
+    return new MemcacheFuture<MemcacheSetResponse.Builder, Set<T>>("Set", request,
+        MemcacheSetResponse.newBuilder(),
+        "Memcache put: Unknown exception setting " + size + " keys", new HashSet<T>()) {
+      @Override
+      protected Set<T> wrap(MemcacheSetResponse.Builder response) {
+        HashSet<T> result = new HashSet<T>();
+        HashSet<Object> errors = new HashSet<Object>();
+
+        if (response.getSetStatusCount() != size) {
+          throw new MemcacheServiceException("Memcache put: Set " + size
+                     + " items, got " + response.getSetStatusCount()
+                     + " response statuses");
+        }
+        for (int i = 0; i < size; i++) {
+          MemcacheSetResponse.SetStatusCode status = response.getSetStatus(i);
+          byte[] key = request.getItem(i).getKey().toByteArray();
+          if (status == MemcacheSetResponse.SetStatusCode.ERROR) {
+            errors.add(key);
+          } else if (status == MemcacheSetResponse.SetStatusCode.STORED) {
+            result.add(cacheKeyToObjectKey.get(new CacheKey(key)));
+          }
+        }
+        if (errors.size() != 0) {
+          StringBuilder builder = new StringBuilder();
+          for (Object err : errors) {
+            if (builder.length() > 0) {
+              builder.append(", ");
+            }
+            builder.append(err);
+          }
+          throw new MemcacheServiceException("Memcache put: Set failed to set "
+              + errors.size() + " keys: " + builder.toString());
+        }
+        return result;
+      }
+    };
+  }
+
+  public Future<Void> putAll(Map<?, ?> values, Expiration expires) {
+    return voidFuture(putAll(values, expires, SetPolicy.SET_ALWAYS));
+  }
+
+  public Future<Void> putAll(Map<?, ?> values) {
+    return voidFuture(putAll(values, null, SetPolicy.SET_ALWAYS));
+  }
+
+  public Future<Boolean> delete(Object key) {
+    return delete(key, 0);
+  }
+
+  public Future<Boolean> delete(Object key, long millisNoReAdd) {
+    MemcacheDeleteRequest request;
+    try {
+      MemcacheDeleteRequest.Item.Builder item = MemcacheDeleteRequest.Item.newBuilder()
+          .setKey(ByteString.copyFrom(MemcacheSerialization.makePbKey(key)))
+          .setDeleteTime((int) (millisNoReAdd / 1000));
+
+      request = MemcacheDeleteRequest.newBuilder()
+          .setNameSpace(getEffectiveNamespace())
+          .addItem(item)
+          .build();
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Cannot use as key: '" + key + "'", ex);
+    }
+    return new MemcacheFuture<MemcacheDeleteResponse.Builder, Boolean>("Delete", request,
+        MemcacheDeleteResponse.newBuilder(),
+        "Memcache delete: Unknown exception deleting key: " + key, false) {
+      @Override
+      protected Boolean wrap(MemcacheDeleteResponse.Builder response) {
+        return response.getDeleteStatus(0) == DeleteStatusCode.DELETED;
+      }
+    };
+  }
+
+  public <T> Future<Set<T>> deleteAll(Collection<T> keys) {
+    return deleteAll(keys, 0);
+  }
+
+  public <T> Future<Set<T>> deleteAll(Collection<T> keys, long millisNoReAdd) {
+    Map<CacheKey, T> cacheKeyToObjectKey = new HashMap<CacheKey, T>();
+
+    MemcacheDeleteRequest.Builder requestBuilder = MemcacheDeleteRequest.newBuilder()
+        .setNameSpace(getEffectiveNamespace());
+
+    for (T key : keys) {
+      MemcacheDeleteRequest.Item item = buildDeleteItem(key, millisNoReAdd);
+      cacheKeyToObjectKey.put(new CacheKey(item.getKey().toByteArray()), key);
+      requestBuilder.addItem(item);
+    }
+    return doDeleteAll(requestBuilder.build(), cacheKeyToObjectKey);
+  }
+
+  private static MemcacheDeleteRequest.Item buildDeleteItem(Object key, long millisNoReAdd) {
+    try {
+      return MemcacheDeleteRequest.Item.newBuilder()
+          .setDeleteTime((int) (millisNoReAdd / 1000))
+          .setKey(ByteString.copyFrom(MemcacheSerialization.makePbKey(key)))
+          .build();
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Cannot use as key: '" + key + "'", ex);
+    }
+  }
+
+  /**
+   * Issues a multi-delete, mapping the deleted keys back through
+   * {@code cacheKeyToObjectKey}.
+   */
+  private <T> Future<Set<T>> doDeleteAll(final MemcacheDeleteRequest request,
+                                         final Map<CacheKey, T> cacheKeyToObjectKey) {
+    return new MemcacheFuture<MemcacheDeleteResponse.Builder, Set<T>>("Delete", request,
+        MemcacheDeleteResponse.newBuilder(),
+        "Memcache delete: Unknown exception deleting multiple keys", new HashSet<T>()) {
+      @Override
+      protected Set<T> wrap(MemcacheDeleteResponse.Builder response) {
+        Set<T> retval = new HashSet<T>();
+        for (int i = 0; i < response.getDeleteStatusCount(); i++) {
+          if (response.getDeleteStatus(i) == DeleteStatusCode.DELETED) {
+            retval.add(cacheKeyToObjectKey.get(
+                           new CacheKey(request.getItem(i).getKey().toByteArray())));
+          }
+        }
+        return retval;
+      }
+    };
+  }
+
+  private static MemcacheIncrementRequest internalBuildIncrementRequest(
+      Object key,
+      long delta,
+      Long initialValue,
+      MemcacheIncrementRequest.Builder requestBuilder) {
+    try {
+      requestBuilder.setKey(
+          ByteString.copyFrom(MemcacheSerialization.makePbKey(key)));
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Cannot use as key: '" + key + "'", ex);
+    }
+    if (delta > 0) {
+      requestBuilder.setDirection(Direction.INCREMENT);
+      requestBuilder.setDelta(delta);
+    } else {
+      requestBuilder.setDirection(Direction.DECREMENT);
+      requestBuilder.setDelta(-delta);
+    }
+    if (initialValue != null) {
+      requestBuilder.setInitialValue(initialValue);
+      requestBuilder.setInitialFlags(MemcacheSerialization.Flag.LONG.ordinal());
+    }
+    return requestBuilder.build();
+  }
+
+  public Future<Long> increment(Object key, long delta) {
+    return increment(key, delta, null);
+  }
+
+  public Future<Long> increment(final Object key, long delta, Long initialValue) {
+    MemcacheIncrementRequest.Builder requestBuilder = MemcacheIncrementRequest.newBuilder();
+    MemcacheIncrementRequest request = internalBuildIncrementRequest(
+        key, delta, initialValue, requestBuilder.setNameSpace(getEffectiveNamespace()));
+
+    return new MemcacheFuture<MemcacheIncrementResponse.Builder, Long>("Increment", request,
+        MemcacheIncrementResponse.newBuilder(),
+        "Memcache increment of key '" + key + "': exception", null) {
+      @Override
+      protected Long wrap(MemcacheIncrementResponse.Builder response) {
+        if (!response.hasNewValue()) {
+          return null;
+        }
+        return response.getNewValue();
+      }
+
+      @Override
+      protected Long fallback(MemcacheIncrementResponse.Builder response) {
+        return wrap(response);
+      }
+
+      @Override
+      protected void handleApplicationException(ApiProxy.ApplicationException ex) {
+        logger.info(ex.getErrorDetail());
+        throw new InvalidValueException("Non-incrementable value for key '" + key + "'");
+      }
+    };
+  }
+
+  public <T> Future<Map<T, Long>> incrementAll(Collection<T> keys, long delta) {
+    return incrementAll(keys, delta, null);
+  }
+
+  public <T> Future<Map<T, Long>> incrementAll(Collection<T> keys, long delta,
+                                               Long initialValue) {
+    Map<T, Long> offsets = new LinkedHashMap<T, Long>();
+    for (T key : keys) {
+      offsets.put(key, delta);
+    }
+    return incrementAll(offsets, initialValue);
+  }
+
+  public <T> Future<Map<T, Long>> incrementAll(Map<T, Long> offsets) {
+    return incrementAll(offsets, null);
+  }
+
+  public <T> Future<Map<T, Long>> incrementAll(Map<T, Long> offsets, Long initialValue) {
+    MemcacheBatchIncrementRequest.Builder requestBuilder =
+        MemcacheBatchIncrementRequest.newBuilder().setNameSpace(getEffectiveNamespace());
+
+    final List<T> keys = new ArrayList<T>(offsets.size());
+    for (Map.Entry<T, Long> entry : offsets.entrySet()) {
+      keys.add(entry.getKey());
+      requestBuilder.addItem(internalBuildIncrementRequest(
+          entry.getKey(), entry.getValue(), initialValue,
+          MemcacheIncrementRequest.newBuilder()));
+    }
+
+    return new MemcacheFuture<MemcacheBatchIncrementResponse.Builder, Map<T, Long>>(
+        "BatchIncrement", requestBuilder.build(), MemcacheBatchIncrementResponse.newBuilder(),
+        "Memcache batch increment exception", null) {
+      @Override
+      protected Map<T, Long> wrap(MemcacheBatchIncrementResponse.Builder response) {
+        Map<T, Long> result = new HashMap<T, Long>();
+        int index = 0;
+        for (T key : keys) {
+          if (index < response.getItemCount()) {
+            MemcacheIncrementResponse responseItem = response.getItem(index++);
+            if (responseItem.getIncrementStatus().equals(IncrementStatusCode.OK) &&
+                responseItem.hasNewValue()) {
+              result.put(key, responseItem.getNewValue());
+            } else {
+              result.put(key, null);
+            }
+          } else {
+            result.put(key, null);
+          }
+        }
+        return result;
+      }
+
+      @Override
+      protected Map<T, Long> fallback(MemcacheBatchIncrementResponse.Builder response) {
+        return wrap(response);
+      }
+
+      @Override
+      protected void handleApplicationException(ApiProxy.ApplicationException ex) {
+        handler.handleServiceError(
+            new MemcacheServiceException("Memcache batch increment exception", ex));
+      }
+    };
+  }
+
+  public Future<Void> clearAll() {
+    MemcacheFlushRequest request = MemcacheFlushRequest.newBuilder().build();
+    return new MemcacheFuture<MemcacheFlushResponse.Builder, Void>("FlushAll", request,
+        MemcacheFlushResponse.newBuilder(), "Memcache flush: exception", null) {
+      @Override
+      protected Void wrap(MemcacheFlushResponse.Builder response) {
+        return null;
+      }
+    };
+  }
+
+  public Future<Stats> getStatistics() {
+    MemcacheStatsRequest request = MemcacheStatsRequest.newBuilder().build();
+    return new MemcacheFuture<MemcacheStatsResponse.Builder, Stats>("Stats", request,
+        MemcacheStatsResponse.newBuilder(), "Memcache getStatistics: exception", null) {
+      @Override
+      protected Stats wrap(MemcacheStatsResponse.Builder response) {
+        MergedNamespaceStats stats = response.getStats();
+        if (stats == null) {
+          return new StatsImpl(0, 0, 0, 0, 0, 0);
+        } else {
+          return new StatsImpl(stats.getHits(), stats.getMisses(), stats.getByteHits(),
+                               stats.getItems(), stats.getBytes(), stats.getOldestItemAge());
+        }
+      }
+    };
+  }
+
+  /**
+   * @see MemcacheServiceImpl#grabTail(int)
+   */
+  public Future<List<Object>> grabTail(int itemCount) {
+    if (getEffectiveNamespace().length() == 0) {
+      throw new IllegalStateException("Namespace should be non-empty.");
+    }
+
+    MemcacheGrabTailRequest.Builder requestBuilder = MemcacheGrabTailRequest.newBuilder();
+    requestBuilder.setNameSpace(getEffectiveNamespace());
+    requestBuilder.setItemCount(itemCount);
+
+    return new MemcacheFuture<MemcacheGrabTailResponse.Builder, List<Object>>("GrabTail",
+        requestBuilder.build(), MemcacheGrabTailResponse.newBuilder(),
+        "Memcache get: exception getting multiple keys", Collections.<Object>emptyList()) {
+      @Override
+      protected List<Object> wrap(MemcacheGrabTailResponse.Builder response) {
+        List<Object> result = new ArrayList<Object>();
+        for (MemcacheGrabTailResponse.Item item : response.getItemList()) {
+          try {
+            Object obj = MemcacheSerialization.deserialize(
+                item.getValue().toByteArray(), item.getFlags());
+            result.add(obj);
+          } catch (ClassNotFoundException ex) {
+            handler.handleDeserializationError(new InvalidValueException(
+                "Can't find class", ex));
+            return null;
+          } catch (IOException ex) {
+            throw new InvalidValueException("IO exception parsing value", ex);
+          }
+        }
+        return result;
+      }
+    };
+  }
+
+  /**
+   * An input of a streaming batch operation together with its serialized
+   * form and the number of bytes that form adds to an RPC.
+   */
+  private static final class BatchItem<T, P> {
+    private static final int FRAMING_BYTES = 8;
+
+    final T key;
+    final P encoded;
+    final int size;
+
+    BatchItem(T key, P encoded, int serializedSize) {
+      this.key = key;
+      this.encoded = encoded;
+      this.size = serializedSize + FRAMING_BYTES;
+    }
+  }
+
+  /**
+   * @see MemcacheServiceImpl#getAllInBatches(Iterable, MemcacheBatchOptions)
+   */
+  public <T> Iterator<Map<T, Object>> getAllInBatches(Iterable<T> keys,
+                                                      MemcacheBatchOptions options) {
+    final String namespace = getEffectiveNamespace();
+    return new ChunkedBatchIterator<T, BatchItem<T, CacheKey>, Map<T, Object>>(
+        keys.iterator(), options) {
+      @Override
+      protected BatchItem<T, CacheKey> encode(T key) {
+        try {
+          byte[] pbKey = MemcacheSerialization.makePbKey(key);
+          return new BatchItem<T, CacheKey>(key, new CacheKey(pbKey), pbKey.length);
+        } catch (IOException ex) {
+          throw new IllegalArgumentException("Cannot use as key: '" + key + "'", ex);
+        }
+      }
+
+      @Override
+      protected int encodedSize(BatchItem<T, CacheKey> item) {
+        return item.size;
+      }
+
+      @Override
+      protected Future<Map<T, Object>> send(List<BatchItem<T, CacheKey>> chunk) {
+        Map<CacheKey, T> cacheKeyToObjectKey = new HashMap<CacheKey, T>();
+        for (BatchItem<T, CacheKey> item : chunk) {
+          cacheKeyToObjectKey.put(item.encoded, item.key);
+        }
+        return getAll(namespace, cacheKeyToObjectKey);
+      }
+    }.start();
+  }
+
+  /**
+   * @see MemcacheServiceImpl#putAllInBatches(Iterable, Expiration, SetPolicy,
+   *      MemcacheBatchOptions)
+   */
+  public <T> Future<Set<T>> putAllInBatches(Iterable<? extends Map.Entry<T, ?>> entries,
+      final Expiration expires, final SetPolicy policy, MemcacheBatchOptions options) {
+    final String namespace = getEffectiveNamespace();
+    return new SetUnionFuture<T>(new ChunkedBatchIterator<Map.Entry<T, ?>, BatchItem<T, MemcacheSetRequest.Item>,
+        Set<T>>(entries.iterator(), options) {
+      @Override
+      protected BatchItem<T, MemcacheSetRequest.Item> encode(Map.Entry<T, ?> entry) {
+        MemcacheSetRequest.Item item =
+            buildSetItem(entry.getKey(), entry.getValue(), expires, policy);
+        return new BatchItem<T, MemcacheSetRequest.Item>(
+            entry.getKey(), item, item.getSerializedSize());
+      }
+
+      @Override
+      protected int encodedSize(BatchItem<T, MemcacheSetRequest.Item> item) {
+        return item.size;
+      }
+
+      @Override
+      protected Future<Set<T>> send(List<BatchItem<T, MemcacheSetRequest.Item>> chunk) {
+        MemcacheSetRequest.Builder requestBuilder = MemcacheSetRequest.newBuilder();
+        requestBuilder.setNameSpace(namespace);
+        Map<CacheKey, T> cacheKeyToObjectKey = new HashMap<CacheKey, T>();
+        for (BatchItem<T, MemcacheSetRequest.Item> item : chunk) {
+          cacheKeyToObjectKey.put(
+              new CacheKey(item.encoded.getKey().toByteArray()), item.key);
+          requestBuilder.addItem(item.encoded);
+        }
+        return doPutAll(requestBuilder.build(), cacheKeyToObjectKey);
+      }
+    }.sendAll());
+  }
+
+  /**
+   * @see MemcacheServiceImpl#deleteAllInBatches(Iterable, long, MemcacheBatchOptions)
+   */
+  public <T> Future<Set<T>> deleteAllInBatches(Iterable<T> keys, final long millisNoReAdd,
+                                               MemcacheBatchOptions options) {
+    final String namespace = getEffectiveNamespace();
+    return new SetUnionFuture<T>(new ChunkedBatchIterator<T, BatchItem<T, MemcacheDeleteRequest.Item>, Set<T>>(
+        keys.iterator(), options) {
+      @Override
+      protected BatchItem<T, MemcacheDeleteRequest.Item> encode(T key) {
+        MemcacheDeleteRequest.Item item = buildDeleteItem(key, millisNoReAdd);
+        return new BatchItem<T, MemcacheDeleteRequest.Item>(
+            key, item, item.getSerializedSize());
+      }
+
+      @Override
+      protected int encodedSize(BatchItem<T, MemcacheDeleteRequest.Item> item) {
+        return item.size;
+      }
+
+      @Override
+      protected Future<Set<T>> send(List<BatchItem<T, MemcacheDeleteRequest.Item>> chunk) {
+        MemcacheDeleteRequest.Builder requestBuilder = MemcacheDeleteRequest.newBuilder()
+            .setNameSpace(namespace);
+        Map<CacheKey, T> cacheKeyToObjectKey = new HashMap<CacheKey, T>();
+        for (BatchItem<T, MemcacheDeleteRequest.Item> item : chunk) {
+          cacheKeyToObjectKey.put(
+              new CacheKey(item.encoded.getKey().toByteArray()), item.key);
+          requestBuilder.addItem(item.encoded);
+        }
+        return doDeleteAll(requestBuilder.build(), cacheKeyToObjectKey);
+      }
+    }.sendAll());
+  }
+
+  public ErrorHandler getErrorHandler() {
+    return handler;
+  }
+
+  public void setErrorHandler(ErrorHandler newHandler) {
+    handler = newHandler;
+  }
+
+  /**
+   * The union of the results of the RPCs of a streaming write, all of which
+   * have been sent.  The first failure, in the order the RPCs were sent, is
+   * reported once every RPC has completed.
+   */
+  private static final class SetUnionFuture<T> implements Future<Set<T>> {
+    private final List<Future<Set<T>>> futures;
+
+    SetUnionFuture(List<Future<Set<T>>> futures) {
+      this.futures = futures;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = false;
+      for (Future<Set<T>> future : futures) {
+        cancelled |= future.cancel(mayInterruptIfRunning);
+      }
+      return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      for (Future<Set<T>> future : futures) {
+        if (future.isCancelled()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      for (Future<Set<T>> future : futures) {
+        if (!future.isDone()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public Set<T> get() throws InterruptedException, ExecutionException {
+      Set<T> result = new HashSet<T>();
+      ExecutionException failure = null;
+      for (Future<Set<T>> future : futures) {
+        try {
+          result.addAll(future.get());
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return result;
+    }
+
+    @Override
+    public Set<T> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long deadlineMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+      Set<T> result = new HashSet<T>();
+      ExecutionException failure = null;
+      for (Future<Set<T>> future : futures) {
+        try {
+          result.addAll(future.get(Math.max(0, deadlineMillis - System.currentTimeMillis()),
+              TimeUnit.MILLISECONDS));
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Discards the result of {@code future}, for the convenience methods whose
+   * synchronous counterparts return {@code void}.
+   */
+  private static <T> Future<Void> voidFuture(Future<T> future) {
+    return new FutureWrapper<T, Void>(future) {
+      @Override
+      protected Void wrap(T result) {
+        return null;
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        return cause;
+      }
+    };
+  }
+}
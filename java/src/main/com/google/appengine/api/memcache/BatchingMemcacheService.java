@@ -0,0 +1,73 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+package com.google.appengine.api.memcache;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link MemcacheService} with streaming variants of its multi-key
+ * operations, for key sets too large to send in one call, available via
+ * {@link MemcacheServiceFactory#getBatchingMemcacheService()}.  The keys or
+ * entries are sent in RPCs bounded by {@link MemcacheBatchOptions}.
+ * <p>
+ * The namespace of an operation is the one in effect when it is called.
+ *
+ */
+public interface BatchingMemcacheService extends MemcacheService {
+  /**
+   * A streaming variant of {@link #getAll(Collection)}.  Keys are pulled
+   * from {@code keys} lazily and sent in RPCs bounded by {@code options},
+   * several of which may be in flight at once.  Each element of the returned
+   * iterator is the result of one RPC, in the order the keys were consumed;
+   * the entries of a chunk may be discarded as soon as they have been
+   * processed.  Keys are only sent as the iterator is consumed.
+   *
+   * @param keys the keys for which values should be retrieved
+   * @param options the limits to apply to each RPC
+   * @return an iterator over the per-RPC mappings from keys to values of any
+   *     entries found
+   * @throws IllegalArgumentException if an element of {@code keys} cannot be
+   *    used as a cache key.  This is thrown when the key is consumed, which
+   *    may be during a call to the returned iterator.
+   * @throws InvalidValueException for any error in deserializing the cache
+   *    value.
+   */
+  <T> Iterator<Map<T, Object>> getAllInBatches(Iterable<T> keys, MemcacheBatchOptions options);
+
+  /**
+   * A streaming variant of {@link #putAll(Map, Expiration, SetPolicy)}.
+   * Every entry of {@code entries} is sent before this method returns, in
+   * RPCs bounded by {@code options}, several of which may be in flight at
+   * once.
+   *
+   * @param entries the key/value mappings to add to the cache
+   * @param expires the expiration time for all {@code entries}, or
+   *    {@code null} for no time-based expiration.
+   * @param policy what to do if the entry is or is not already present
+   * @param options the limits to apply to each RPC
+   * @return the set of keys for which entries were created
+   * @throws IllegalArgumentException if the key or value type can't
+   *    be stored as a cache item.  They should be {@link Serializable}.
+   */
+  <T> Set<T> putAllInBatches(Iterable<? extends Map.Entry<T, ?>> entries,
+      Expiration expires, SetPolicy policy, MemcacheBatchOptions options);
+
+  /**
+   * A streaming variant of {@link #deleteAll(Collection, long)}.  Every key
+   * of {@code keys} is sent before this method returns, in RPCs bounded by
+   * {@code options}, several of which may be in flight at once.
+   *
+   * @param keys the keys to be deleted
+   * @param millisNoReAdd time during which calls to put using
+   *    {@link SetPolicy#ADD_ONLY_IF_NOT_PRESENT} should be denied.
+   * @param options the limits to apply to each RPC
+   * @return the set of keys deleted
+   * @throws IllegalArgumentException if the key can't be used in the cache
+   *    because it is not {@link Serializable}.
+   */
+  <T> Set<T> deleteAllInBatches(Iterable<T> keys, long millisNoReAdd,
+                                MemcacheBatchOptions options);
+}
@@ -0,0 +1,150 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * An {@link Iterator} over the per-RPC results of a streaming batch
+ * operation.  Inputs are pulled from the source lazily, encoded, and grouped
+ * into chunks that respect the {@link MemcacheBatchOptions} limits.  Up to
+ * {@link MemcacheBatchOptions#getMaxConcurrentRpcs()} chunks are in flight at
+ * any time; results are returned in the order their chunks were issued.
+ * <p>
+ * Writes, whose results are not streamed, instead send every chunk at once
+ * with {@link #sendAll()}.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <I> The type of the inputs.
+ * @param <E> The type of an encoded input.
+ * @param <R> The result of one chunk.
+ */
+abstract class ChunkedBatchIterator<I, E, R> implements Iterator<R> {
+
+  private final Iterator<? extends I> inputs;
+  private final MemcacheBatchOptions options;
+  private final LinkedList<Future<R>> inFlight = new LinkedList<Future<R>>();
+
+  /**
+   * An encoded input that did not fit in the previous chunk.
+   */
+  private E pending;
+
+  ChunkedBatchIterator(Iterator<? extends I> inputs, MemcacheBatchOptions options) {
+    this.inputs = inputs;
+    this.options = options;
+  }
+
+  /**
+   * Encodes {@code input}.  Errors caused by illegal inputs should be thrown
+   * from here so they surface to the caller directly.
+   */
+  protected abstract E encode(I input);
+
+  /**
+   * Returns the number of bytes {@code encoded} adds to an RPC.
+   */
+  protected abstract int encodedSize(E encoded);
+
+  /**
+   * Issues the RPC for one chunk.
+   */
+  protected abstract Future<R> send(List<E> chunk);
+
+  /**
+   * Issues the first chunks.  Called once the subclass is fully constructed.
+   */
+  ChunkedBatchIterator<I, E, R> start() {
+    fill();
+    return this;
+  }
+
+  private boolean hasMoreInput() {
+    return pending != null || inputs.hasNext();
+  }
+
+  private void fill() {
+    while (inFlight.size() < options.getMaxConcurrentRpcs() && hasMoreInput()) {
+      inFlight.add(sendNextChunk());
+    }
+  }
+
+  private Future<R> sendNextChunk() {
+    List<E> chunk = new ArrayList<E>();
+    int chunkSize = 0;
+    while (hasMoreInput()) {
+      E encoded = (pending != null) ? pending : encode(inputs.next());
+      pending = null;
+      int size = encodedSize(encoded);
+      if (options.exceedsLimits(chunk.size(), chunkSize, size)) {
+        pending = encoded;
+        break;
+      }
+      chunk.add(encoded);
+      chunkSize += size;
+    }
+    return send(chunk);
+  }
+
+  /**
+   * Sends every remaining chunk, waiting for the oldest RPC to complete
+   * whenever {@link MemcacheBatchOptions#getMaxConcurrentRpcs()} are in
+   * flight.  If the thread is interrupted, the remaining chunks are sent
+   * without waiting and the interrupt is restored.  Failures are left to
+   * the returned futures to report.
+   *
+   * @return the futures of all chunks not yet returned by {@link #next()},
+   *     in the order they were issued
+   */
+  List<Future<R>> sendAll() {
+    List<Future<R>> sent = new ArrayList<Future<R>>(inFlight);
+    boolean interrupted = false;
+    while (hasMoreInput()) {
+      if (!interrupted && inFlight.size() >= options.getMaxConcurrentRpcs()) {
+        try {
+          inFlight.removeFirst().get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+        }
+        continue;
+      }
+      Future<R> future = sendNextChunk();
+      inFlight.add(future);
+      sent.add(future);
+    }
+    inFlight.clear();
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return sent;
+  }
+
+  @Override
+  public boolean hasNext() {
+    fill();
+    return !inFlight.isEmpty();
+  }
+
+  @Override
+  public R next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    R result = MemcacheServiceImpl.quietGet(inFlight.removeFirst());
+    fill();
+    return result;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,348 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.protobuf.Message;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ValueCodec} that stores common App Engine values in a compact,
+ * tagged binary form instead of Java serialization:
+ * <ul>
+ * <li>{@link Entity}, as its datastore {@code EntityProto};</li>
+ * <li>complete {@link Key Keys}, as their websafe string form;</li>
+ * <li>protocol buffer {@link Message Messages}, as their class name and wire
+ *     form;</li>
+ * <li>{@link ArrayList}, {@link HashMap} and {@link LinkedHashMap} instances
+ *     whose elements are {@code null}, strings, boxed primitives,
+ *     {@code byte[]}, keys, or further such lists and maps.</li>
+ * </ul>
+ * Decoded collections have the same class as the encoded ones.  An entity
+ * is only encoded if decoding its {@code EntityProto} reproduces every
+ * property value exactly, so not one with {@code Integer}, {@code Short},
+ * {@code Byte} or {@code Float} values, which are read back as {@code Long}
+ * and {@code Double}, or with a multi-valued property that is empty or is
+ * not an {@link ArrayList}.  Lists and maps nested more than
+ * 100 deep, or that contain themselves, are not encoded.
+ * <p>
+ * Values written by this codec can always be read back; it only takes part
+ * in writes once registered with
+ * {@link MemcacheServiceFactory#registerValueCodec(ValueCodec)}.
+ *
+ */
+public final class CompactValueCodec implements ValueCodec {
+
+  /**
+   * The id of this codec.
+   */
+  public static final int ID = 1;
+
+  private static final String UTF8_CHARSET = "UTF-8";
+
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_STRING = 1;
+  private static final byte TAG_LONG = 2;
+  private static final byte TAG_INTEGER = 3;
+  private static final byte TAG_SHORT = 4;
+  private static final byte TAG_BYTE = 5;
+  private static final byte TAG_BOOLEAN = 6;
+  private static final byte TAG_DOUBLE = 7;
+  private static final byte TAG_FLOAT = 8;
+  private static final byte TAG_BYTES = 9;
+  private static final byte TAG_ARRAY_LIST = 10;
+  private static final byte TAG_HASH_MAP = 11;
+  private static final byte TAG_LINKED_HASH_MAP = 12;
+  private static final byte TAG_KEY = 13;
+  private static final byte TAG_ENTITY = 14;
+  private static final byte TAG_MESSAGE = 15;
+
+  /**
+   * The maximum nesting of lists and maps {@link #canEncode} accepts.
+   */
+  static final int MAX_DEPTH = 100;
+
+  @Override
+  public int getId() {
+    return ID;
+  }
+
+  @Override
+  public boolean canEncode(Object value) {
+    if (value instanceof Entity) {
+      return canEncodeEntity((Entity) value);
+    }
+    if (value instanceof Message) {
+      return true;
+    }
+    return canEncodeElement(value, new IdentityHashMap<Object, Boolean>());
+  }
+
+  /**
+   * Returns whether every property of {@code entity} is read back from its
+   * {@code EntityProto} with the same value and type.
+   */
+  private static boolean canEncodeEntity(Entity entity) {
+    for (Object value : entity.getProperties().values()) {
+      if (value instanceof Collection<?>) {
+        Collection<?> values = (Collection<?>) value;
+        if (value.getClass() != ArrayList.class || values.isEmpty()) {
+          return false;
+        }
+        for (Object element : values) {
+          if (!isExactPropertyValue(element)) {
+            return false;
+          }
+        }
+      } else if (!isExactPropertyValue(value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isExactPropertyValue(Object value) {
+    return !(value instanceof Integer || value instanceof Short || value instanceof Byte
+        || value instanceof Float);
+  }
+
+  /**
+   * @param ancestors the lists and maps that contain {@code value}
+   */
+  private static boolean canEncodeElement(Object value, Map<Object, Boolean> ancestors) {
+    if (value == null || value instanceof String || value instanceof Long
+        || value instanceof Integer || value instanceof Short || value instanceof Byte
+        || value instanceof Boolean || value instanceof Double || value instanceof Float
+        || value instanceof byte[]) {
+      return true;
+    }
+    if (value instanceof Key) {
+      return ((Key) value).isComplete();
+    }
+    boolean isList = value.getClass() == ArrayList.class;
+    boolean isMap = value.getClass() == HashMap.class || value.getClass() == LinkedHashMap.class;
+    if (!isList && !isMap) {
+      return false;
+    }
+    if (ancestors.size() >= MAX_DEPTH || ancestors.containsKey(value)) {
+      return false;
+    }
+    ancestors.put(value, Boolean.TRUE);
+    try {
+      if (isList) {
+        for (Object element : (List<?>) value) {
+          if (!canEncodeElement(element, ancestors)) {
+            return false;
+          }
+        }
+      } else {
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+          if (!canEncodeElement(entry.getKey(), ancestors)
+              || !canEncodeElement(entry.getValue(), ancestors)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    } finally {
+      ancestors.remove(value);
+    }
+  }
+
+  @Override
+  public byte[] encode(Object value) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    write(out, value);
+    out.close();
+    return baos.toByteArray();
+  }
+
+  @Override
+  public Object decode(byte[] bytes) throws IOException, ClassNotFoundException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    return read(in);
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Negative length: " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static void write(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(TAG_NULL);
+    } else if (value instanceof String) {
+      out.writeByte(TAG_STRING);
+      writeBytes(out, ((String) value).getBytes(UTF8_CHARSET));
+    } else if (value instanceof Long) {
+      out.writeByte(TAG_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(TAG_INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Short) {
+      out.writeByte(TAG_SHORT);
+      out.writeShort((Short) value);
+    } else if (value instanceof Byte) {
+      out.writeByte(TAG_BYTE);
+      out.writeByte((Byte) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(TAG_BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Double) {
+      out.writeByte(TAG_DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof Float) {
+      out.writeByte(TAG_FLOAT);
+      out.writeFloat((Float) value);
+    } else if (value instanceof byte[]) {
+      out.writeByte(TAG_BYTES);
+      writeBytes(out, (byte[]) value);
+    } else if (value instanceof Key) {
+      out.writeByte(TAG_KEY);
+      writeBytes(out, KeyFactory.keyToString((Key) value).getBytes(UTF8_CHARSET));
+    } else if (value instanceof Entity) {
+      out.writeByte(TAG_ENTITY);
+      writeBytes(out, EntityTranslator.convertToPb((Entity) value).toByteArray());
+    } else if (value instanceof Message) {
+      out.writeByte(TAG_MESSAGE);
+      writeBytes(out, value.getClass().getName().getBytes(UTF8_CHARSET));
+      writeBytes(out, ((Message) value).toByteArray());
+    } else if (value.getClass() == ArrayList.class) {
+      List<?> list = (List<?>) value;
+      out.writeByte(TAG_ARRAY_LIST);
+      out.writeInt(list.size());
+      for (Object element : list) {
+        write(out, element);
+      }
+    } else if (value.getClass() == HashMap.class || value.getClass() == LinkedHashMap.class) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.writeByte(value.getClass() == HashMap.class ? TAG_HASH_MAP : TAG_LINKED_HASH_MAP);
+      out.writeInt(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        write(out, entry.getKey());
+        write(out, entry.getValue());
+      }
+    } else {
+      throw new IOException("Cannot encode " + value.getClass());
+    }
+  }
+
+  private static Object read(DataInputStream in) throws IOException, ClassNotFoundException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case TAG_NULL:
+        return null;
+      case TAG_STRING:
+        return new String(readBytes(in), UTF8_CHARSET);
+      case TAG_LONG:
+        return in.readLong();
+      case TAG_INTEGER:
+        return in.readInt();
+      case TAG_SHORT:
+        return in.readShort();
+      case TAG_BYTE:
+        return in.readByte();
+      case TAG_BOOLEAN:
+        return in.readBoolean();
+      case TAG_DOUBLE:
+        return in.readDouble();
+      case TAG_FLOAT:
+        return in.readFloat();
+      case TAG_BYTES:
+        return readBytes(in);
+      case TAG_KEY:
+        return KeyFactory.stringToKey(new String(readBytes(in), UTF8_CHARSET));
+      case TAG_ENTITY: {
+        EntityProto proto = new EntityProto();
+        if (!proto.parseFrom(readBytes(in))) {
+          throw new IOException("Could not parse Entity");
+        }
+        return EntityTranslator.createFromPb(proto);
+      }
+      case TAG_MESSAGE:
+        return readMessage(new String(readBytes(in), UTF8_CHARSET), readBytes(in));
+      case TAG_ARRAY_LIST: {
+        int size = readSize(in);
+        List<Object> list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(read(in));
+        }
+        return list;
+      }
+      case TAG_HASH_MAP:
+      case TAG_LINKED_HASH_MAP: {
+        int size = readSize(in);
+        Map<Object, Object> map = (tag == TAG_HASH_MAP)
+            ? new HashMap<Object, Object>() : new LinkedHashMap<Object, Object>();
+        for (int i = 0; i < size; i++) {
+          Object key = read(in);
+          map.put(key, read(in));
+        }
+        return map;
+      }
+      default:
+        throw new IOException("Unknown tag: " + tag);
+    }
+  }
+
+  private static int readSize(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    if (size < 0) {
+      throw new IOException("Negative size: " + size);
+    }
+    return size;
+  }
+
+  /**
+   * Parses a message through the static {@code parseFrom(byte[])} method
+   * every generated message class provides.
+   */
+  private static Object readMessage(String className, byte[] bytes)
+      throws IOException, ClassNotFoundException {
+    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    if (loader == null) {
+      loader = CompactValueCodec.class.getClassLoader();
+    }
+    Class<?> messageClass = Class.forName(className, true, loader);
+    try {
+      Method parseFrom = messageClass.getMethod("parseFrom", byte[].class);
+      return parseFrom.invoke(null, bytes);
+    } catch (NoSuchMethodException ex) {
+      throw new IOException("No parseFrom(byte[]) on " + className, ex);
+    } catch (IllegalAccessException ex) {
+      throw new IOException("Cannot parse " + className, ex);
+    } catch (InvocationTargetException ex) {
+      throw new IOException("Cannot parse " + className, ex.getCause());
+    }
+  }
+}
@@ -0,0 +1,184 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+/**
+ * Describes how the streaming batch operations of
+ * {@link BatchingMemcacheService}, such as
+ * {@link BatchingMemcacheService#getAllInBatches}, split their input into
+ * RPCs.
+ * <p>
+ * {@code maxItemsPerRpc} is the maximum number of keys or values sent in a
+ * single RPC.
+ * <p>
+ * {@code maxRpcSizeBytes} is the maximum encoded size of a single RPC.  An
+ * item that is larger than this on its own is still sent, alone.
+ * <p>
+ * {@code maxConcurrentRpcs} is the maximum number of RPCs kept in flight,
+ * while the caller consumes the results of a streaming read or while a
+ * streaming write sends its input.  Together with the two limits above it
+ * bounds the memory the operation holds at any time.
+ * <p>
+ * Notes on usage:<br>
+ * The recommended way to instantiate a {@code MemcacheBatchOptions} object is
+ * to statically import {@link Builder}.* and invoke a static creation method
+ * followed by an instance mutator (if needed):
+ *
+ * <blockquote>
+ * <pre>
+ * import static com.google.appengine.api.memcache.MemcacheBatchOptions.Builder.*;
+ *
+ * ...
+ *
+ * memcache.putAllInBatches(values.entrySet(), null, SetPolicy.SET_ALWAYS,
+ *     withMaxItemsPerRpc(500).maxConcurrentRpcs(8));
+ * </pre>
+ * </blockquote>
+ *
+ */
+public final class MemcacheBatchOptions {
+
+  static final int DEFAULT_MAX_ITEMS_PER_RPC = 1000;
+
+  static final int DEFAULT_MAX_RPC_SIZE_BYTES = 1024 * 1024;
+
+  static final int DEFAULT_MAX_CONCURRENT_RPCS = 4;
+
+  private int maxItemsPerRpc = DEFAULT_MAX_ITEMS_PER_RPC;
+  private int maxRpcSizeBytes = DEFAULT_MAX_RPC_SIZE_BYTES;
+  private int maxConcurrentRpcs = DEFAULT_MAX_CONCURRENT_RPCS;
+
+  private MemcacheBatchOptions() {
+  }
+
+  /**
+   * Sets the maximum number of items per RPC.
+   * @param maxItemsPerRpc the limit to set
+   * @return {@code this} (for chaining)
+   * @throws IllegalArgumentException if maxItemsPerRpc is not greater than
+   * zero
+   */
+  public MemcacheBatchOptions maxItemsPerRpc(int maxItemsPerRpc) {
+    if (maxItemsPerRpc <= 0) {
+      throw new IllegalArgumentException("maxItemsPerRpc must be > 0, got " + maxItemsPerRpc);
+    }
+    this.maxItemsPerRpc = maxItemsPerRpc;
+    return this;
+  }
+
+  /**
+   * Sets the maximum encoded size of an RPC.
+   * @param maxRpcSizeBytes the limit to set
+   * @return {@code this} (for chaining)
+   * @throws IllegalArgumentException if maxRpcSizeBytes is not greater than
+   * zero
+   */
+  public MemcacheBatchOptions maxRpcSizeBytes(int maxRpcSizeBytes) {
+    if (maxRpcSizeBytes <= 0) {
+      throw new IllegalArgumentException("maxRpcSizeBytes must be > 0, got " + maxRpcSizeBytes);
+    }
+    this.maxRpcSizeBytes = maxRpcSizeBytes;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of RPCs in flight at once.
+   * @param maxConcurrentRpcs the limit to set
+   * @return {@code this} (for chaining)
+   * @throws IllegalArgumentException if maxConcurrentRpcs is not greater than
+   * zero
+   */
+  public MemcacheBatchOptions maxConcurrentRpcs(int maxConcurrentRpcs) {
+    if (maxConcurrentRpcs <= 0) {
+      throw new IllegalArgumentException("maxConcurrentRpcs must be > 0, got "
+          + maxConcurrentRpcs);
+    }
+    this.maxConcurrentRpcs = maxConcurrentRpcs;
+    return this;
+  }
+
+  /**
+   * @return The maximum number of items per RPC.
+   */
+  public int getMaxItemsPerRpc() {
+    return maxItemsPerRpc;
+  }
+
+  /**
+   * @return The maximum encoded size of an RPC.
+   */
+  public int getMaxRpcSizeBytes() {
+    return maxRpcSizeBytes;
+  }
+
+  /**
+   * @return The maximum number of RPCs in flight at once.
+   */
+  public int getMaxConcurrentRpcs() {
+    return maxConcurrentRpcs;
+  }
+
+  /**
+   * Returns {@code true} if an RPC already holding {@code itemCount} items
+   * and {@code sizeBytes} bytes cannot take another item of
+   * {@code itemSizeBytes} bytes.
+   */
+  boolean exceedsLimits(int itemCount, int sizeBytes, int itemSizeBytes) {
+    return itemCount > 0 &&
+        (itemCount >= maxItemsPerRpc || sizeBytes + itemSizeBytes > maxRpcSizeBytes);
+  }
+
+  @Override
+  public String toString() {
+    return "MemcacheBatchOptions [maxItemsPerRpc=" + maxItemsPerRpc
+        + ", maxRpcSizeBytes=" + maxRpcSizeBytes
+        + ", maxConcurrentRpcs=" + maxConcurrentRpcs + "]";
+  }
+
+  /**
+   * Contains static creation methods for {@link MemcacheBatchOptions}.
+   */
+  public static final class Builder {
+
+    /**
+     * Create a {@link MemcacheBatchOptions} with the given item limit.
+     * Shorthand for <code>MemcacheBatchOptions.withDefaults().maxItemsPerRpc(...);</code>
+     * @param maxItemsPerRpc the limit to set.
+     * @return The newly created MemcacheBatchOptions instance.
+     */
+    public static MemcacheBatchOptions withMaxItemsPerRpc(int maxItemsPerRpc) {
+      return withDefaults().maxItemsPerRpc(maxItemsPerRpc);
+    }
+
+    /**
+     * Create a {@link MemcacheBatchOptions} with the given size limit.
+     * Shorthand for <code>MemcacheBatchOptions.withDefaults().maxRpcSizeBytes(...);</code>
+     * @param maxRpcSizeBytes the limit to set.
+     * @return The newly created MemcacheBatchOptions instance.
+     */
+    public static MemcacheBatchOptions withMaxRpcSizeBytes(int maxRpcSizeBytes) {
+      return withDefaults().maxRpcSizeBytes(maxRpcSizeBytes);
+    }
+
+    /**
+     * Create a {@link MemcacheBatchOptions} with the given concurrency limit.
+     * Shorthand for <code>MemcacheBatchOptions.withDefaults().maxConcurrentRpcs(...);</code>
+     * @param maxConcurrentRpcs the limit to set.
+     * @return The newly created MemcacheBatchOptions instance.
+     */
+    public static MemcacheBatchOptions withMaxConcurrentRpcs(int maxConcurrentRpcs) {
+      return withDefaults().maxConcurrentRpcs(maxConcurrentRpcs);
+    }
+
+    /**
+     * Helper method for creating a {@link MemcacheBatchOptions} instance with
+     * default values.  The defaults are 1000 items and 1MB per RPC, with 4
+     * RPCs in flight.
+     */
+    public static MemcacheBatchOptions withDefaults() {
+      return new MemcacheBatchOptions();
+    }
+
+    private Builder() {}
+  }
+}
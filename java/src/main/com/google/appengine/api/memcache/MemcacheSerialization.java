@@ -7,13 +7,21 @@ import com.google.common.util.Base64;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Static serialization helpers shared by {@link MemcacheServiceImpl} and
@@ -36,7 +44,14 @@ public class MemcacheSerialization {
     LONG,
     BOOLEAN,
     BYTE,
-    SHORT;
+    SHORT,
+
+    /**
+     * The value was written by a {@link ValueCodec}, possibly compressed.
+     * The first byte is the codec id, the second holds option bits, and the
+     * encoded value follows.
+     */
+    CODEC;
 
     /**
      * While the enum is convenient, the implementation wants {@code int}s...
@@ -71,15 +86,94 @@ public class MemcacheSerialization {
   private static final String MYCLASSNAME = MemcacheSerialization.class.getName();
 
   /**
-   * The SHA1 checksum engine, cached for reuse.  We did test the hashing time
-   * was negligible (17us/kb, linear); we don't "need" crypto-secure, but it's
-   * a good way to minimize collisions.
+   * Codec id used for {@link Flag#CODEC} values holding plain Java
+   * serialization, which is how large {@link Flag#OBJECT} values are stored
+   * once compression is enabled.
    */
-  private static final MessageDigest SHA1;
+  private static final int JAVA_SERIALIZATION_CODEC_ID = 0;
+
+  /**
+   * Option bit set on {@link Flag#CODEC} values whose payload is deflated.
+   */
+  private static final int OPTION_DEFLATED = 0x1;
+
+  /**
+   * Codecs consulted by {@link #serialize}, in registration order.
+   */
+  private static final List<ValueCodec> encodingCodecs = new CopyOnWriteArrayList<ValueCodec>();
+
+  /**
+   * Codecs available to {@link #deserialize}, by id.  The SDK's own codecs
+   * are always present so their values can be read even by instances that
+   * do not write them.
+   */
+  private static final Map<Integer, ValueCodec> decodingCodecs =
+      new ConcurrentHashMap<Integer, ValueCodec>();
 
   static {
+    decodingCodecs.put(CompactValueCodec.ID, new CompactValueCodec());
+  }
+
+  /**
+   * Encoded values at least this many bytes long are deflated.  {@code 0}
+   * disables compression.
+   */
+  private static volatile int compressionThreshold = 0;
+
+  /**
+   * Largest serialized key whose buffer a thread keeps for reuse.
+   */
+  private static final int MAX_RETAINED_KEY_BUFFER = 16 * 1024;
+
+  /**
+   * A {@link ByteArrayOutputStream} whose contents can be hashed in place.
+   */
+  private static final class KeyBuffer extends ByteArrayOutputStream {
+    KeyBuffer() {
+      super(256);
+    }
+
+    void digestInto(MessageDigest digest) {
+      digest.update(buf, 0, count);
+    }
+
+    void release() {
+      if (buf.length > MAX_RETAINED_KEY_BUFFER) {
+        buf = new byte[256];
+      }
+      reset();
+    }
+  }
+
+  /**
+   * Per-thread state for {@link #makePbKey}: the SHA1 checksum engine and a
+   * reusable serialization buffer, so hashing needs neither a shared lock
+   * nor a fresh buffer per call.  We did test the hashing time was
+   * negligible (17us/kb, linear); we don't "need" crypto-secure, but it's a
+   * good way to minimize collisions.
+   */
+  private static final class KeyHasher {
+    final MessageDigest sha1 = newSha1();
+    final KeyBuffer buffer = new KeyBuffer();
+
+    /**
+     * Hashed enum keys.  Their serialized form only depends on the constant,
+     * so each is hashed once per thread.  Weak so that reloaded application
+     * classes can be collected.
+     */
+    final Map<Enum<?>, byte[]> enumKeys = new WeakHashMap<Enum<?>, byte[]>();
+  }
+
+  private static final ThreadLocal<KeyHasher> keyHasher = new ThreadLocal<KeyHasher>() {
+    @Override
+    protected KeyHasher initialValue() {
+      return new KeyHasher();
+    }
+  };
+
+  private static MessageDigest newSha1() {
     try {
-      SHA1 = MessageDigest.getInstance("SHA-1");
+      return MessageDigest.getInstance("SHA-1");
     } catch (NoSuchAlgorithmException ex) {
       Logger.getLogger(MYCLASSNAME).log(Level.SEVERE,
           "Can't load SHA-1 MessageDigest!", ex);
@@ -87,9 +181,53 @@ public class MemcacheSerialization {
     }
   }
 
+  static {
+    newSha1();
+  }
+
   private MemcacheSerialization() {
   }
 
+  /**
+   * Registers {@code codec} for both writing and reading values.  See
+   * {@link MemcacheServiceFactory#registerValueCodec(ValueCodec)}.
+   *
+   * @throws IllegalArgumentException if the codec id is out of range,
+   *    reserved, or already taken by a different codec
+   */
+  static synchronized void registerValueCodec(ValueCodec codec) {
+    int id = codec.getId();
+    if (id <= JAVA_SERIALIZATION_CODEC_ID || id > ValueCodec.MAX_ID) {
+      throw new IllegalArgumentException("Codec id out of range: " + id);
+    }
+    ValueCodec existing = decodingCodecs.get(id);
+    if (existing == null && id < ValueCodec.MIN_USER_ID) {
+      throw new IllegalArgumentException("Codec id " + id + " is reserved");
+    }
+    if (existing != null && existing.getClass() != codec.getClass()) {
+      throw new IllegalArgumentException("Codec id " + id + " is already used by "
+          + existing.getClass().getName());
+    }
+    decodingCodecs.put(id, codec);
+    for (ValueCodec registered : encodingCodecs) {
+      if (registered.getId() == id) {
+        encodingCodecs.remove(registered);
+      }
+    }
+    encodingCodecs.add(codec);
+  }
+
+  /**
+   * Sets the size at or above which encoded values are compressed.  See
+   * {@link MemcacheServiceFactory#setValueCompressionThreshold(int)}.
+   */
+  static void setCompressionThreshold(int bytes) {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Compression threshold must be >= 0: " + bytes);
+    }
+    compressionThreshold = bytes;
+  }
+
   /**
    * Deserialize the object, according to its flags.  This would have private
    * visibility, but is also used by LocalMemcacheService for the increment
@@ -148,11 +286,10 @@ public class MemcacheSerialization {
         if (value.length == 0) {
           return null;
         }
-        ByteArrayInputStream baos = new ByteArrayInputStream(value);
-        ObjectInputStream objIn = new ObjectInputStream(baos);
-        Object response = objIn.readObject();
-        objIn.close();
-        return response;
+        return javaDeserialize(value);
+
+      case CODEC:
+        return decode(value);
 
       default:
         assert false;
@@ -186,13 +323,52 @@ public class MemcacheSerialization {
       return (((Boolean) key) ? "true" : "false").getBytes(UTF8_CHARSET);
 
     } else {
-      ValueAndFlags vaf = serialize(key);
-      byte sha1hash[];
-      synchronized (SHA1) {
-        SHA1.update(vaf.value);
-        sha1hash = SHA1.digest();
+      return hashKey(key);
+    }
+  }
+
+  /**
+   * Returns the Base64-encoded SHA1 hash of the same bytes
+   * {@link #serialize} produced for {@code key} before codecs existed, so
+   * the result matches keys written by earlier versions.
+   */
+  private static byte[] hashKey(Object key) throws IOException {
+    KeyHasher hasher = keyHasher.get();
+    MessageDigest sha1 = hasher.sha1;
+    if (key instanceof String) {
+      sha1.update(((String) key).getBytes(UTF8_CHARSET));
+    } else if (key instanceof byte[]) {
+      sha1.update((byte[]) key);
+    } else if (key instanceof Enum) {
+      byte[] hashed = hasher.enumKeys.get(key);
+      if (hashed == null) {
+        javaSerialize(key, hasher);
+        hashed = Base64.encode(sha1.digest()).getBytes(UTF8_CHARSET);
+        hasher.enumKeys.put((Enum<?>) key, hashed);
       }
-      return Base64.encode(sha1hash).getBytes(UTF8_CHARSET);
+      return hashed.clone();
+    } else if (key instanceof Serializable) {
+      javaSerialize(key, hasher);
+    } else {
+      throw new IllegalArgumentException("can't accept " + key.getClass()
+          + " as a memcache entity");
+    }
+    return Base64.encode(sha1.digest()).getBytes(UTF8_CHARSET);
+  }
+
+  /**
+   * Java-serializes {@code key} into the thread's buffer and feeds it to the
+   * thread's digest.
+   */
+  private static void javaSerialize(Object key, KeyHasher hasher) throws IOException {
+    KeyBuffer buffer = hasher.buffer;
+    try {
+      ObjectOutputStream objOut = new ObjectOutputStream(buffer);
+      objOut.writeObject(key);
+      objOut.close();
+      buffer.digestInto(hasher.sha1);
+    } finally {
+      buffer.release();
     }
   }
 
@@ -205,6 +381,31 @@ public class MemcacheSerialization {
    */
   public static ValueAndFlags serialize(Object value)
       throws IOException {
+    if (value == null || value instanceof byte[] || value instanceof Boolean
+        || value instanceof Integer || value instanceof Long || value instanceof Byte
+        || value instanceof Short || value instanceof String) {
+      return serializeWithoutCodecs(value);
+    }
+    for (ValueCodec codec : encodingCodecs) {
+      if (codec.canEncode(value)) {
+        return new ValueAndFlags(frame(codec.getId(), codec.encode(value)), Flag.CODEC);
+      }
+    }
+    ValueAndFlags vaf = serializeWithoutCodecs(value);
+    int threshold = compressionThreshold;
+    if (vaf.flags == Flag.OBJECT && threshold > 0 && vaf.value.length >= threshold) {
+      return new ValueAndFlags(frame(JAVA_SERIALIZATION_CODEC_ID, vaf.value), Flag.CODEC);
+    }
+    return vaf;
+  }
+
+  /**
+   * Serializes {@code value} the way it has always been, ignoring registered
+   * codecs and compression.  Keys are hashed from this form so they do not
+   * change when codecs are registered.
+   */
+  private static ValueAndFlags serializeWithoutCodecs(Object value)
+      throws IOException {
     Flag flags;
     byte[] bytes;
 
@@ -252,4 +453,70 @@ public class MemcacheSerialization {
     }
     return new ValueAndFlags(bytes, flags);
   }
+
+  private static Object javaDeserialize(byte[] value)
+      throws ClassNotFoundException, IOException {
+    ByteArrayInputStream baos = new ByteArrayInputStream(value);
+    ObjectInputStream objIn = new ObjectInputStream(baos);
+    Object response = objIn.readObject();
+    objIn.close();
+    return response;
+  }
+
+  /**
+   * Prefixes {@code payload} with the {@link Flag#CODEC} header, deflating it
+   * first if it reaches the compression threshold and deflating helps.
+   */
+  private static byte[] frame(int codecId, byte[] payload) throws IOException {
+    int options = 0;
+    int threshold = compressionThreshold;
+    if (threshold > 0 && payload.length >= threshold) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(payload.length / 2);
+      DeflaterOutputStream deflater = new DeflaterOutputStream(baos);
+      deflater.write(payload);
+      deflater.close();
+      if (baos.size() < payload.length) {
+        payload = baos.toByteArray();
+        options |= OPTION_DEFLATED;
+      }
+    }
+    byte[] framed = new byte[payload.length + 2];
+    framed[0] = (byte) codecId;
+    framed[1] = (byte) options;
+    System.arraycopy(payload, 0, framed, 2, payload.length);
+    return framed;
+  }
+
+  /**
+   * Reverses {@link #frame} and decodes the payload with the codec named in
+   * the header.
+   */
+  private static Object decode(byte[] value) throws ClassNotFoundException, IOException {
+    if (value.length < 2) {
+      throw new InvalidValueException("Cannot deserialize codec value: bad length", null);
+    }
+    int codecId = value[0] & 0xff;
+    int options = value[1];
+    InputStream in = new ByteArrayInputStream(value, 2, value.length - 2);
+    if ((options & OPTION_DEFLATED) != 0) {
+      in = new InflaterInputStream(in);
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(value.length);
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      baos.write(buffer, 0, read);
+    }
+    in.close();
+    byte[] payload = baos.toByteArray();
+
+    if (codecId == JAVA_SERIALIZATION_CODEC_ID) {
+      return javaDeserialize(payload);
+    }
+    ValueCodec codec = decodingCodecs.get(codecId);
+    if (codec == null) {
+      throw new ClassNotFoundException("No ValueCodec registered with id " + codecId);
+    }
+    return codec.decode(payload);
+  }
 }
@@ -44,6 +44,135 @@ public class MemcacheServiceFactory {
     return new MemcacheServiceImpl(namespace);
   }
 
+  /**
+   * Gets a handle to the cache service that additionally offers the
+   * streaming operations of {@link BatchingMemcacheService}.  See
+   * {@link #getMemcacheService()}.
+   *
+   * @return a new {@code BatchingMemcacheService} instance.
+   */
+  public static BatchingMemcacheService getBatchingMemcacheService() {
+    return new MemcacheServiceImpl(null);
+  }
+
+  /**
+   * Gets a handle to the batching cache service, forcing use of specific
+   * namespace.  See {@link #getBatchingMemcacheService()} and
+   * {@link #getMemcacheService(String)}.
+   *
+   * @return a new {@code BatchingMemcacheService} instance.
+   */
+  public static BatchingMemcacheService getBatchingMemcacheService(String namespace) {
+    return new MemcacheServiceImpl(namespace);
+  }
+
+  /**
+   * Gets a handle to the cache service that additionally keeps a copy of
+   * every value it reads or writes for the duration of the current request.
+   * Repeated lookups of the same key within a request are then answered
+   * without an RPC.  Writes made through the returned service keep the copy
+   * in sync; writes made by other requests are not observed until the next
+   * request.  Values returned by the service are shared across those lookups
+   * and must not be modified.
+   *
+   * @return a new {@code RequestCachingMemcacheService} instance.
+   */
+  public static RequestCachingMemcacheService getRequestCachingMemcacheService() {
+    return new RequestCachingMemcacheServiceImpl(null);
+  }
+
+  /**
+   * Gets a handle to the request-caching cache service, forcing use of
+   * specific namespace.  See {@link #getRequestCachingMemcacheService()} and
+   * {@link #getMemcacheService(String)}.
+   *
+   * @return a new {@code RequestCachingMemcacheService} instance.
+   */
+  public static RequestCachingMemcacheService getRequestCachingMemcacheService(
+      String namespace) {
+    return new RequestCachingMemcacheServiceImpl(namespace);
+  }
+
+  /**
+   * Gets a handle to the asynchronous cache service.  The returned service
+   * uses the current namespace provided by
+   * {@link com.google.appengine.api.NamespaceManager#get()} for all
+   * operations.
+   *
+   * @return a new {@code AsyncMemcacheService} instance.
+   */
+  public static AsyncMemcacheService getAsyncMemcacheService() {
+    return new AsyncMemcacheServiceImpl(null);
+  }
+
+  /**
+   * Gets a handle to the asynchronous cache service, forcing use of specific
+   * namespace.  See {@link #getMemcacheService(String)} for how
+   * {@code namespace} is interpreted.
+   *
+   * @return a new {@code AsyncMemcacheService} instance.
+   */
+  public static AsyncMemcacheService getAsyncMemcacheService(String namespace) {
+    return new AsyncMemcacheServiceImpl(namespace);
+  }
+
+  /**
+   * Gets a handle to the asynchronous cache service that additionally offers
+   * the streaming operations of {@link AsyncBatchingMemcacheService}.  See
+   * {@link #getAsyncMemcacheService()}.
+   *
+   * @return a new {@code AsyncBatchingMemcacheService} instance.
+   */
+  public static AsyncBatchingMemcacheService getAsyncBatchingMemcacheService() {
+    return new AsyncMemcacheServiceImpl(null);
+  }
+
+  /**
+   * Gets a handle to the asynchronous batching cache service, forcing use of
+   * specific namespace.  See {@link #getMemcacheService(String)} for how
+   * {@code namespace} is interpreted.
+   *
+   * @return a new {@code AsyncBatchingMemcacheService} instance.
+   */
+  public static AsyncBatchingMemcacheService getAsyncBatchingMemcacheService(
+      String namespace) {
+    return new AsyncMemcacheServiceImpl(namespace);
+  }
+
+  /**
+   * Registers a {@link ValueCodec} used to store values that would otherwise
+   * be written with Java serialization, such as {@link CompactValueCodec}.
+   * The registration applies to every {@code MemcacheService} in this
+   * application instance.  Codecs are tried in registration order;
+   * registering a codec with the id of an already registered one of the
+   * same class replaces it.
+   * <p>
+   * Entries written through a codec can only be read by instances that have
+   * a codec with the same id, so register codecs before any application
+   * version that relies on them starts serving traffic.  Entries written
+   * before the codec was registered remain readable.
+   *
+   * @throws IllegalArgumentException if the codec's id is out of range,
+   *    reserved, or used by a different codec
+   */
+  public static void registerValueCodec(ValueCodec codec) {
+    MemcacheSerialization.registerValueCodec(codec);
+  }
+
+  /**
+   * Enables transparent compression of encoded values whose size is at least
+   * {@code bytes}, or disables it if {@code bytes} is {@code 0} (the
+   * default).  Applies to values written by a {@link ValueCodec} and to
+   * Java-serialized values; strings, numbers and {@code byte[]} values are
+   * stored as they are.  Compressed entries are read back regardless of the
+   * current setting.
+   *
+   * @throws IllegalArgumentException if {@code bytes} is negative
+   */
+  public static void setValueCompressionThreshold(int bytes) {
+    MemcacheSerialization.setCompressionThreshold(bytes);
+  }
+
   private MemcacheServiceFactory() {
   }
 }
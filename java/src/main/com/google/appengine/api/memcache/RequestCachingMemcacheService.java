@@ -0,0 +1,24 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+package com.google.appengine.api.memcache;
+
+/**
+ * A {@link BatchingMemcacheService} that keeps a copy of the values it reads
+ * and writes for the duration of the current request, available via
+ * {@link MemcacheServiceFactory#getRequestCachingMemcacheService()}.
+ *
+ */
+public interface RequestCachingMemcacheService extends BatchingMemcacheService {
+  /**
+   * The counter of {@link MemcacheService#get(Object)},
+   * {@link MemcacheService#getAll(java.util.Collection)} and
+   * {@link MemcacheService#contains(Object)} lookups answered from the
+   * request-scoped cache during the current request.
+   */
+  long getRequestCacheHitCount();
+
+  /**
+   * The counter of lookups that missed the request-scoped cache during the
+   * current request and had to be sent to the back end.
+   */
+  long getRequestCacheMissCount();
+}
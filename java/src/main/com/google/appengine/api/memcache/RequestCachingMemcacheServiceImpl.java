@@ -0,0 +1,505 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.memcache.AsyncMemcacheServiceImpl.CacheKey;
+import com.google.apphosting.api.ApiProxy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link MemcacheService} that keeps a request-scoped copy of the values it
+ * reads and writes, so repeated lookups of the same key within one request
+ * skip the RPC.
+ * <p>
+ * The copy lives in the attributes of the current
+ * {@link ApiProxy.Environment}, so it is shared by every caching service used
+ * by the request and discarded with it.  Entries are keyed by the effective
+ * namespace and the serialized key produced by
+ * {@link MemcacheSerialization#makePbKey}.  Writes made through this service
+ * update or invalidate the cached entry.  Writes made by other requests are
+ * not seen until the next request.
+ * <p>
+ * Cached values are shared: a value returned by {@link #get} or passed to
+ * {@link #put} must not be modified for the remainder of the request.
+ * <p>
+ * Calls made without an environment (for example on a thread the runtime did
+ * not start) bypass the cache.
+ *
+ */
+class RequestCachingMemcacheServiceImpl extends MemcacheServiceImpl
+    implements RequestCachingMemcacheService {
+
+  /**
+   * Attribute of the current {@link ApiProxy.Environment} that holds the
+   * {@link RequestCache}.
+   */
+  static final String REQUEST_CACHE_ATTRIBUTE =
+      RequestCachingMemcacheServiceImpl.class.getName() + ".request_cache";
+
+  /**
+   * Key of a cached entry: the namespace it was read from or written to,
+   * plus the serialized key.
+   */
+  private static final class EntryKey {
+    private final String namespace;
+    private final byte[] pbKey;
+    private final int hashcode;
+
+    EntryKey(String namespace, byte[] pbKey) {
+      this.namespace = namespace;
+      this.pbKey = pbKey;
+      this.hashcode = 31 * namespace.hashCode() + Arrays.hashCode(pbKey);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof EntryKey) {
+        EntryKey that = (EntryKey) other;
+        return namespace.equals(that.namespace) && Arrays.equals(pbKey, that.pbKey);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashcode;
+    }
+  }
+
+  /**
+   * The cached values and counters for one request.  Access is synchronized
+   * on the instance since a request may use the service from several threads.
+   */
+  static final class RequestCache {
+    private final Map<EntryKey, Object> values = new HashMap<EntryKey, Object>();
+    private long hits;
+    private long misses;
+
+    synchronized boolean contains(EntryKey key) {
+      return values.containsKey(key);
+    }
+
+    synchronized Object lookup(EntryKey key) {
+      return values.get(key);
+    }
+
+    synchronized void recordHit() {
+      hits++;
+    }
+
+    synchronized void recordMiss() {
+      misses++;
+    }
+
+    synchronized void store(EntryKey key, Object value) {
+      values.put(key, value);
+    }
+
+    synchronized void invalidate(EntryKey key) {
+      values.remove(key);
+    }
+
+    synchronized void clear() {
+      values.clear();
+    }
+
+    synchronized long getHits() {
+      return hits;
+    }
+
+    synchronized long getMisses() {
+      return misses;
+    }
+  }
+
+  RequestCachingMemcacheServiceImpl(String namespace) {
+    super(namespace);
+  }
+
+  /**
+   * Returns the cache for the current request, creating it if necessary, or
+   * {@code null} if there is no current environment.
+   */
+  private static RequestCache getRequestCache() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    if (environment == null) {
+      return null;
+    }
+    Map<String, Object> attributes = environment.getAttributes();
+    synchronized (attributes) {
+      RequestCache cache = (RequestCache) attributes.get(REQUEST_CACHE_ATTRIBUTE);
+      if (cache == null) {
+        cache = new RequestCache();
+        attributes.put(REQUEST_CACHE_ATTRIBUTE, cache);
+      }
+      return cache;
+    }
+  }
+
+  private static byte[] makePbKey(Object key) {
+    try {
+      return MemcacheSerialization.makePbKey(key);
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Cannot use as key: '" + key + "'", ex);
+    }
+  }
+
+  private EntryKey entryKey(byte[] pbKey) {
+    return new EntryKey(async.getEffectiveNamespace(), pbKey);
+  }
+
+  private EntryKey entryKey(Object key) {
+    return entryKey(makePbKey(key));
+  }
+
+  /**
+   * Discards all values cached by the current request.  Otherwise they are
+   * discarded with the request's environment.
+   */
+  void flushRequestCache() {
+    RequestCache cache = getRequestCache();
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
+  @Override
+  public boolean contains(Object key) {
+    RequestCache cache = getRequestCache();
+    if (cache == null) {
+      return super.contains(key);
+    }
+    if (cache.contains(entryKey(key))) {
+      cache.recordHit();
+      return true;
+    }
+    cache.recordMiss();
+    return super.contains(key);
+  }
+
+  @Override
+  public Object get(Object key) {
+    RequestCache cache = getRequestCache();
+    if (cache == null) {
+      return super.get(key);
+    }
+    byte[] pbKey = makePbKey(key);
+    EntryKey entryKey = entryKey(pbKey);
+    synchronized (cache) {
+      if (cache.contains(entryKey)) {
+        cache.recordHit();
+        return cache.lookup(entryKey);
+      }
+    }
+    cache.recordMiss();
+    Object value = quietGet(async.doGet(key, pbKey, false));
+    if (value != null) {
+      cache.store(entryKey, value);
+    }
+    return value;
+  }
+
+  @Override
+  public IdentifiableValue getIdentifiable(Object key) {
+    IdentifiableValue value = super.getIdentifiable(key);
+    RequestCache cache = getRequestCache();
+    if (cache != null) {
+      if (value != null) {
+        cache.store(entryKey(key), value.getValue());
+      } else {
+        cache.invalidate(entryKey(key));
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public <T> Map<T, Object> getAll(Collection<T> keys) {
+    RequestCache cache = getRequestCache();
+    if (cache == null) {
+      return super.getAll(keys);
+    }
+    String namespace = async.getEffectiveNamespace();
+    Map<T, Object> result = new HashMap<T, Object>();
+    Map<CacheKey, T> missing = new HashMap<CacheKey, T>();
+    Map<T, EntryKey> missingEntryKeys = new HashMap<T, EntryKey>();
+    for (T key : keys) {
+      byte[] pbKey = makePbKey(key);
+      EntryKey entryKey = new EntryKey(namespace, pbKey);
+      synchronized (cache) {
+        if (cache.contains(entryKey)) {
+          cache.recordHit();
+          result.put(key, cache.lookup(entryKey));
+          continue;
+        }
+      }
+      cache.recordMiss();
+      missing.put(new CacheKey(pbKey), key);
+      missingEntryKeys.put(key, entryKey);
+    }
+    if (missing.isEmpty()) {
+      return result;
+    }
+    Map<T, Object> fetched = quietGet(async.getAll(namespace, missing));
+    if (fetched == null) {
+      return null;
+    }
+    for (Map.Entry<T, Object> entry : fetched.entrySet()) {
+      cache.store(missingEntryKeys.get(entry.getKey()), entry.getValue());
+      result.put(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  @Override
+  public boolean put(Object key, Object value, Expiration expires, SetPolicy policy) {
+    boolean stored = super.put(key, value, expires, policy);
+    updateAfterWrite(key, value, stored);
+    return stored;
+  }
+
+  @Override
+  public boolean putIfUntouched(Object key, IdentifiableValue oldValue,
+                                Object newValue, Expiration expires) {
+    boolean stored = super.putIfUntouched(key, oldValue, newValue, expires);
+    updateAfterWrite(key, newValue, stored);
+    return stored;
+  }
+
+  @Override
+  public <T> Set<T> putAll(Map<T, ?> values, Expiration expires, SetPolicy policy) {
+    Set<T> stored = super.putAll(values, expires, policy);
+    RequestCache cache = getRequestCache();
+    if (cache != null) {
+      for (Map.Entry<T, ?> entry : values.entrySet()) {
+        updateAfterWrite(cache, entry.getKey(), entry.getValue(),
+            stored.contains(entry.getKey()));
+      }
+    }
+    return stored;
+  }
+
+  /**
+   * The entries are invalidated rather than updated, since the values are
+   * not kept while the entries stream through: each is dropped as it is
+   * sent, and again once every RPC has completed, as for
+   * {@link #delete(Object, long)}.
+   */
+  @Override
+  public <T> Set<T> putAllInBatches(
+      final Iterable<? extends Map.Entry<T, ?>> entries, Expiration expires,
+      SetPolicy policy, MemcacheBatchOptions options) {
+    final RequestCache cache = getRequestCache();
+    if (cache == null) {
+      return super.putAllInBatches(entries, expires, policy, options);
+    }
+    final List<EntryKey> sent = new ArrayList<EntryKey>();
+    Iterable<Map.Entry<T, ?>> invalidating = new Iterable<Map.Entry<T, ?>>() {
+      @Override
+      public Iterator<Map.Entry<T, ?>> iterator() {
+        return new InvalidatingIterator<Map.Entry<T, ?>>(cache, entries.iterator(), sent) {
+          @Override
+          Object keyOf(Map.Entry<T, ?> entry) {
+            return entry.getKey();
+          }
+        };
+      }
+    };
+    try {
+      return super.putAllInBatches(invalidating, expires, policy, options);
+    } finally {
+      invalidate(cache, sent);
+    }
+  }
+
+  /**
+   * Caches {@code value} if the write was applied.  Otherwise the back end
+   * holds a value we have not seen, so any cached entry is dropped.
+   */
+  private void updateAfterWrite(Object key, Object value, boolean stored) {
+    RequestCache cache = getRequestCache();
+    if (cache != null) {
+      updateAfterWrite(cache, key, value, stored);
+    }
+  }
+
+  private void updateAfterWrite(RequestCache cache, Object key, Object value, boolean stored) {
+    if (stored) {
+      cache.store(entryKey(key), value);
+    } else {
+      cache.invalidate(entryKey(key));
+    }
+  }
+
+  private void invalidate(Collection<?> keys) {
+    RequestCache cache = getRequestCache();
+    if (cache != null) {
+      for (Object key : keys) {
+        cache.invalidate(entryKey(key));
+      }
+    }
+  }
+
+  /**
+   * Entries are dropped both before the RPC and after it completes, so that
+   * a lookup made by another thread of the request while the RPC is in
+   * flight does not leave the old value cached.
+   */
+  @Override
+  public boolean delete(Object key, long millisNoReAdd) {
+    invalidate(Arrays.asList(key));
+    try {
+      return super.delete(key, millisNoReAdd);
+    } finally {
+      invalidate(Arrays.asList(key));
+    }
+  }
+
+  @Override
+  public <T> Set<T> deleteAll(Collection<T> keys, long millisNoReAdd) {
+    invalidate(keys);
+    try {
+      return super.deleteAll(keys, millisNoReAdd);
+    } finally {
+      invalidate(keys);
+    }
+  }
+
+  @Override
+  public <T> Set<T> deleteAllInBatches(final Iterable<T> keys, long millisNoReAdd,
+                                       MemcacheBatchOptions options) {
+    final RequestCache cache = getRequestCache();
+    if (cache == null) {
+      return super.deleteAllInBatches(keys, millisNoReAdd, options);
+    }
+    final List<EntryKey> sent = new ArrayList<EntryKey>();
+    Iterable<T> invalidating = new Iterable<T>() {
+      @Override
+      public Iterator<T> iterator() {
+        return new InvalidatingIterator<T>(cache, keys.iterator(), sent) {
+          @Override
+          Object keyOf(T key) {
+            return key;
+          }
+        };
+      }
+    };
+    try {
+      return super.deleteAllInBatches(invalidating, millisNoReAdd, options);
+    } finally {
+      invalidate(cache, sent);
+    }
+  }
+
+  private static void invalidate(RequestCache cache, List<EntryKey> entryKeys) {
+    for (EntryKey entryKey : entryKeys) {
+      cache.invalidate(entryKey);
+    }
+  }
+
+  /**
+   * Passes through the inputs of a streaming write, dropping the cached
+   * entry of each key as it is handed to the RPC layer and recording it in
+   * {@code sent}.  The namespace is captured on construction, like the
+   * streaming operation's own.
+   */
+  private abstract class InvalidatingIterator<I> implements Iterator<I> {
+    private final RequestCache cache;
+    private final Iterator<? extends I> delegate;
+    private final List<EntryKey> sent;
+    private final String namespace = async.getEffectiveNamespace();
+
+    InvalidatingIterator(RequestCache cache, Iterator<? extends I> delegate,
+        List<EntryKey> sent) {
+      this.cache = cache;
+      this.delegate = delegate;
+      this.sent = sent;
+    }
+
+    abstract Object keyOf(I input);
+
+    @Override
+    public boolean hasNext() {
+      return delegate.hasNext();
+    }
+
+    @Override
+    public I next() {
+      I input = delegate.next();
+      EntryKey entryKey = new EntryKey(namespace, makePbKey(keyOf(input)));
+      cache.invalidate(entryKey);
+      sent.add(entryKey);
+      return input;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * The stored value is rewritten by the back end, and may come back with a
+   * different type than the {@link Long} we are given, so the entry is
+   * dropped rather than updated, before and after the RPC as for
+   * {@link #delete(Object, long)}.
+   */
+  @Override
+  public Long increment(Object key, long delta, Long initialValue) {
+    invalidate(Arrays.asList(key));
+    try {
+      return super.increment(key, delta, initialValue);
+    } finally {
+      invalidate(Arrays.asList(key));
+    }
+  }
+
+  @Override
+  public <T> Map<T, Long> incrementAll(Collection<T> keys, long delta, Long initialValue) {
+    invalidate(keys);
+    try {
+      return super.incrementAll(keys, delta, initialValue);
+    } finally {
+      invalidate(keys);
+    }
+  }
+
+  @Override
+  public <T> Map<T, Long> incrementAll(Map<T, Long> offsets, Long initialValue) {
+    Set<T> keys = new HashSet<T>(offsets.keySet());
+    invalidate(keys);
+    try {
+      return super.incrementAll(offsets, initialValue);
+    } finally {
+      invalidate(keys);
+    }
+  }
+
+  @Override
+  public void clearAll() {
+    flushRequestCache();
+    super.clearAll();
+  }
+
+  @Override
+  public long getRequestCacheHitCount() {
+    RequestCache cache = getRequestCache();
+    return cache == null ? 0 : cache.getHits();
+  }
+
+  @Override
+  public long getRequestCacheMissCount() {
+    RequestCache cache = getRequestCache();
+    return cache == null ? 0 : cache.getMisses();
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import java.io.IOException;
+
+/**
+ * Encodes memcache values that would otherwise be stored with Java
+ * serialization.  Codecs are registered with
+ * {@link MemcacheServiceFactory#registerValueCodec(ValueCodec)} and are
+ * consulted, in registration order, for every value that is not a
+ * {@code byte[]}, {@code String}, {@code Boolean} or fixed-point number.
+ * The first codec whose {@link #canEncode} accepts the value encodes it.
+ * <p>
+ * Values are stored with the {@link MemcacheSerialization.Flag#CODEC} flag
+ * and tagged with the codec's {@link #getId() id}, so any application
+ * instance that has a codec with the same id registered can read them back.
+ * Instances without it treat such entries as undeserializable, which the
+ * {@link ErrorHandler} normally reports as a cache miss.
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ */
+public interface ValueCodec {
+
+  /**
+   * The lowest id available to application codecs.  Smaller ids are
+   * reserved for codecs provided by the SDK.
+   */
+  int MIN_USER_ID = 16;
+
+  /**
+   * The highest id a codec may use.
+   */
+  int MAX_ID = 255;
+
+  /**
+   * Returns the id stored with every value this codec encodes.  It must be
+   * unique among registered codecs and must never change once values have
+   * been written with it.
+   */
+  int getId();
+
+  /**
+   * Returns {@code true} if this codec can encode {@code value}.
+   */
+  boolean canEncode(Object value);
+
+  /**
+   * Encodes a value previously accepted by {@link #canEncode}.
+   *
+   * @throws IOException if the value cannot be encoded
+   */
+  byte[] encode(Object value) throws IOException;
+
+  /**
+   * Decodes bytes produced by {@link #encode}.
+   *
+   * @throws IOException if the bytes are malformed
+   * @throws ClassNotFoundException if the value refers to a class that is not
+   *    available to this application
+   */
+  Object decode(byte[] bytes) throws IOException, ClassNotFoundException;
+}
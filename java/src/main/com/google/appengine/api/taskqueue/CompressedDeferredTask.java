@@ -0,0 +1,214 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.taskqueue;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.apphosting.api.ApiProxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.Date;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link DeferredTask} holding another one in compressed form.  See
+ * {@link TaskOptions.DeferredTaskFormat#COMPRESSED}.
+ * <p>
+ * The compressed task is held either in this object or, if it is too large
+ * for a task, in a datastore entity whose key this object holds.  Since this
+ * class is itself an ordinary {@code DeferredTask}, its payload is decoded
+ * by any deferred task handler; {@link #run} inflates and runs the inner
+ * task and then deletes the entity, if any.
+ *
+ */
+final class CompressedDeferredTask implements DeferredTask {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The kind of the entities holding compressed tasks too large for a task.
+   */
+  static final String PAYLOAD_KIND = "__DeferredTaskPayload__";
+
+  static final String PAYLOAD_PROPERTY = "payload";
+
+  /**
+   * The property recording when a payload entity was written, so that
+   * entities left behind by tasks that were never added or never completed
+   * can be found.
+   */
+  static final String CREATED_PROPERTY = "created";
+
+  /**
+   * Room left in a task for its url and headers when deciding whether a
+   * compressed task fits.
+   */
+  static final int TASK_OVERHEAD_BYTES = 8 * 1024;
+
+  /**
+   * The compressed serialized task, or {@code null} if it is stored in the
+   * datastore.
+   */
+  private final byte[] compressedTask;
+
+  /**
+   * The key of the entity holding the compressed task, in the form returned
+   * by {@link KeyFactory#keyToString}, or {@code null}.
+   */
+  private final String payloadKey;
+
+  private CompressedDeferredTask(byte[] compressedTask, String payloadKey) {
+    this.compressedTask = compressedTask;
+    this.payloadKey = payloadKey;
+  }
+
+  /**
+   * Compresses {@code serializedTask}, writing it to the datastore, outside
+   * of any transaction, if it would not fit in a task.
+   *
+   * @param serializedTask a {@link DeferredTask} serialized with
+   * {@link java.io.ObjectOutputStream}
+   * @return the serialized wrapper to use as the payload of the task
+   * @throws DeferredTaskCreationException if the task could not be
+   * compressed or stored
+   */
+  static byte[] encode(byte[] serializedTask) {
+    byte[] compressed;
+    try {
+      ByteArrayOutputStream stream = new ByteArrayOutputStream(serializedTask.length / 2 + 64);
+      GZIPOutputStream gzipStream = new GZIPOutputStream(stream);
+      gzipStream.write(serializedTask);
+      gzipStream.close();
+      compressed = stream.toByteArray();
+    } catch (IOException e) {
+      throw new DeferredTaskCreationException(e);
+    }
+
+    byte[] payload = TaskOptions.serialize(new CompressedDeferredTask(compressed, null));
+    if (payload.length <= QueueConstants.maxPushTaskSizeBytes() - TASK_OVERHEAD_BYTES) {
+      return payload;
+    }
+
+    Entity entity = new Entity(PAYLOAD_KIND);
+    entity.setUnindexedProperty(PAYLOAD_PROPERTY, new Blob(compressed));
+    entity.setProperty(CREATED_PROPERTY, new Date());
+    Key key;
+    try {
+      key = getDatastoreService().put((Transaction) null, entity);
+    } catch (RuntimeException e) {
+      throw new DeferredTaskCreationException(e);
+    }
+    return TaskOptions.serialize(new CompressedDeferredTask(null, KeyFactory.keyToString(key)));
+  }
+
+  /**
+   * Inflates and runs the inner task.  The entity holding it, if any, is
+   * deleted once the task has succeeded, or has failed and asked not to be
+   * retried.
+   */
+  @Override
+  public void run() {
+    DeferredTask task = decode();
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      if (isDoNotRetrySet()) {
+        deleteStoredPayload();
+      }
+      throw e;
+    }
+    deleteStoredPayload();
+  }
+
+  private DeferredTask decode() {
+    byte[] compressed = compressedTask;
+    if (compressed == null) {
+      try {
+        Entity entity = getDatastoreService().get(KeyFactory.stringToKey(payloadKey));
+        compressed = ((Blob) entity.getProperty(PAYLOAD_PROPERTY)).getBytes();
+      } catch (EntityNotFoundException e) {
+        throw new DeferredTaskDecodingException("Deferred task payload not found", e);
+      }
+    }
+    try {
+      ObjectInputStream objectStream = new ContextClassLoaderObjectInputStream(
+          new GZIPInputStream(new ByteArrayInputStream(compressed)));
+      try {
+        return (DeferredTask) objectStream.readObject();
+      } finally {
+        objectStream.close();
+      }
+    } catch (IOException e) {
+      throw new DeferredTaskDecodingException("Unable to decode deferred task", e);
+    } catch (ClassNotFoundException e) {
+      throw new DeferredTaskDecodingException("Unable to decode deferred task", e);
+    }
+  }
+
+  private void deleteStoredPayload() {
+    if (payloadKey != null) {
+      getDatastoreService().delete((Transaction) null, KeyFactory.stringToKey(payloadKey));
+    }
+  }
+
+  private static boolean isDoNotRetrySet() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    if (environment == null) {
+      return false;
+    }
+    Map<String, Object> attributes = environment.getAttributes();
+    return Boolean.TRUE.equals(attributes.get(DeferredTaskContext.DEFERRED_DO_NOT_RETRY_KEY));
+  }
+
+  private static DatastoreService getDatastoreService() {
+    return DatastoreServiceFactory.getDatastoreService();
+  }
+
+  /**
+   * Thrown by {@link CompressedDeferredTask#run} if the inner task cannot be
+   * decoded.
+   */
+  static final class DeferredTaskDecodingException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    DeferredTaskDecodingException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  /**
+   * Resolves classes with the context class loader of the current thread,
+   * which is the application's, before falling back to the default.
+   */
+  private static final class ContextClassLoaderObjectInputStream extends ObjectInputStream {
+    ContextClassLoaderObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+        throws IOException, ClassNotFoundException {
+      ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+      if (classLoader != null) {
+        try {
+          return Class.forName(desc.getName(), false, classLoader);
+        } catch (ClassNotFoundException e) {
+          // Fall through to super.resolveClass, which uses the default loader.
+        }
+      }
+      return super.resolveClass(desc);
+    }
+  }
+}
@@ -0,0 +1,398 @@
+// Copyright 2011 Google Inc. All rights reserved.
+package com.google.appengine.api.taskqueue;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Consumes the tasks of a pull {@link Queue} with a fixed number of threads.
+ * <p>
+ * Tasks are leased in batches of {@code leaseBatchSize}.  The next batch is
+ * leased while the current one is being processed, so at most two batches
+ * are held at any time.  A task whose {@link TaskProcessor} returns normally
+ * is deleted from the queue; deletions are collected and sent in calls of up
+ * to {@link QueueConstants#maxTasksPerDelete()} tasks.  A task whose
+ * processor throws has its lease released so that it can be leased again.
+ * <p>
+ * The lease of every task that has not yet been deleted is extended by
+ * another {@code leaseTime} once less than half of it remains, so a slow
+ * task is not leased by another worker while it is still being processed.
+ * <p>
+ * The worker must be started from a thread that has an API environment,
+ * such as the thread of a request or a thread on which the remote API is
+ * installed.  The environment of that thread is used by all of the worker's
+ * threads.  App Engine frontends cannot start threads with this SDK, so the
+ * worker cannot be used there.
+ * <p>
+ * Notes on usage:<br>
+ *
+ * <blockquote>
+ * <pre>
+ * PullQueueWorker worker = new PullQueueWorker(queue, processor)
+ *     .leaseTime(5, TimeUnit.MINUTES)
+ *     .numThreads(8);
+ * worker.start();
+ * ...
+ * worker.stop();
+ * </pre>
+ * </blockquote>
+ *
+ */
+public final class PullQueueWorker {
+
+  private static final Logger logger = Logger.getLogger(PullQueueWorker.class.getName());
+
+  /**
+   * Processes the tasks leased by a {@link PullQueueWorker}.
+   * Implementations must be threadsafe.
+   */
+  public interface TaskProcessor {
+    /**
+     * Processes {@code task}.  If this method returns normally the task is
+     * deleted from the queue.
+     *
+     * @param task a task leased from the queue
+     * @throws Exception if the task could not be processed.  Its lease is
+     * released so that it can be leased again.
+     */
+    void process(TaskHandle task) throws Exception;
+  }
+
+  static final long DEFAULT_LEASE_MILLIS = 60 * 1000;
+
+  static final int DEFAULT_LEASE_BATCH_SIZE = 100;
+
+  static final int DEFAULT_NUM_THREADS = 4;
+
+  static final long DEFAULT_IDLE_POLL_MILLIS = 1000;
+
+  static final long DELETE_INTERVAL_MILLIS = 200;
+
+  private final Queue queue;
+  private final TaskProcessor processor;
+
+  private long leaseMillis = DEFAULT_LEASE_MILLIS;
+  private int leaseBatchSize = DEFAULT_LEASE_BATCH_SIZE;
+  private int numThreads = DEFAULT_NUM_THREADS;
+  private long idlePollMillis = DEFAULT_IDLE_POLL_MILLIS;
+  private ThreadFactory threadFactory = Executors.defaultThreadFactory();
+
+  /**
+   * Leased tasks that have not yet been processed, by name.  A task is
+   * removed, and its lease extended, while holding the lock on the task, so
+   * that a lease is never extended once processing has finished.
+   */
+  private final ConcurrentMap<String, TaskHandle> leasedTasks =
+      new ConcurrentHashMap<String, TaskHandle>();
+
+  /**
+   * Processed tasks waiting to be deleted.
+   */
+  private final BlockingQueue<TaskHandle> tasksToDelete = new LinkedBlockingQueue<TaskHandle>();
+
+  /**
+   * One permit for every task that may be leased without exceeding two
+   * batches.
+   */
+  private Semaphore capacity;
+  private ExecutorService processors;
+  private ScheduledExecutorService housekeeper;
+  private Thread leaser;
+  private ApiProxy.Environment environment;
+  private volatile boolean started = false;
+  private volatile boolean stopping = false;
+
+  /**
+   * @param queue The pull queue to consume.
+   * @param processor The processor to apply to each task.
+   */
+  public PullQueueWorker(Queue queue, TaskProcessor processor) {
+    if (queue == null) {
+      throw new NullPointerException("queue must not be null");
+    }
+    if (processor == null) {
+      throw new NullPointerException("processor must not be null");
+    }
+    this.queue = queue;
+    this.processor = processor;
+  }
+
+  /**
+   * Sets the lease period requested for each task.  The default is one
+   * minute.
+   * @param lease Number of {@code unit}s in the lease period
+   * @param unit Time unit of the lease period
+   * @return {@code this} (for chaining)
+   * @throws IllegalArgumentException if the lease period is not positive or
+   * is longer than {@link QueueConstants#maxLease}
+   */
+  public PullQueueWorker leaseTime(long lease, TimeUnit unit) {
+    checkNotStarted();
+    long leaseMillis = unit.toMillis(lease);
+    if (leaseMillis <= 0 || leaseMillis > QueueConstants.maxLease(TimeUnit.MILLISECONDS)) {
+      throw new IllegalArgumentException("lease time must be > 0 and <= "
+          + QueueConstants.maxLease(TimeUnit.MILLISECONDS) + "ms, got " + leaseMillis + "ms");
+    }
+    this.leaseMillis = leaseMillis;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of tasks leased by a single call.  The default
+   * is 100.
+   * @param leaseBatchSize the limit to set
+   * @return {@code this} (for chaining)
+   * @throws IllegalArgumentException if leaseBatchSize is not positive or is
+   * greater than {@link QueueConstants#maxLeaseCount()}
+   */
+  public PullQueueWorker leaseBatchSize(int leaseBatchSize) {
+    checkNotStarted();
+    if (leaseBatchSize <= 0 || leaseBatchSize > QueueConstants.maxLeaseCount()) {
+      throw new IllegalArgumentException("leaseBatchSize must be > 0 and <= "
+          + QueueConstants.maxLeaseCount() + ", got " + leaseBatchSize);
+    }
+    this.leaseBatchSize = leaseBatchSize;
+    return this;
+  }
+
+  /**
+   * Sets the number of threads that process tasks.  The default is 4.
+   * @param numThreads the number of threads
+   * @return {@code this} (for chaining)
+   * @throws IllegalArgumentException if numThreads is not greater than zero
+   */
+  public PullQueueWorker numThreads(int numThreads) {
+    checkNotStarted();
+    if (numThreads <= 0) {
+      throw new IllegalArgumentException("numThreads must be > 0, got " + numThreads);
+    }
+    this.numThreads = numThreads;
+    return this;
+  }
+
+  /**
+   * Sets how long to wait before leasing again after the queue was found to
+   * be empty.  The default is one second.
+   * @param idlePoll Number of {@code unit}s to wait
+   * @param unit Time unit of the wait
+   * @return {@code this} (for chaining)
+   * @throws IllegalArgumentException if the wait is negative
+   */
+  public PullQueueWorker idlePollInterval(long idlePoll, TimeUnit unit) {
+    checkNotStarted();
+    if (idlePoll < 0) {
+      throw new IllegalArgumentException("idlePoll must be >= 0, got " + idlePoll);
+    }
+    this.idlePollMillis = unit.toMillis(idlePoll);
+    return this;
+  }
+
+  /**
+   * Sets the factory used to create the threads of this worker.  The
+   * default is {@link Executors#defaultThreadFactory()}.
+   * @param threadFactory the factory to use
+   * @return {@code this} (for chaining)
+   */
+  public PullQueueWorker threadFactory(ThreadFactory threadFactory) {
+    checkNotStarted();
+    if (threadFactory == null) {
+      throw new NullPointerException("threadFactory must not be null");
+    }
+    this.threadFactory = threadFactory;
+    return this;
+  }
+
+  private void checkNotStarted() {
+    if (started) {
+      throw new IllegalStateException("PullQueueWorker has already been started");
+    }
+  }
+
+  /**
+   * Starts leasing and processing tasks.
+   * @throws IllegalStateException if this worker has already been started, or
+   * if the current thread has no API environment
+   */
+  public synchronized void start() {
+    checkNotStarted();
+    environment = ApiProxy.getCurrentEnvironment();
+    if (environment == null) {
+      throw new IllegalStateException(
+          "PullQueueWorker must be started from a thread with an API environment");
+    }
+    started = true;
+
+    capacity = new Semaphore(2 * leaseBatchSize);
+    processors = Executors.newFixedThreadPool(numThreads, threadFactory);
+    housekeeper = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    housekeeper.scheduleWithFixedDelay(withEnvironment(new Runnable() {
+      @Override
+      public void run() {
+        deleteProcessedTasks();
+      }
+    }), DELETE_INTERVAL_MILLIS, DELETE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    long extendIntervalMillis = Math.max(1, leaseMillis / 4);
+    housekeeper.scheduleWithFixedDelay(withEnvironment(new Runnable() {
+      @Override
+      public void run() {
+        extendLeases();
+      }
+    }), extendIntervalMillis, extendIntervalMillis, TimeUnit.MILLISECONDS);
+
+    leaser = threadFactory.newThread(withEnvironment(new Runnable() {
+      @Override
+      public void run() {
+        leaseTasks();
+      }
+    }));
+    leaser.start();
+  }
+
+  /**
+   * Returns a {@link Runnable} that installs the environment this worker was
+   * started with on the current thread before running {@code runnable}.
+   */
+  private Runnable withEnvironment(final Runnable runnable) {
+    final ApiProxy.Environment environment = this.environment;
+    return new Runnable() {
+      @Override
+      public void run() {
+        ApiProxy.setEnvironmentForCurrentThread(environment);
+        runnable.run();
+      }
+    };
+  }
+
+  /**
+   * Stops leasing tasks, waits for the tasks already leased to be processed
+   * and deletes the ones that succeeded.
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized void stop() throws InterruptedException {
+    if (!started || stopping) {
+      return;
+    }
+    stopping = true;
+    leaser.interrupt();
+    leaser.join();
+    processors.shutdown();
+    processors.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    housekeeper.shutdown();
+    housekeeper.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    deleteProcessedTasks();
+  }
+
+  /**
+   * Leases batches of tasks until stopped, staying at most one batch ahead
+   * of the processors.
+   */
+  private void leaseTasks() {
+    while (!stopping) {
+      try {
+        capacity.acquire(leaseBatchSize);
+      } catch (InterruptedException e) {
+        return;
+      }
+      List<TaskHandle> tasks;
+      try {
+        tasks = queue.leaseTasks(leaseMillis, TimeUnit.MILLISECONDS, leaseBatchSize);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to lease tasks from " + queue.getQueueName(), e);
+        tasks = Collections.emptyList();
+      }
+      capacity.release(leaseBatchSize - tasks.size());
+      for (final TaskHandle task : tasks) {
+        leasedTasks.put(task.getName(), task);
+        processors.execute(withEnvironment(new Runnable() {
+          @Override
+          public void run() {
+            process(task);
+          }
+        }));
+      }
+      if (tasks.isEmpty()) {
+        try {
+          Thread.sleep(idlePollMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  private void process(TaskHandle task) {
+    boolean succeeded = false;
+    try {
+      processor.process(task);
+      succeeded = true;
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Failed to process task " + task.getName(), e);
+    } finally {
+      synchronized (task) {
+        leasedTasks.remove(task.getName());
+      }
+      capacity.release();
+    }
+    if (succeeded) {
+      tasksToDelete.add(task);
+    } else {
+      try {
+        queue.modifyTaskLease(task, 0, TimeUnit.MILLISECONDS);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to release the lease of task " + task.getName(), e);
+      }
+    }
+  }
+
+  /**
+   * Deletes every processed task, in calls of at most
+   * {@link QueueConstants#maxTasksPerDelete()} tasks.
+   */
+  private void deleteProcessedTasks() {
+    List<TaskHandle> batch = new ArrayList<TaskHandle>();
+    while (tasksToDelete.drainTo(batch, QueueConstants.maxTasksPerDelete()) > 0) {
+      try {
+        queue.deleteTask(batch);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to delete " + batch.size() + " tasks from "
+            + queue.getQueueName(), e);
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Extends the lease of every unprocessed task with less than half of its
+   * lease period remaining.
+   */
+  private void extendLeases() {
+    long threshold = System.currentTimeMillis() + leaseMillis / 2;
+    for (TaskHandle task : leasedTasks.values()) {
+      synchronized (task) {
+        if (leasedTasks.get(task.getName()) != task || task.getEtaMillis() >= threshold) {
+          continue;
+        }
+        try {
+          queue.modifyTaskLease(task, leaseMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Failed to extend the lease of task " + task.getName(), e);
+        }
+      }
+    }
+  }
+}
@@ -3,6 +3,7 @@ package com.google.appengine.api.taskqueue;
 
 import com.google.appengine.api.datastore.Transaction;
 
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.List;
 
@@ -138,6 +139,73 @@ public interface Queue {
    */
   List<TaskHandle> add(Transaction txn, Iterable<TaskOptions> taskOptions);
 
+  /**
+   * Asynchronously submits a task to this queue.
+   * See {@link #add(TaskOptions)}.
+   * @param taskOptions The definition of the task.
+   * @return A {@code Future} with a result type of {@link TaskHandle}.
+   * The exceptions listed for {@link #add(TaskOptions)} are thrown, wrapped
+   * in an {@link java.util.concurrent.ExecutionException}, by its
+   * {@code get} methods.
+   */
+  Future<TaskHandle> addAsync(TaskOptions taskOptions);
+
+  /**
+   * Asynchronously submits tasks to this queue.
+   * See {@link #add(Iterable)}.
+   * The tasks are sent in a single call, which this method does not wait
+   * for.  To add more than {@link QueueConstants#maxTasksPerAdd()} tasks use
+   * {@link #addAllAsync(Iterable)}, which blocks while it issues its calls.
+   * @param taskOptions An iterable over task definitions.
+   * @return A {@code Future} whose result is a list containing a
+   * {@link TaskHandle} for each added task.
+   */
+  Future<List<TaskHandle>> addAsync(Iterable<TaskOptions> taskOptions);
+
+  /**
+   * Asynchronously submits a task to this queue in the provided Transaction.
+   * See {@link #add(Transaction, TaskOptions)}.
+   * If {@code txn} is not null the task is added before this method returns,
+   * so that the add is part of the transaction when it commits.
+   * @param txn an enclosing {@link Transaction} or null, if not null a task cannot be named.
+   * @param taskOptions The definition of the task.
+   * @return A {@code Future} with a result type of {@link TaskHandle}.
+   */
+  Future<TaskHandle> addAsync(Transaction txn, TaskOptions taskOptions);
+
+  /**
+   * Asynchronously submits tasks to this queue in the provided Transaction.
+   * See {@link #add(Transaction, Iterable)}.
+   * If {@code txn} is not null the tasks are added before this method
+   * returns, so that the add is part of the transaction when it commits.
+   * @param txn an enclosing {@link Transaction} or null, if not null a task cannot be named.
+   * @param taskOptions An iterable over task definitions.
+   * @return A {@code Future} whose result is a list containing a
+   * {@link TaskHandle} for each added task.
+   */
+  Future<List<TaskHandle>> addAsync(Transaction txn, Iterable<TaskOptions> taskOptions);
+
+  /**
+   * Asynchronously submits any number of tasks to this queue, outside of any
+   * transaction.  The tasks are split into calls of at most
+   * {@link QueueConstants#maxTasksPerAdd()} tasks, at most 8 of which are
+   * outstanding at once.  Every call is issued before this method returns,
+   * so it blocks until all but the last 8 calls have completed: adding
+   * {@code 8 * maxTasksPerAdd()} tasks or fewer does not block, while larger
+   * adds hold the caller for the round trips of their earlier calls, even if
+   * the calling thread is interrupted.
+   * A failed call does not prevent the following ones from being issued.
+   * Submission is not atomic i.e. if the {@code Future} fails then some tasks
+   * may have been added to the queue.
+   * @param taskOptions An iterable over task definitions.
+   * @return A {@code Future} whose result is a list containing a
+   * {@link TaskHandle} for each added task, in the order of
+   * {@code taskOptions}.
+   * @throws IllegalArgumentException If a task is invalid, or two tasks share
+   * a name.
+   */
+  Future<List<TaskHandle>> addAllAsync(Iterable<TaskOptions> taskOptions);
+
   /**
    * Deletes a task from this {@link Queue}. Task is identified by taskName.
    * @param taskName name of the task to delete.
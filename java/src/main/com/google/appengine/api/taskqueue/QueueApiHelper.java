@@ -4,9 +4,12 @@ package com.google.appengine.api.taskqueue;
 import com.google.appengine.api.datastore.DatastoreApiHelper;
 import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueServiceError;
 import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueServiceError.ErrorCode;
+import com.google.appengine.api.utils.FutureWrapper;
 import com.google.apphosting.api.ApiProxy;
 import com.google.io.protocol.ProtocolMessage;
 
+import java.util.concurrent.Future;
+
 /**
  * Provides translation of calls between userland and appserver land.
  *
@@ -28,6 +31,31 @@ class QueueApiHelper {
     }
   }
 
+  <T extends ProtocolMessage<T>> Future<T> makeAsyncCall(
+      String method,
+      ProtocolMessage<?> request,
+      final T response) {
+    Future<byte[]> responseBytes = ApiProxy.makeAsyncCall(
+        PACKAGE, method, request.toByteArray(), new ApiProxy.ApiConfig());
+    return new FutureWrapper<byte[], T>(responseBytes) {
+      @Override
+      protected T wrap(byte[] bytes) {
+        if (bytes != null) {
+          response.mergeFrom(bytes);
+        }
+        return response;
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        if (cause instanceof ApiProxy.ApplicationException) {
+          return translateError((ApiProxy.ApplicationException) cause);
+        }
+        return cause;
+      }
+    };
+  }
+
   static RuntimeException translateError(int error, String detail) {
     ErrorCode errorCode = TaskQueueServiceError.ErrorCode.valueOf(error);
 
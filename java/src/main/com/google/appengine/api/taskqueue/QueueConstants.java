@@ -98,6 +98,14 @@ public final class QueueConstants {
     return MAX_TASKS_PER_ADD;
   }
 
+  /**
+   * Returns the maximum number of tasks that may be deleted in a single
+   * delete call.
+   */
+  public static int maxTasksPerDelete() {
+    return MAX_TASKS_PER_DELETE;
+  }
+
   /**
    * Returns the maximum URL length.
    */
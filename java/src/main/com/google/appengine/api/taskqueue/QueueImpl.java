@@ -20,11 +20,18 @@ import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueQueryAndOwnTasksR
 import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueQueryAndOwnTasksResponse;
 import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueRetryParameters;
 import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueServiceError;
+import com.google.appengine.api.utils.FutureWrapper;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -51,6 +58,13 @@ class QueueImpl implements Queue {
   static final String DEFAULT_NAMESPACE_HEADER = "X-AppEngine-Default-Namespace";
   static final String CURRENT_NAMESPACE_HEADER = "X-AppEngine-Current-Namespace";
 
+  /**
+   * The maximum number of {@code BulkAdd} calls {@link #addAllAsync} keeps
+   * outstanding at once.  Before issuing another call beyond this limit it
+   * waits for the oldest one to complete.
+   */
+  static final int MAX_BULK_ADDS_IN_FLIGHT = 8;
+
   QueueImpl(String queueName, QueueApiHelper apiHelper) {
     QueueApiHelper.validateQueueName(queueName);
 
@@ -385,10 +399,111 @@ class QueueImpl implements Queue {
   public List<TaskHandle> add(com.google.appengine.api.datastore.Transaction txn,
       Iterable<TaskOptions> taskOptions) {
     List<TaskOptions> taskOptionsList = new ArrayList<TaskOptions>();
+    TaskQueueBulkAddRequest bulkAddRequest =
+        buildBulkAddRequest(txn, taskOptions, taskOptionsList, new HashSet<String>());
+    TaskQueueBulkAddResponse bulkAddResponse = new TaskQueueBulkAddResponse();
+
+    apiHelper.makeSyncCall("BulkAdd", bulkAddRequest, bulkAddResponse);
+
+    return processBulkAddResponse(bulkAddRequest, bulkAddResponse, taskOptionsList);
+  }
+
+  /**
+   * See {@link Queue#addAsync(TaskOptions)}.
+   */
+  public Future<TaskHandle> addAsync(TaskOptions taskOptions) {
+    return addAsync(getDatastoreService().getCurrentTransaction(null), taskOptions);
+  }
+
+  /**
+   * See {@link Queue#addAsync(Iterable)}.
+   */
+  public Future<List<TaskHandle>> addAsync(Iterable<TaskOptions> taskOptions) {
+    return addAsync(getDatastoreService().getCurrentTransaction(null), taskOptions);
+  }
+
+  /**
+   * See {@link
+   * Queue#addAsync(com.google.appengine.api.datastore.Transaction, TaskOptions)}.
+   */
+  public Future<TaskHandle> addAsync(com.google.appengine.api.datastore.Transaction txn,
+      TaskOptions taskOptions) {
+    Future<List<TaskHandle>> future = addAsync(txn, Collections.singletonList(taskOptions));
+    return new FutureWrapper<List<TaskHandle>, TaskHandle>(future) {
+      @Override
+      protected TaskHandle wrap(List<TaskHandle> tasks) {
+        return tasks.get(0);
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        return cause;
+      }
+    };
+  }
+
+  /**
+   * See {@link
+   * Queue#addAsync(com.google.appengine.api.datastore.Transaction, Iterable)}.
+   */
+  public Future<List<TaskHandle>> addAsync(
+      final com.google.appengine.api.datastore.Transaction txn,
+      final Iterable<TaskOptions> taskOptions) {
+    if (txn != null) {
+      FutureTask<List<TaskHandle>> future = new FutureTask<List<TaskHandle>>(
+          new Callable<List<TaskHandle>>() {
+            @Override
+            public List<TaskHandle> call() {
+              return add(txn, taskOptions);
+            }
+          });
+      future.run();
+      return future;
+    }
+    List<TaskOptions> taskOptionsList = new ArrayList<TaskOptions>();
+    TaskQueueBulkAddRequest bulkAddRequest =
+        buildBulkAddRequest(txn, taskOptions, taskOptionsList, new HashSet<String>());
+    return sendBulkAdd(bulkAddRequest, taskOptionsList);
+  }
+
+  /**
+   * See {@link Queue#addAllAsync(Iterable)}.
+   */
+  public Future<List<TaskHandle>> addAllAsync(Iterable<TaskOptions> taskOptions) {
+    List<TaskOptions> chunk = new ArrayList<TaskOptions>();
+    List<List<TaskOptions>> chunks = new ArrayList<List<TaskOptions>>();
+    for (TaskOptions option : taskOptions) {
+      chunk.add(option);
+      if (chunk.size() == QueueConstants.maxTasksPerAdd()) {
+        chunks.add(chunk);
+        chunk = new ArrayList<TaskOptions>();
+      }
+    }
+    if (!chunk.isEmpty() || chunks.isEmpty()) {
+      chunks.add(chunk);
+    }
+
     Set<String> taskNames = new HashSet<String>();
+    List<TaskQueueBulkAddRequest> bulkAddRequests =
+        new ArrayList<TaskQueueBulkAddRequest>(chunks.size());
+    for (List<TaskOptions> taskOptionsList : chunks) {
+      bulkAddRequests.add(buildBulkAddRequest(null, taskOptionsList, null, taskNames));
+    }
+    return new BulkAddFuture(bulkAddRequests, chunks);
+  }
 
+  /**
+   * Validates {@code taskOptions} and builds the request that adds them.
+   *
+   * @param taskOptionsList if not {@code null}, receives each element of
+   * {@code taskOptions} in order
+   * @param taskNames the names of tasks already in the same logical add;
+   * names from {@code taskOptions} are added to it
+   */
+  private TaskQueueBulkAddRequest buildBulkAddRequest(
+      com.google.appengine.api.datastore.Transaction txn, Iterable<TaskOptions> taskOptions,
+      List<TaskOptions> taskOptionsList, Set<String> taskNames) {
     TaskQueueBulkAddRequest bulkAddRequest = new TaskQueueBulkAddRequest();
-    TaskQueueBulkAddResponse bulkAddResponse = new TaskQueueBulkAddResponse();
 
     boolean hasPushTask = false;
     boolean hasPullTask = false;
@@ -401,7 +516,9 @@ class QueueImpl implements Queue {
         hasPushTask = true;
       }
 
-      taskOptionsList.add(option);
+      if (taskOptionsList != null) {
+        taskOptionsList.add(option);
+      }
       if (option.getTaskName() != null && !option.getTaskName().equals("")) {
         if (!taskNames.add(option.getTaskName())) {
           throw new IllegalArgumentException(
@@ -428,9 +545,36 @@ class QueueImpl implements Queue {
               QueueConstants.maxTransactionalRequestSizeBytes(),
               bulkAddRequest.encodingSize()));
     }
+    return bulkAddRequest;
+  }
 
-    apiHelper.makeSyncCall("BulkAdd", bulkAddRequest, bulkAddResponse);
+  /**
+   * Issues {@code bulkAddRequest} without waiting for it to complete.
+   */
+  private Future<List<TaskHandle>> sendBulkAdd(final TaskQueueBulkAddRequest bulkAddRequest,
+      final List<TaskOptions> taskOptionsList) {
+    Future<TaskQueueBulkAddResponse> response =
+        apiHelper.makeAsyncCall("BulkAdd", bulkAddRequest, new TaskQueueBulkAddResponse());
+    return new FutureWrapper<TaskQueueBulkAddResponse, List<TaskHandle>>(response) {
+      @Override
+      protected List<TaskHandle> wrap(TaskQueueBulkAddResponse bulkAddResponse) {
+        return processBulkAddResponse(bulkAddRequest, bulkAddResponse, taskOptionsList);
+      }
 
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        return cause;
+      }
+    };
+  }
+
+  /**
+   * Builds a {@link TaskHandle} for each task added by {@code bulkAddRequest}.
+   *
+   * @throws RuntimeException translated from the first task that failed
+   */
+  private List<TaskHandle> processBulkAddResponse(TaskQueueBulkAddRequest bulkAddRequest,
+      TaskQueueBulkAddResponse bulkAddResponse, List<TaskOptions> taskOptionsList) {
     if (bulkAddResponse.taskResultSize() != bulkAddRequest.addRequestSize()) {
         throw new InternalFailureException(
             String.format("expected %d results from BulkAdd(), got %d",
@@ -459,6 +603,135 @@ class QueueImpl implements Queue {
     return tasks;
   }
 
+  /**
+   * The result of {@link #addAllAsync(Iterable)}.  Every {@code BulkAdd}
+   * call is issued by the constructor, which waits for the oldest
+   * outstanding call whenever {@link #MAX_BULK_ADDS_IN_FLIGHT} are
+   * outstanding, so no call depends on the caller using this future.  An
+   * interrupt does not lift that limit: the constructor keeps waiting and
+   * restores the interrupt status before returning.  A
+   * failed call does not stop the following ones.  Results are merged in
+   * the order of the input.
+   */
+  private final class BulkAddFuture implements Future<List<TaskHandle>> {
+    private final List<Future<List<TaskHandle>>> sent;
+    private final List<TaskHandle> tasks = new ArrayList<TaskHandle>();
+    private int numCollected = 0;
+    private ExecutionException failure;
+    private boolean cancelled = false;
+
+    BulkAddFuture(List<TaskQueueBulkAddRequest> bulkAddRequests,
+        List<List<TaskOptions>> taskOptionsLists) {
+      this.sent = new ArrayList<Future<List<TaskHandle>>>(bulkAddRequests.size());
+      boolean interrupted = false;
+      for (int i = 0; i < bulkAddRequests.size(); i++) {
+        while (sent.size() - numCollected >= MAX_BULK_ADDS_IN_FLIGHT) {
+          try {
+            collectNext(-1);
+          } catch (InterruptedException e) {
+            interrupted = true;
+          } catch (TimeoutException e) {
+            throw new AssertionError(e);
+          }
+        }
+        sent.add(sendBulkAdd(bulkAddRequests.get(i), taskOptionsLists.get(i)));
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * Waits for the oldest call whose result has not been collected, and
+     * records its tasks or its failure.
+     *
+     * @param timeoutMillis how long to wait, or a negative value to wait
+     * until the call completes
+     */
+    private void collectNext(long timeoutMillis)
+        throws InterruptedException, TimeoutException {
+      Future<List<TaskHandle>> future = sent.get(numCollected);
+      try {
+        tasks.addAll(timeoutMillis < 0
+            ? future.get() : future.get(timeoutMillis, TimeUnit.MILLISECONDS));
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+      numCollected++;
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+      if (isDone()) {
+        return false;
+      }
+      for (Future<List<TaskHandle>> future : sent) {
+        future.cancel(mayInterruptIfRunning);
+      }
+      cancelled = true;
+      return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+      if (cancelled) {
+        return true;
+      }
+      for (int i = numCollected; i < sent.size(); i++) {
+        if (!sent.get(i).isDone()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public synchronized List<TaskHandle> get()
+        throws InterruptedException, ExecutionException {
+      while (numCollected < sent.size()) {
+        checkNotCancelled();
+        try {
+          collectNext(-1);
+        } catch (TimeoutException e) {
+          throw new AssertionError(e);
+        }
+      }
+      return getResult();
+    }
+
+    @Override
+    public synchronized List<TaskHandle> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long deadlineMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+      while (numCollected < sent.size()) {
+        checkNotCancelled();
+        collectNext(Math.max(0, deadlineMillis - System.currentTimeMillis()));
+      }
+      return getResult();
+    }
+
+    private List<TaskHandle> getResult() throws ExecutionException {
+      checkNotCancelled();
+      if (failure != null) {
+        throw failure;
+      }
+      return tasks;
+    }
+
+    private void checkNotCancelled() {
+      if (cancelled) {
+        throw new CancellationException();
+      }
+    }
+  }
+
   long currentTimeMillis() {
     return System.currentTimeMillis();
   }
@@ -72,6 +72,25 @@ public final class TaskOptions implements Serializable {
     }
   }
 
+  /**
+   * Payload formats for {@link DeferredTask DeferredTasks}.
+   * See {@link TaskOptions#payload(DeferredTask, DeferredTaskFormat)}.
+   */
+  public enum DeferredTaskFormat {
+    /**
+     * The task is serialized with {@link ObjectOutputStream}.
+     */
+    SERIALIZED,
+
+    /**
+     * The serialized task is compressed with gzip and wrapped in another
+     * {@code DeferredTask} that inflates and runs it, so the payload is
+     * handled like any other deferred task.  If it is still too large for a
+     * task, it is stored in the datastore and the wrapper holds only its key.
+     */
+    COMPRESSED
+  }
+
   /**
    * Params are currently immutable and need to remain that way to avoid the need to clone them
    * in the TaskOptions copy constructor.
@@ -294,15 +313,49 @@ public final class TaskOptions implements Serializable {
    * @throws DeferredTaskCreationException if there was an IOException serializing object.
    */
   public TaskOptions payload(DeferredTask deferredTask) {
-    ByteArrayOutputStream stream = new ByteArrayOutputStream(1024);
-    ObjectOutputStream objectStream = null;
-    try {
-      objectStream = new ObjectOutputStream(stream);
-      objectStream.writeObject(deferredTask);
-    } catch (IOException e) {
-      throw new DeferredTaskCreationException(e);
+    return payload(deferredTask, DeferredTaskFormat.SERIALIZED);
+  }
+
+  /**
+   * Sets the payload to the encoded form of the deferredTask object.  With
+   * {@link DeferredTaskFormat#SERIALIZED} this is the same as
+   * {@link #payload(DeferredTask)}.
+   *
+   * <p>With {@link DeferredTaskFormat#COMPRESSED} the payload is a
+   * {@code DeferredTask} holding the compressed serialized task, which any
+   * deferred task handler can run.  A task that is still larger than
+   * {@link QueueConstants#maxPushTaskSizeBytes()} allows is written to a
+   * {@code __DeferredTaskPayload__} datastore entity, outside of any
+   * transaction, when this method is called, and the payload holds only its
+   * key.  The entity is deleted once the task has run successfully, or has
+   * failed after calling {@link DeferredTaskContext#setDoNotRetry}.  It is
+   * left behind if the task is never added (for example because the add
+   * fails, its transaction is rolled back or a task with the same name
+   * exists) or runs out of retries; such entities have a {@code created}
+   * property and can be deleted once they are older than any task that
+   * could still refer to them.
+   *
+   * @param deferredTask The object to serialize into the payload.
+   * @param format The format of the payload.
+   * @throws IllegalArgumentException if {@code format} is null
+   * @throws DeferredTaskCreationException if there was an IOException
+   * serializing object, or the payload could not be stored.
+   */
+  public TaskOptions payload(DeferredTask deferredTask, DeferredTaskFormat format) {
+    if (format == null) {
+      throw new IllegalArgumentException("format must not be null");
+    }
+    byte[] serialized = serialize(deferredTask);
+    switch (format) {
+      case SERIALIZED:
+        payload = serialized;
+        break;
+      case COMPRESSED:
+        payload = CompressedDeferredTask.encode(serialized);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown deferred task format: " + format);
     }
-    payload = stream.toByteArray();
     if (getMethod() != Method.PULL) {
       header("content-type", DeferredTaskContext.RUNNABLE_TASK_CONTENT_TYPE);
       method(Method.POST);
@@ -313,6 +366,22 @@ public final class TaskOptions implements Serializable {
     return this;
   }
 
+  /**
+   * Returns the serialized form of {@code deferredTask}.
+   * @throws DeferredTaskCreationException if serialization fails
+   */
+  static byte[] serialize(DeferredTask deferredTask) {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream(1024);
+    try {
+      ObjectOutputStream objectStream = new ObjectOutputStream(stream);
+      objectStream.writeObject(deferredTask);
+      objectStream.close();
+    } catch (IOException e) {
+      throw new DeferredTaskCreationException(e);
+    }
+    return stream.toByteArray();
+  }
+
   /**
    * Sets the payload from a {@link String} given a specific character set.
    * @throws UnsupportedTranslationException
@@ -624,6 +693,14 @@ public final class TaskOptions implements Serializable {
       return withDefaults().payload(deferredTask);
     }
 
+    /**
+     * Returns default {@link TaskOptions} and calls
+     * {@link TaskOptions#payload(DeferredTask, DeferredTaskFormat)}.
+     */
+    public static TaskOptions withPayload(DeferredTask deferredTask, DeferredTaskFormat format) {
+      return withDefaults().payload(deferredTask, format);
+    }
+
     /**
      * Returns default {@link TaskOptions} and calls {@link TaskOptions#payload(byte[], String)}.
      */
@@ -2,8 +2,13 @@
 
 package com.google.appengine.api.urlfetch;
 
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -15,6 +20,8 @@ import java.util.List;
  *
  */
 public class HTTPRequest implements Serializable {
+  static final long serialVersionUID = 4069969865174319805L;
+
   private final HTTPMethod method;
   private final URL url;
   private final LinkedHashMap<String,HTTPHeader> headers;
@@ -26,6 +33,13 @@ public class HTTPRequest implements Serializable {
    */
   private byte[] payload = null;
 
+  /**
+   * The payload of this request if it was set with
+   * {@link #setPayload(ByteBuffer)} and has not been copied into
+   * {@link #payload} yet, otherwise null.
+   */
+  private transient ByteBuffer payloadBuffer = null;
+
   /**
    * Creates a {@code HTTPRequest} that represents a GET request to
    * the specified URL.
@@ -75,6 +89,12 @@ public class HTTPRequest implements Serializable {
    * will return null.
    */
   public byte[] getPayload() {
+    if (payloadBuffer != null) {
+      ByteBuffer buffer = payloadBuffer.duplicate();
+      payload = new byte[buffer.remaining()];
+      buffer.get(payload);
+      payloadBuffer = null;
+    }
     return payload;
   }
 
@@ -84,6 +104,31 @@ public class HTTPRequest implements Serializable {
    */
   public void setPayload(byte[] payload) {
     this.payload = payload;
+    this.payloadBuffer = null;
+  }
+
+  /**
+   * Sets the payload for this request to the remaining bytes of
+   * {@code payload}.  The bytes are read when the request is fetched, so
+   * the buffer must not be modified until then; its position is not
+   * changed.  Unlike {@link #setPayload(byte[])}, this does not require the
+   * payload to be copied into an array first.  This method should not be
+   * called for certain HTTP methods (e.g. GET).
+   */
+  public void setPayload(ByteBuffer payload) {
+    this.payload = null;
+    this.payloadBuffer = payload == null ? null : payload.duplicate();
+  }
+
+  /**
+   * Returns the payload as a {@code ByteString}, copying it only once, or
+   * null if there is no payload.
+   */
+  ByteString getPayloadAsByteString() {
+    if (payloadBuffer != null) {
+      return ByteString.copyFrom(payloadBuffer.duplicate());
+    }
+    return payload == null ? null : ByteString.copyFrom(payload);
   }
 
   /**
@@ -126,4 +171,9 @@ public class HTTPRequest implements Serializable {
   public FetchOptions getFetchOptions() {
     return fetchOptions;
   }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    getPayload();
+    out.defaultWriteObject();
+  }
 }
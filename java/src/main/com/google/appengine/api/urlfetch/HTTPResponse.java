@@ -2,8 +2,15 @@
 
 package com.google.appengine.api.urlfetch;
 
+import com.google.protobuf.ByteString;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.net.URL;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -19,6 +26,13 @@ public class HTTPResponse implements Serializable {
   private final int responseCode;
   private final List<HTTPHeader> headers;
   private byte[] content;
+
+  /**
+   * The content as received from the service, or null if there is no
+   * content or it was set as an array.  {@link #content} is only filled
+   * from it when {@link #getContent} is called.
+   */
+  private transient ByteString contentString;
   private URL finalUrl;
 
   HTTPResponse(int responseCode) {
@@ -40,9 +54,36 @@ public class HTTPResponse implements Serializable {
    * content present (e.g. in a HEAD request).
    */
   public byte[] getContent() {
+    if (content == null && contentString != null) {
+      content = contentString.toByteArray();
+    }
     return content;
   }
 
+  /**
+   * Returns a read-only view of the content of the request, or null if
+   * there is no content present (e.g. in a HEAD request).  Unlike
+   * {@link #getContent}, this does not copy the content.
+   */
+  public ByteBuffer getContentAsByteBuffer() {
+    if (contentString != null) {
+      return contentString.asReadOnlyByteBuffer();
+    }
+    return content == null ? null : ByteBuffer.wrap(content).asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns a stream reading the content of the request, or null if there
+   * is no content present (e.g. in a HEAD request).  Unlike
+   * {@link #getContent}, this does not copy the content.
+   */
+  public InputStream getContentAsStream() {
+    if (contentString != null) {
+      return contentString.newInput();
+    }
+    return content == null ? null : new ByteArrayInputStream(content);
+  }
+
   /**
    * Returns the final URL the content came from if redirects were followed
    * automatically in the request, if different than the input URL; otherwise
@@ -68,9 +109,20 @@ public class HTTPResponse implements Serializable {
 
   void setContent(byte[] content) {
     this.content = content;
+    this.contentString = null;
+  }
+
+  void setContent(ByteString content) {
+    this.content = null;
+    this.contentString = content;
   }
 
   void setFinalUrl(URL finalUrl) {
     this.finalUrl = finalUrl;
   }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    getContent();
+    out.defaultWriteObject();
+  }
 }
@@ -126,9 +126,9 @@ class URLFetchServiceImpl implements URLFetchService {
     URLFetchRequest.Builder requestProto = URLFetchRequest.newBuilder();
     requestProto.setUrl(request.getURL().toExternalForm());
 
-    byte[] payload = request.getPayload();
+    ByteString payload = request.getPayloadAsByteString();
     if (payload != null) {
-      requestProto.setPayload(ByteString.copyFrom(payload));
+      requestProto.setPayload(payload);
     }
 
     switch(request.getMethod()) {
@@ -177,7 +177,7 @@ class URLFetchServiceImpl implements URLFetchService {
   private HTTPResponse convertFromPb(URLFetchResponse responseProto) {
     HTTPResponse response = new HTTPResponse(responseProto.getStatusCode());
     if (responseProto.hasContent()) {
-      response.setContent(responseProto.getContent().toByteArray());
+      response.setContent(responseProto.getContent());
     }
 
     for (Header header : responseProto.getHeaderList()) {
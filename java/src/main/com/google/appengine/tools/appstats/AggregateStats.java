@@ -0,0 +1,243 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.tools.appstats;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The calls made during one window of time, by rpc and by request path. This
+ * is the form in which aggregates are merged into memcache.
+ * <p>
+ * This class is not thread-safe.
+ *
+ */
+class AggregateStats implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The name under which calls to rpcs or paths that are not counted
+   * separately are counted.
+   */
+  static final String OTHER = "(other)";
+
+  /**
+   * The number of buckets holding latencies below {@link #LINEAR_LIMIT}
+   * milliseconds, one per millisecond.
+   */
+  private static final int LINEAR_LIMIT = 16;
+
+  /**
+   * The number of buckets each power of two above {@link #LINEAR_LIMIT} is
+   * divided into, which bounds the error of a percentile to 1/8th.
+   */
+  private static final int SUB_BUCKET_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * Latencies of {@code 2^MAX_EXPONENT} milliseconds and above share the last
+   * bucket.
+   */
+  private static final int MAX_EXPONENT = 24;
+
+  static final int BUCKET_COUNT =
+      LINEAR_LIMIT + (MAX_EXPONENT - Integer.numberOfTrailingZeros(LINEAR_LIMIT)) * SUB_BUCKETS;
+
+  /**
+   * Returns the bucket holding a latency of {@code millis}.
+   */
+  static int bucketIndex(long millis) {
+    if (millis < LINEAR_LIMIT) {
+      return (int) Math.max(0, millis);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(millis);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    int subBucket = (int) (millis >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_LIMIT
+        + (exponent - Integer.numberOfTrailingZeros(LINEAR_LIMIT)) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Returns the largest latency, in milliseconds, held by bucket
+   * {@code index}.
+   */
+  static long bucketUpperBound(int index) {
+    if (index < LINEAR_LIMIT) {
+      return index;
+    }
+    int offset = index - LINEAR_LIMIT;
+    int exponent = Integer.numberOfTrailingZeros(LINEAR_LIMIT) + offset / SUB_BUCKETS;
+    int subBucket = offset % SUB_BUCKETS;
+    long lowerBound = (1L << exponent) + ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+    return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+
+  /**
+   * The calls made to one rpc or request path.
+   */
+  static class Entry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long count;
+    private long mcycles;
+    private final long[] buckets = new long[BUCKET_COUNT];
+
+    /**
+     * Adds {@code count} calls with a latency in bucket {@code index}.
+     */
+    void add(int index, long count) {
+      buckets[index] += count;
+      this.count += count;
+    }
+
+    void addMcycles(long mcycles) {
+      this.mcycles += mcycles;
+    }
+
+    void merge(Entry other) {
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        buckets[i] += other.buckets[i];
+      }
+      count += other.count;
+      mcycles += other.mcycles;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    long getMcycles() {
+      return mcycles;
+    }
+
+    long getBucket(int index) {
+      return buckets[index];
+    }
+
+    /**
+     * Returns the latency, in milliseconds, below which {@code percentile}
+     * percent of the calls completed, overestimated by at most 1/8th.
+     */
+    long getPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(count * percentile / 100.0);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += buckets[i];
+        if (seen >= rank && buckets[i] > 0) {
+          return bucketUpperBound(i);
+        }
+      }
+      return bucketUpperBound(BUCKET_COUNT - 1);
+    }
+  }
+
+  private final long windowStartMillis;
+  private final HashMap<String, Entry> rpcs = new HashMap<String, Entry>();
+  private final HashMap<String, Entry> paths = new HashMap<String, Entry>();
+
+  AggregateStats(long windowStartMillis) {
+    this.windowStartMillis = windowStartMillis;
+  }
+
+  long getWindowStartMillis() {
+    return windowStartMillis;
+  }
+
+  /**
+   * @return the calls by service call name, such as {@code datastore_v3.Get}
+   */
+  Map<String, Entry> getRpcs() {
+    return rpcs;
+  }
+
+  /**
+   * @return the requests by path, prefixed by the HTTP method unless it is GET
+   */
+  Map<String, Entry> getPaths() {
+    return paths;
+  }
+
+  boolean isEmpty() {
+    return rpcs.isEmpty() && paths.isEmpty();
+  }
+
+  Entry getRpc(String name) {
+    return getEntry(rpcs, name);
+  }
+
+  Entry getPath(String name) {
+    return getEntry(paths, name);
+  }
+
+  /**
+   * Adds the calls of {@code other}, regardless of its window, to this one.
+   */
+  void merge(AggregateStats other) {
+    mergeEntries(rpcs, other.rpcs);
+    mergeEntries(paths, other.paths);
+  }
+
+  /**
+   * Keeps the {@code maxEntries - 1} rpcs, and paths, with the most calls,
+   * and counts the calls to the others under {@link #OTHER}.
+   */
+  void trim(int maxEntries) {
+    trimEntries(rpcs, maxEntries);
+    trimEntries(paths, maxEntries);
+  }
+
+  private static void trimEntries(Map<String, Entry> entries, int maxEntries) {
+    if (entries.size() <= maxEntries) {
+      return;
+    }
+    List<Map.Entry<String, Entry>> byCount =
+        new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+    Collections.sort(byCount, new Comparator<Map.Entry<String, Entry>>() {
+      @Override
+      public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+        long countA = a.getKey().equals(OTHER) ? -1 : a.getValue().getCount();
+        long countB = b.getKey().equals(OTHER) ? -1 : b.getValue().getCount();
+        return countA > countB ? -1 : (countA < countB ? 1 : 0);
+      }
+    });
+    Entry other = new Entry();
+    for (Map.Entry<String, Entry> entry : byCount.subList(maxEntries - 1, byCount.size())) {
+      other.merge(entry.getValue());
+    }
+    Map<String, Entry> kept = new HashMap<String, Entry>();
+    for (Map.Entry<String, Entry> entry : byCount.subList(0, maxEntries - 1)) {
+      kept.put(entry.getKey(), entry.getValue());
+    }
+    kept.put(OTHER, other);
+    entries.clear();
+    entries.putAll(kept);
+  }
+
+  private static Entry getEntry(Map<String, Entry> entries, String name) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(name, entry);
+    }
+    return entry;
+  }
+
+  private static void mergeEntries(Map<String, Entry> into, Map<String, Entry> from) {
+    for (Map.Entry<String, Entry> entry : from.entrySet()) {
+      getEntry(into, entry.getKey()).merge(entry.getValue());
+    }
+  }
+}
@@ -167,7 +167,8 @@ public class AppstatsFilter implements Filter {
       Recorder.RecordWriter newWriter =
         new MemcacheWriter(
             new Recorder.Clock(),
-            MemcacheServiceFactory.getMemcacheService(MemcacheWriter.STATS_NAMESPACE));
+            MemcacheServiceFactory.getMemcacheService(MemcacheWriter.STATS_NAMESPACE),
+            MemcacheServiceFactory.getAsyncMemcacheService(MemcacheWriter.STATS_NAMESPACE));
       delegate = ApiProxy.getDelegate();
 
       recorder = new Recorder(delegate, newWriter);
@@ -230,6 +231,7 @@ public class AppstatsFilter implements Filter {
   static void configureRecorder(FilterConfig config, Recorder recorder) {
     recorder.setMaxLinesOfStackTrace(getPositiveInt(
         config, "maxLinesOfStackTrace", Integer.MAX_VALUE));
+    recorder.setStackTraceSamplingRate(getPositiveInt(config, "stackTraceSamplingRate", 1));
     if (config.getInitParameter("payloadRenderer") != null) {
       try {
         recorder.setPayloadRenderer(
@@ -122,6 +122,13 @@ public class AppstatsServlet extends HttpServlet {
         return;
       }
       renderer.renderSummaries(resp.getWriter(), memcache.getSummaries());
+    } else if (path.equals("/aggregates")) {
+
+      if (!requireAdminAuthentication(UserServiceFactory.getUserService(), req, resp)) {
+        return;
+      }
+      resp.setContentType("application/json");
+      renderer.renderAggregatesAsJson(resp.getWriter(), memcache.getAggregates());
     } else {
 
       resp.sendRedirect(req.getServletPath() + "/stats");
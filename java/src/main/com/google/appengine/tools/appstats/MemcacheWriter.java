@@ -2,23 +2,33 @@
 
 package com.google.appengine.tools.appstats;
 
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 import com.google.appengine.tools.appstats.Recorder.Clock;
 import com.google.appengine.tools.appstats.StatsProtos.AggregateRpcStatsProto;
 import com.google.appengine.tools.appstats.StatsProtos.IndividualRpcStatsProto;
 import com.google.appengine.tools.appstats.StatsProtos.RequestStatProto;
 import com.google.appengine.tools.appstats.StatsProtos.RequestStatProto.Builder;
+import com.google.appengine.tools.appstats.StatsProtos.StackFrameProto;
 import com.google.apphosting.api.ApiProxy.Delegate;
 import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
@@ -27,6 +37,21 @@ import javax.servlet.http.HttpServletRequest;
  * Persists stats information in memcache. Can also be used to access that data
  * again. This class is thread-safe, assuming that the underlying MemcacheService
  * is.
+ * <p>
+ * Committed requests are queued in a bounded buffer, which the committing
+ * thread drains unless another thread is already doing so. The records are
+ * sent in batches, through the asynchronous memcache service if one is given,
+ * so a request does not wait for its statistics to be stored. When the buffer
+ * is full the oldest records are dropped and counted.
+ * <p>
+ * Since records are stored by whichever request drains the buffer, the
+ * memcache calls that store a request's record may be made by, billed to
+ * and recorded in the statistics of another, unrelated request of the same
+ * instance.
+ * <p>
+ * Every request is also counted in {@link AggregateStats} kept in memory,
+ * which are merged about once a minute into a rolling set of memcache
+ * windows shared by all instances.
  *
  */
 class MemcacheWriter implements Recorder.RecordWriter {
@@ -49,6 +74,48 @@ class MemcacheWriter implements Recorder.RecordWriter {
 
   private static final int EXPIRATION_SECONDS = 36 * 3600;
 
+  /**
+   * The maximum number of committed requests waiting to be stored.
+   */
+  static final int MAX_BUFFERED_RECORDS = 200;
+
+  /**
+   * The maximum number of requests stored in one putAll call.
+   */
+  static final int MAX_RECORDS_PER_BATCH = 20;
+
+  /**
+   * The number of bytes a field tag takes in the worst case, for the
+   * field numbers used by the stats protos.
+   */
+  private static final int MAX_TAG_SIZE = 2;
+
+  private static final String AGGREGATES_SUFFIX = ":aggregates:";
+
+  /**
+   * The length of time covered by one memcache window of aggregates.
+   */
+  static final long AGGREGATE_WINDOW_MILLIS = 10 * 60 * 1000L;
+
+  /**
+   * The number of aggregate windows kept, and returned by
+   * {@link #getAggregates}.
+   */
+  static final int AGGREGATE_WINDOWS = 6;
+
+  /**
+   * How often the aggregates of this instance are merged into memcache.
+   */
+  static final long AGGREGATE_MERGE_INTERVAL_MILLIS = 60 * 1000L;
+
+  private static final int MAX_MERGE_ATTEMPTS = 3;
+
+  /**
+   * The maximum number of rpcs, and of paths, in an aggregate window, which
+   * keeps the window well below the memcache value size limit.
+   */
+  static final int MAX_AGGREGATE_ENTRIES = 100;
+
   public static final String STATS_NAMESPACE = "__appstats__";
 
   private static String makeKeyPrefix(long timestamp) {
@@ -64,10 +131,41 @@ class MemcacheWriter implements Recorder.RecordWriter {
 
   private final MemcacheService statsMemcache;
 
+  private final AsyncMemcacheService asyncStatsMemcache;
+
+  private final ArrayDeque<RequestStatProto> buffer = new ArrayDeque<RequestStatProto>();
+
+  private final Lock flushLock = new ReentrantLock();
+
+  private final AtomicLong droppedRecords = new AtomicLong();
+
+  /**
+   * The number of dropped records already reported in the log.
+   */
+  private long reportedDroppedRecords = 0;
+
+  private final StatsAggregator aggregator = new StatsAggregator();
+
+  /**
+   * When the aggregates were last merged into memcache. Guarded by
+   * {@link #flushLock}.
+   */
+  private long lastMergeMillis;
+
   public MemcacheWriter(Clock clock, MemcacheService service) {
+    this(clock, service, null);
+  }
+
+  /**
+   * @param asyncService if not {@code null}, used to store records without
+   *     waiting for memcache
+   */
+  public MemcacheWriter(Clock clock, MemcacheService service, AsyncMemcacheService asyncService) {
     this.clock = clock;
     this.keyInCache = getClass().getName() + ".CACHED_STATS";
     this.statsMemcache = service;
+    this.asyncStatsMemcache = asyncService;
+    this.lastMergeMillis = clock.currentTimeMillis();
     if (service == null) {
       throw new NullPointerException("Memcache service not found");
     }
@@ -136,7 +234,10 @@ class MemcacheWriter implements Recorder.RecordWriter {
 
     environment.getAttributes().remove(keyInCache);
 
-    persist(builder.build());
+    RequestStatProto stats = builder.build();
+    aggregator.record(stats);
+    enqueue(stats);
+    flush();
     return true;
   }
 
@@ -167,6 +268,7 @@ class MemcacheWriter implements Recorder.RecordWriter {
  }
 
   public List<RequestStatProto> getSummaries() {
+    flush();
     List<Object> keys = new ArrayList<Object>(KEY_MODULUS);
     for (int i = 0; i < KEY_MODULUS; i++) {
       keys.add(makeKeyPrefix(i * KEY_DISTANCE) + PART_SUFFIX);
@@ -187,6 +289,7 @@ class MemcacheWriter implements Recorder.RecordWriter {
   }
 
   public RequestStatProto getFull(long timestamp) {
+    flush();
     String key = makeKeyPrefix(timestamp) + FULL_SUFFIX;
     try {
       byte[] rawData = (byte[]) statsMemcache.get(key);
@@ -200,56 +303,248 @@ class MemcacheWriter implements Recorder.RecordWriter {
     }
   }
 
-  private void persist(RequestStatProto stats) {
-    RequestStatProto.Builder summary = RequestStatProto.newBuilder().mergeFrom(stats);
-    for (FieldDescriptor field : RequestStatProto.getDescriptor().getFields()) {
-      if (field.getNumber() > FIRST_FIELD_NUMBER_FOR_DETAILS) {
-        summary.clearField(field);
+  /**
+   * @return the number of committed requests that were dropped because the
+   *     buffer was full
+   */
+  long getDroppedRecordCount() {
+    return droppedRecords.get();
+  }
+
+  private void enqueue(RequestStatProto stats) {
+    synchronized (buffer) {
+      if (buffer.size() >= MAX_BUFFERED_RECORDS) {
+        buffer.poll();
+        droppedRecords.incrementAndGet();
       }
+      buffer.add(stats);
     }
-    Map<Object, Object> values = new HashMap<Object, Object>();
-    String prefix = makeKeyPrefix(stats.getStartTimestampMilliseconds());
-    values.put(prefix + PART_SUFFIX, serialize(summary.build()));
-    values.put(prefix + FULL_SUFFIX, serialize(stats));
-    statsMemcache.putAll(values, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
   }
 
-  byte[] serialize(RequestStatProto proto) {
-    byte[] result = serializeIfSmallEnough(proto);
-    if (result == null) {
-      proto = removeStackTraces(proto);
-      result = serializeIfSmallEnough(proto);
-      logMaybe(result, "all stack traces were removed");
-    }
-    if (result == null) {
-      proto = trimStatsEntries(100, proto);
-      result = serializeIfSmallEnough(proto);
-      logMaybe(result,
-          "trimmed the amount of individual stats down to 100 entries");
-    }
-    if (result == null) {
-      proto = trimStatsEntries(0, proto);
-      result = serializeIfSmallEnough(proto);
-      logMaybe(result,
-          "cleared out all individual stats");
-    }
-    if (result == null) {
-      throw new MemcacheServiceException("Appstats data too big");
+  /**
+   * Stores the buffered records, and the aggregates if they are due to be
+   * merged, unless another thread is already doing so. That thread checks
+   * the buffer again once it has released the lock, so a record committed
+   * while it finishes its last batch is not left waiting for the next flush.
+   */
+  void flush() {
+    while (flushLock.tryLock()) {
+      try {
+        flushLocked();
+      } finally {
+        flushLock.unlock();
+      }
+      synchronized (buffer) {
+        if (buffer.isEmpty()) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Does the work of {@link #flush} while holding {@link #flushLock}.
+   */
+  private void flushLocked() {
+    reportDroppedRecords();
+    List<RequestStatProto> batch = new ArrayList<RequestStatProto>(MAX_RECORDS_PER_BATCH);
+    while (true) {
+      synchronized (buffer) {
+        while (batch.size() < MAX_RECORDS_PER_BATCH && !buffer.isEmpty()) {
+          batch.add(buffer.poll());
+        }
+      }
+      if (batch.isEmpty()) {
+        break;
+      }
+      persist(batch);
+      batch.clear();
+    }
+    long now = clock.currentTimeMillis();
+    if (now - lastMergeMillis >= AGGREGATE_MERGE_INTERVAL_MILLIS) {
+      lastMergeMillis = now;
+      mergeAggregates(now);
+    }
+  }
+
+  /**
+   * @return the calls made during the last {@link #AGGREGATE_WINDOWS}
+   *     windows, as merged into memcache by all instances
+   */
+  AggregateStats getAggregates() {
+    long now = clock.currentTimeMillis();
+    long oldestWindow = now - now % AGGREGATE_WINDOW_MILLIS
+        - (AGGREGATE_WINDOWS - 1) * AGGREGATE_WINDOW_MILLIS;
+    List<Object> keys = new ArrayList<Object>(AGGREGATE_WINDOWS);
+    for (int i = 0; i < AGGREGATE_WINDOWS; i++) {
+      keys.add(makeAggregateKey(oldestWindow + i * AGGREGATE_WINDOW_MILLIS));
+    }
+    AggregateStats result = new AggregateStats(oldestWindow);
+    for (Object value : statsMemcache.getAll(keys).values()) {
+      if (value instanceof AggregateStats
+          && ((AggregateStats) value).getWindowStartMillis() >= oldestWindow) {
+        result.merge((AggregateStats) value);
+      }
     }
     return result;
   }
 
-  private byte[] serializeIfSmallEnough(RequestStatProto proto) {
-    byte[] result = proto.toByteArray();
-    return (result.length > MAX_SIZE) ? null : result;
+  private static String makeAggregateKey(long windowStartMillis) {
+    return KEY_PREFIX + AGGREGATES_SUFFIX
+        + (windowStartMillis / AGGREGATE_WINDOW_MILLIS) % AGGREGATE_WINDOWS;
+  }
+
+  /**
+   * Adds the calls counted by this instance to the current memcache window.
+   * If the window keeps being updated concurrently, the calls are kept for
+   * the next attempt; if memcache fails, they are dropped.
+   */
+  private void mergeAggregates(long now) {
+    long windowStart = now - now % AGGREGATE_WINDOW_MILLIS;
+    AggregateStats local = new AggregateStats(windowStart);
+    aggregator.drainTo(local);
+    if (local.isEmpty()) {
+      return;
+    }
+    local.trim(MAX_AGGREGATE_ENTRIES);
+    String key = makeAggregateKey(windowStart);
+    Expiration expiration =
+        Expiration.byDeltaMillis((int) (AGGREGATE_WINDOWS * AGGREGATE_WINDOW_MILLIS));
+    try {
+      for (int attempt = 0; attempt < MAX_MERGE_ATTEMPTS; attempt++) {
+        IdentifiableValue stored = statsMemcache.getIdentifiable(key);
+        boolean written;
+        if (stored == null) {
+          written = statsMemcache.put(
+              key, local, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        } else {
+          AggregateStats merged = local;
+          Object value = stored.getValue();
+          if (value instanceof AggregateStats
+              && ((AggregateStats) value).getWindowStartMillis() == windowStart) {
+            merged = (AggregateStats) value;
+            merged.merge(local);
+            merged.trim(MAX_AGGREGATE_ENTRIES);
+          }
+          written = statsMemcache.putIfUntouched(key, stored, merged, expiration);
+        }
+        if (written) {
+          return;
+        }
+      }
+      log.fine("Appstats aggregates were updated concurrently, retrying later.");
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Unable to merge appstats aggregates, dropping them", e);
+      return;
+    }
+    aggregator.restore(local);
+  }
+
+  private void reportDroppedRecords() {
+    long dropped = droppedRecords.get();
+    if (dropped > reportedDroppedRecords) {
+      log.warning("Appstats buffer overflowed, dropped " + (dropped - reportedDroppedRecords)
+          + " records (" + dropped + " in total).");
+      reportedDroppedRecords = dropped;
+    }
   }
 
-  private void logMaybe(byte[] result, String action) {
-    if (result != null) {
-      log.warning("Stats data was too big, " + action + ".");
+  private void persist(List<RequestStatProto> batch) {
+    Map<Object, Object> values = new HashMap<Object, Object>();
+    for (RequestStatProto stats : batch) {
+      RequestStatProto.Builder summary = RequestStatProto.newBuilder().mergeFrom(stats);
+      for (FieldDescriptor field : RequestStatProto.getDescriptor().getFields()) {
+        if (field.getNumber() > FIRST_FIELD_NUMBER_FOR_DETAILS) {
+          summary.clearField(field);
+        }
+      }
+      String prefix = makeKeyPrefix(stats.getStartTimestampMilliseconds());
+      try {
+        byte[] part = serialize(summary.build());
+        byte[] full = serialize(stats);
+        values.put(prefix + PART_SUFFIX, part);
+        values.put(prefix + FULL_SUFFIX, full);
+      } catch (MemcacheServiceException e) {
+        log.log(Level.WARNING, "Dropping stats for " + prefix, e);
+      }
+    }
+    if (values.isEmpty()) {
+      return;
+    }
+    Expiration expiration = Expiration.byDeltaSeconds(EXPIRATION_SECONDS);
+    try {
+      if (asyncStatsMemcache != null) {
+        asyncStatsMemcache.putAll(values, expiration);
+      } else {
+        statsMemcache.putAll(values, expiration);
+      }
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Unable to store " + batch.size() + " stats records", e);
     }
   }
 
+  /**
+   * Serializes {@code proto}, first removing as little as possible to make
+   * it fit in a memcache value: the stack traces, then all but the first 100
+   * individual stats, then all of them. The sizes are estimated before
+   * anything is removed, so the steps that cannot help are skipped.
+   */
+  byte[] serialize(RequestStatProto proto) {
+    int size = proto.getSerializedSize();
+    if (size <= MAX_SIZE) {
+      return proto.toByteArray();
+    }
+
+    long individualStatsSize = 0;
+    long stacklessSize = 0;
+    long firstHundredStacklessSize = 0;
+    for (int i = 0; i < proto.getIndividualStatsCount(); i++) {
+      IndividualRpcStatsProto stat = proto.getIndividualStats(i);
+      int statSize = stat.getSerializedSize();
+      long stackSize = 0;
+      for (StackFrameProto frame : stat.getCallStackList()) {
+        stackSize += embeddedSize(frame.getSerializedSize());
+      }
+      long embeddedStackless = embeddedSize((int) (statSize - stackSize));
+      individualStatsSize += embeddedSize(statSize);
+      stacklessSize += embeddedStackless;
+      if (i < 100) {
+        firstHundredStacklessSize += embeddedStackless;
+      }
+    }
+    long otherSize = size - individualStatsSize;
+
+    if (otherSize + stacklessSize <= MAX_SIZE) {
+      RequestStatProto trimmed = removeStackTraces(proto);
+      if (trimmed.getSerializedSize() <= MAX_SIZE) {
+        log.warning("Stats data was too big, all stack traces were removed.");
+        return trimmed.toByteArray();
+      }
+    }
+    if (otherSize + firstHundredStacklessSize <= MAX_SIZE) {
+      RequestStatProto trimmed = removeStackTraces(trimStatsEntries(100, proto));
+      if (trimmed.getSerializedSize() <= MAX_SIZE) {
+        log.warning("Stats data was too big, "
+            + "trimmed the amount of individual stats down to 100 entries.");
+        return trimmed.toByteArray();
+      }
+    }
+    RequestStatProto trimmed = trimStatsEntries(0, proto);
+    if (trimmed.getSerializedSize() > MAX_SIZE) {
+      throw new MemcacheServiceException("Appstats data too big");
+    }
+    log.warning("Stats data was too big, cleared out all individual stats.");
+    return trimmed.toByteArray();
+  }
+
+  /**
+   * @return an upper bound on the size of a field holding a message of
+   *     {@code messageSize} bytes
+   */
+  private static long embeddedSize(int messageSize) {
+    return MAX_TAG_SIZE + CodedOutputStream.computeRawVarint32Size(messageSize) + messageSize;
+  }
+
   private RequestStatProto removeStackTraces(RequestStatProto proto) {
     Builder builder = proto.toBuilder().clearIndividualStats();
     for (IndividualRpcStatsProto stat : proto.getIndividualStatsList()) {
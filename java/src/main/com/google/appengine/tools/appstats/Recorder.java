@@ -15,15 +15,15 @@ import com.google.apphosting.api.ApiProxy.Environment;
 import com.google.apphosting.api.ApiProxy.LogRecord;
 import com.google.common.collect.Sets;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -148,37 +148,69 @@ class Recorder implements Delegate {
     }
   }
 
-  private static final Pattern STACK_PATTERN = Pattern.compile(
-  "\\s*at\\s([^\\(]+)[^:]+:([^\\)]+)\\)\\s*");
-
-  private static void createStackTrace(
-    int numLinesToIgnore, IndividualRpcStatsProto.Builder stats, int maxNumLines) {
-    StringWriter stack = new StringWriter();
-    new Exception().printStackTrace(new PrintWriter(stack));
-    Matcher matcher = STACK_PATTERN.matcher(stack.toString());
-    while (matcher.find() && stats.getCallStackCount() < maxNumLines) {
-      if (numLinesToIgnore > 0) {
-        numLinesToIgnore--;
-        continue;
-      }
-      String classAndMethod = matcher.group(1);
-      int lastDot = classAndMethod.lastIndexOf('.');
-      String lineNumber = matcher.group(2);
-      StackFrameProto.Builder builder = StackFrameProto.newBuilder();
-      builder.setClassOrFileName(classAndMethod.substring(0, lastDot));
-      builder.setFunctionName(classAndMethod.substring(lastDot + 1));
-      try {
-        builder.setLineNumber(Integer.parseInt(lineNumber));
-      } catch (NumberFormatException e) {
+  /**
+   * The attribute of the environment holding the stack frames already
+   * converted during the current request.
+   */
+  static final String STACK_FRAMES_KEY = KEY + ".stackFrames";
+
+  /**
+   * The maximum number of distinct stack frames kept for reuse during a
+   * request.
+   */
+  private static final int MAX_CACHED_STACK_FRAMES = 10000;
+
+  /**
+   * Records the stack of the current thread in {@code stats}, skipping the
+   * innermost {@code numFramesToIgnore} frames and keeping at most
+   * {@code maxNumFrames}.  Frames are shared with earlier calls made during
+   * the same request.
+   */
+  private static void createStackTrace(Environment environment,
+      int numFramesToIgnore, IndividualRpcStatsProto.Builder stats, int maxNumFrames) {
+    StackTraceElement[] stack = new Throwable().getStackTrace();
+    Map<StackTraceElement, StackFrameProto> frames = getStackFrameCache(environment);
+    int end = (int) Math.min(stack.length, (long) numFramesToIgnore + maxNumFrames);
+    for (int i = numFramesToIgnore; i < end; i++) {
+      StackTraceElement element = stack[i];
+      StackFrameProto frame = frames.get(element);
+      if (frame == null) {
+        StackFrameProto.Builder builder = StackFrameProto.newBuilder();
+        builder.setClassOrFileName(element.getClassName());
+        builder.setFunctionName(element.getMethodName());
+        if (element.getLineNumber() >= 0) {
+          builder.setLineNumber(element.getLineNumber());
+        }
+        frame = builder.build();
+        if (frames.size() < MAX_CACHED_STACK_FRAMES) {
+          frames.put(element, frame);
+        }
       }
-      stats.addCallStack(builder);
+      stats.addCallStack(frame);
+    }
+  }
+
+  private static Map<StackTraceElement, StackFrameProto> getStackFrameCache(
+      Environment environment) {
+    Map<String, Object> attributes = environment.getAttributes();
+    if (attributes == null) {
+      return new HashMap<StackTraceElement, StackFrameProto>();
+    }
+    Map<StackTraceElement, StackFrameProto> frames =
+        (Map<StackTraceElement, StackFrameProto>) attributes.get(STACK_FRAMES_KEY);
+    if (frames == null) {
+      frames = new ConcurrentHashMap<StackTraceElement, StackFrameProto>();
+      attributes.put(STACK_FRAMES_KEY, frames);
     }
+    return frames;
   }
 
   private final Clock clock;
   private final Delegate wrappedDelegate;
   private final RecordWriter writer;
   private int maxLinesOfStackTrace = Integer.MAX_VALUE;
+  private int stackTraceSamplingRate = 1;
+  private final AtomicLong rpcCount = new AtomicLong();
   private PayloadRenderer payloadRenderer = DEFAULT_RENDERER;
   private UnprocessedFutureStrategy unprocessedFutureStrategy =
       UnprocessedFutureStrategy.DO_NOTHING;
@@ -229,6 +261,18 @@ class Recorder implements Delegate {
     this.maxLinesOfStackTrace = maxLinesOfStackTrace;
   }
 
+  /**
+   * Sets how often the stack trace of an rpc is recorded: once every
+   * {@code stackTraceSamplingRate} rpcs.  The default, 1, records every stack
+   * trace.
+   */
+  public void setStackTraceSamplingRate(int stackTraceSamplingRate) {
+    if (stackTraceSamplingRate <= 0) {
+      throw new IllegalArgumentException("stackTraceSamplingRate must be a positive value");
+    }
+    this.stackTraceSamplingRate = stackTraceSamplingRate;
+  }
+
   /**
    * Determines how request/response data should be rendered.
    */
@@ -240,6 +284,10 @@ class Recorder implements Delegate {
     return maxLinesOfStackTrace;
   }
 
+  int getStackTraceSamplingRate() {
+    return stackTraceSamplingRate;
+  }
+
   PayloadRenderer getPayloadRenderer() {
     return payloadRenderer;
   }
@@ -262,7 +310,10 @@ class Recorder implements Delegate {
         payloadRenderer.renderPayload(
             intermediary.getPackageName(), intermediary.getMethodName(), request, true));
     stats.setStartOffsetMilliseconds(clock.currentTimeMillis());
-    createStackTrace(2, stats, maxLinesOfStackTrace);
+    if (stackTraceSamplingRate == 1
+        || rpcCount.getAndIncrement() % stackTraceSamplingRate == 0) {
+      createStackTrace(environment, 2, stats, maxLinesOfStackTrace);
+    }
 
     ApiStats apiStats = getApiStats(environment);
     intermediary.setApiMcyclesOrNull((apiStats == null) ? null : apiStats.getApiTimeInMegaCycles());
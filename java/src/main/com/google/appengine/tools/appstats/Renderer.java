@@ -17,6 +17,7 @@ import java.text.ParseException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
 /**
@@ -120,4 +121,42 @@ class Renderer {
       return false;
     }
   }
+
+  /**
+   * Renders the count, total api or processor milliseconds and latency
+   * percentiles of every rpc and request path in {@code aggregates}.
+   */
+  public boolean renderAggregatesAsJson(Writer out, AggregateStats aggregates) {
+    JSONObject json = new JSONObject();
+    try {
+      json.put("format", "appstats-aggregates");
+      json.put("window_start", aggregates.getWindowStartMillis());
+      json.put("rpcs", toJson(aggregates.getRpcs()));
+      json.put("paths", toJson(aggregates.getPaths()));
+      json.write(out);
+      return true;
+    } catch (JSONException e) {
+      log.fine("Unable to create JSON (" + e.getMessage() + ")");
+      return false;
+    }
+  }
+
+  private static JSONArray toJson(Map<String, AggregateStats.Entry> entries)
+      throws JSONException {
+    JSONArray array = new JSONArray();
+    Map<String, AggregateStats.Entry> sorted = new TreeMap<String, AggregateStats.Entry>(entries);
+    for (Map.Entry<String, AggregateStats.Entry> entry : sorted.entrySet()) {
+      AggregateStats.Entry stats = entry.getValue();
+      JSONObject entryJson = new JSONObject();
+      entryJson.put("name", entry.getKey());
+      entryJson.put("count", stats.getCount());
+      entryJson.put("mcycles_milliseconds",
+          StatsUtil.megaCyclesToMilliseconds(stats.getMcycles()));
+      entryJson.put("p50", stats.getPercentile(50));
+      entryJson.put("p95", stats.getPercentile(95));
+      entryJson.put("p99", stats.getPercentile(99));
+      array.put(entryJson);
+    }
+    return array;
+  }
 }
@@ -0,0 +1,141 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.tools.appstats;
+
+import com.google.appengine.tools.appstats.StatsProtos.IndividualRpcStatsProto;
+import com.google.appengine.tools.appstats.StatsProtos.RequestStatProto;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the calls made by the requests of this instance, by rpc and by
+ * request path, until they are taken by {@link #drainTo}.
+ * <p>
+ * At most {@link #MAX_TRACKED_NAMES} rpcs and as many paths are counted
+ * separately between two drains; the calls to any others are counted under
+ * {@link AggregateStats#OTHER}.
+ * <p>
+ * Recording a request only updates atomic counters, so this class is
+ * thread-safe without locking.  A call recorded while its counters are
+ * being drained may be lost.
+ *
+ */
+class StatsAggregator {
+
+  /**
+   * The maximum number of rpcs, and of paths, counted separately.
+   */
+  static final int MAX_TRACKED_NAMES = 500;
+
+  /**
+   * The counters of one rpc or request path.
+   */
+  private static class Counters {
+    final AtomicLong mcycles = new AtomicLong();
+    final AtomicLongArray buckets = new AtomicLongArray(AggregateStats.BUCKET_COUNT);
+
+    void record(long durationMillis, long mcycles) {
+      buckets.incrementAndGet(AggregateStats.bucketIndex(durationMillis));
+      this.mcycles.addAndGet(mcycles);
+    }
+
+    /**
+     * Moves the counts into {@code entry}.
+     */
+    void drainTo(AggregateStats.Entry entry) {
+      for (int i = 0; i < AggregateStats.BUCKET_COUNT; i++) {
+        long count = buckets.getAndSet(i, 0);
+        if (count > 0) {
+          entry.add(i, count);
+        }
+      }
+      entry.addMcycles(mcycles.getAndSet(0));
+    }
+  }
+
+  private final ConcurrentMap<String, Counters> rpcs = new ConcurrentHashMap<String, Counters>();
+  private final ConcurrentMap<String, Counters> paths =
+      new ConcurrentHashMap<String, Counters>();
+
+  /**
+   * Counts the request described by {@code stats} and the rpcs it made.
+   */
+  void record(RequestStatProto stats) {
+    getCounters(paths, StatsUtil.extractKey(stats))
+        .record(stats.getDurationMilliseconds(), stats.getProcessorMcycles());
+    for (IndividualRpcStatsProto rpc : stats.getIndividualStatsList()) {
+      getCounters(rpcs, rpc.getServiceCallName())
+          .record(rpc.getDurationMilliseconds(), rpc.getApiMcycles());
+    }
+  }
+
+  /**
+   * Moves the calls counted so far into {@code into}.
+   */
+  void drainTo(AggregateStats into) {
+    for (Map.Entry<String, Counters> entry : rpcs.entrySet()) {
+      if (rpcs.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().drainTo(into.getRpc(entry.getKey()));
+      }
+    }
+    for (Map.Entry<String, Counters> entry : paths.entrySet()) {
+      if (paths.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().drainTo(into.getPath(entry.getKey()));
+      }
+    }
+    removeEmpty(into.getRpcs());
+    removeEmpty(into.getPaths());
+  }
+
+  /**
+   * Counts again the calls of {@code stats}, which could not be stored.
+   */
+  void restore(AggregateStats stats) {
+    restore(rpcs, stats.getRpcs());
+    restore(paths, stats.getPaths());
+  }
+
+  private static void restore(ConcurrentMap<String, Counters> counters,
+      Map<String, AggregateStats.Entry> entries) {
+    for (Map.Entry<String, AggregateStats.Entry> entry : entries.entrySet()) {
+      Counters target = getCounters(counters, entry.getKey());
+      AggregateStats.Entry value = entry.getValue();
+      for (int i = 0; i < AggregateStats.BUCKET_COUNT; i++) {
+        long count = value.getBucket(i);
+        if (count > 0) {
+          target.buckets.addAndGet(i, count);
+        }
+      }
+      target.mcycles.addAndGet(value.getMcycles());
+    }
+  }
+
+  private static void removeEmpty(Map<String, AggregateStats.Entry> entries) {
+    for (Iterator<AggregateStats.Entry> it = entries.values().iterator(); it.hasNext(); ) {
+      if (it.next().getCount() == 0) {
+        it.remove();
+      }
+    }
+  }
+
+  private static Counters getCounters(ConcurrentMap<String, Counters> counters, String name) {
+    Counters result = counters.get(name);
+    if (result == null && counters.size() >= MAX_TRACKED_NAMES) {
+      name = AggregateStats.OTHER;
+      result = counters.get(name);
+    }
+    if (result == null) {
+      result = new Counters();
+      Counters existing = counters.putIfAbsent(name, result);
+      if (existing != null) {
+        result = existing;
+      }
+    }
+    return result;
+  }
+}
@@ -41,7 +41,7 @@ class StatsUtil {
           return c;
         }};
 
-  private static String extractKey(RequestStatProto summary) {
+  static String extractKey(RequestStatProto summary) {
     String result = summary.getHttpPath();
     if (!summary.getHttpMethod().equals("GET")) {
       result = summary.getHttpMethod() + " " + result;
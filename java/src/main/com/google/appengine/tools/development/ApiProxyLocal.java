@@ -13,6 +13,25 @@ import java.util.Map;
  *
  */
 public interface ApiProxyLocal extends Delegate<Environment> {
+  /**
+   * The property naming a file of recorded latency histograms.  When latency
+   * simulation is enabled, the latency of a call with a histogram in the file
+   * is drawn from that histogram instead of its {@link LatencyPercentiles}.
+   * Each line of the file holds a call name ({@code package.Method}, or
+   * {@code package} for all of its methods), a latency in milliseconds and
+   * the number of calls observed with that latency.
+   */
+  String LATENCY_HISTOGRAM_FILE_PROPERTY = "latency.histogram.file";
+
+  /**
+   * The property limiting the number of calls to a service handled at once.
+   * Calls beyond the limit wait for one to complete.  Set
+   * {@code api.max.concurrent.calls.<package>} to limit a single package,
+   * such as {@code api.max.concurrent.calls.datastore_v3}.  The default is
+   * 100 per package.
+   */
+  String MAX_CONCURRENT_API_CALLS_PROPERTY = "api.max.concurrent.calls";
+
   /**
    * Sets an individual service property.
    * @param property name of the property to set
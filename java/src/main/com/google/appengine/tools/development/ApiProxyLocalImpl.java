@@ -12,11 +12,14 @@ import com.google.apphosting.api.ApiProxy.UnknownException;
 import com.google.io.protocol.ProtocolMessage;
 import com.google.protobuf.Message;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -25,7 +28,6 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
@@ -91,7 +93,13 @@ class ApiProxyLocalImpl implements ApiProxyLocal {
 
   private final Map<String, String> properties = new HashMap<String, String>();
 
-  private final ExecutorService apiExecutor = Executors.newCachedThreadPool(
+  /**
+   * The histograms read from the file named by
+   * {@link #LATENCY_HISTOGRAM_FILE_PROPERTY}, or {@code null} if not read yet.
+   */
+  private Map<String, LatencyHistogram> latencyHistograms;
+
+  private final LocalApiCallExecutor apiExecutor = new LocalApiCallExecutor(
       new DaemonThreadFactory(Executors.defaultThreadFactory()));
 
   private final LocalServiceContext context;
@@ -223,7 +231,8 @@ class ApiProxyLocalImpl implements ApiProxyLocal {
     }
 
     public Future<byte[]> run() {
-      final Future<byte[]> result = apiExecutor.submit(callable);
+      final Future<byte[]> result =
+          apiExecutor.submit(asyncApiCall.packageName, asyncApiCall.methodName, callable);
       return new Future<byte[]>() {
         @Override
         public boolean cancel(final boolean mayInterruptIfRunning) {
@@ -298,8 +307,9 @@ class ApiProxyLocalImpl implements ApiProxyLocal {
     throw new UnsupportedOperationException("Cannot convert " + object + " to byte[].");
   }
 
-  public void setProperty(String property, String value) {
+  public synchronized void setProperty(String property, String value) {
     properties.put(property, value);
+    propertiesChanged();
   }
 
   /**
@@ -308,11 +318,12 @@ class ApiProxyLocalImpl implements ApiProxyLocal {
    * @param properties a maybe {@code null} set of properties for
    * local services.
    */
-  public void setProperties(Map<String,String> properties) {
+  public synchronized void setProperties(Map<String,String> properties) {
     this.properties.clear();
     if (properties != null) {
-      this.appendProperties(properties);
+      this.properties.putAll(properties);
     }
+    propertiesChanged();
   }
 
   /**
@@ -320,8 +331,18 @@ class ApiProxyLocalImpl implements ApiProxyLocal {
    *
    * @param properties a set of properties to append for local services.
    */
-  public void appendProperties(Map<String,String> properties) {
+  public synchronized void appendProperties(Map<String,String> properties) {
     this.properties.putAll(properties);
+    propertiesChanged();
+  }
+
+  /**
+   * Hands a snapshot of the properties, taken while holding the lock that
+   * guards them, to the executor, and forgets what was derived from them.
+   */
+  private synchronized void propertiesChanged() {
+    resetLatencyHistograms();
+    apiExecutor.setProperties(new HashMap<String, String>(properties));
   }
 
   /**
@@ -334,9 +355,41 @@ class ApiProxyLocalImpl implements ApiProxyLocal {
     }
 
     serviceCache.clear();
+    resetLatencyHistograms();
+    apiExecutor.stop();
+  }
+
+  /**
+   * Forgets the histograms, and the simulators built from them when each
+   * dispatch method was first looked up, so that both are rebuilt from the
+   * current properties.
+   */
+  private synchronized void resetLatencyHistograms() {
+    latencyHistograms = null;
     methodCache.clear();
     latencySimulatorCache.clear();
+  }
 
+  /**
+   * Returns the histograms in the file named by
+   * {@link #LATENCY_HISTOGRAM_FILE_PROPERTY}, reading it if needed.  If the
+   * property is not set or the file cannot be read, there are none.
+   */
+  private synchronized Map<String, LatencyHistogram> getLatencyHistograms() {
+    if (latencyHistograms == null) {
+      latencyHistograms = Collections.emptyMap();
+      String file = properties.get(LATENCY_HISTOGRAM_FILE_PROPERTY);
+      if (file != null) {
+        try {
+          latencyHistograms = LatencyHistogram.load(new File(file));
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "Unable to read latency histograms from " + file, e);
+        } catch (IllegalArgumentException e) {
+          logger.log(Level.SEVERE, "Unable to read latency histograms from " + file, e);
+        }
+      }
+    }
+    return latencyHistograms;
   }
 
   int getMaxApiRequestSize(LocalRpcService rpcService) {
@@ -362,8 +415,11 @@ class ApiProxyLocalImpl implements ApiProxyLocal {
 
           latencyPercentiles = service.getClass().getAnnotation(LatencyPercentiles.class);
         }
-        if (latencyPercentiles != null) {
-          latencySimulatorCache.put(candidate, new LatencySimulator(latencyPercentiles));
+        LatencyHistogram histogram =
+            LatencyHistogram.find(getLatencyHistograms(), packageName, methodName);
+        if (latencyPercentiles != null || histogram != null) {
+          latencySimulatorCache.put(candidate, new LatencySimulator(latencyPercentiles,
+              histogram, packageName + "." + methodName));
         }
         return candidate;
       }
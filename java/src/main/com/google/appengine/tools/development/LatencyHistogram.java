@@ -0,0 +1,176 @@
+// Copyright 2011 Google. All Rights Reserved.
+package com.google.appengine.tools.development;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * A recorded distribution of latencies for a service or service method,
+ * from which {@link LatencySimulator} draws the latency of each call.
+ * <p>
+ * Histograms are read from a text file named by the
+ * {@link ApiProxyLocal#LATENCY_HISTOGRAM_FILE_PROPERTY} property.  Each
+ * non-blank line that does not start with {@code #} holds a call name, a
+ * latency in milliseconds and the number of calls observed with that
+ * latency, separated by whitespace:
+ *
+ * <pre>
+ * # call              latency  count
+ * datastore_v3.Get    12       4031
+ * datastore_v3.Get    25       1200
+ * datastore_v3.Get    340      9
+ * memcache            2        10000
+ * </pre>
+ *
+ * A call name is either {@code package.Method}, which applies to one method,
+ * or {@code package}, which applies to the methods of the package that have
+ * no histogram of their own.
+ * <p>
+ * This class is immutable and thread-safe.
+ *
+ */
+final class LatencyHistogram {
+
+  /**
+   * The distinct latencies, in increasing order.
+   */
+  private final int[] latencies;
+
+  /**
+   * {@code cumulativeCounts[i]} is the number of calls observed with a
+   * latency of at most {@code latencies[i]}.
+   */
+  private final long[] cumulativeCounts;
+
+  /**
+   * @param counts the number of calls observed, by latency in milliseconds
+   */
+  LatencyHistogram(Map<Integer, Long> counts) {
+    TreeMap<Integer, Long> sorted = new TreeMap<Integer, Long>();
+    for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+      if (entry.getKey() < 0 || entry.getValue() < 0) {
+        throw new IllegalArgumentException(String.format(
+            "Illegal latency histogram entry - %d calls at %d ms",
+            entry.getValue(), entry.getKey()));
+      }
+      if (entry.getValue() > 0) {
+        sorted.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (sorted.isEmpty()) {
+      throw new IllegalArgumentException("Latency histogram has no calls");
+    }
+    latencies = new int[sorted.size()];
+    cumulativeCounts = new long[sorted.size()];
+    long total = 0;
+    int i = 0;
+    for (Map.Entry<Integer, Long> entry : sorted.entrySet()) {
+      total += entry.getValue();
+      latencies[i] = entry.getKey();
+      cumulativeCounts[i] = total;
+      i++;
+    }
+  }
+
+  /**
+   * Returns a latency drawn from this histogram, in milliseconds.  Each
+   * recorded latency is returned with the frequency it was observed.
+   *
+   * @param random the source of randomness, which should not be shared
+   * between threads
+   */
+  int sample(Random random) {
+    long total = cumulativeCounts[cumulativeCounts.length - 1];
+    long target = (long) (random.nextDouble() * total);
+    int index = Arrays.binarySearch(cumulativeCounts, target + 1);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return latencies[index];
+  }
+
+  /**
+   * Returns the histogram for {@code methodName} of {@code packageName} in
+   * {@code histograms}, falling back to the histogram of the package.
+   *
+   * @return the histogram, or {@code null} if there is none
+   */
+  static LatencyHistogram find(Map<String, LatencyHistogram> histograms, String packageName,
+      String methodName) {
+    LatencyHistogram histogram = histograms.get(packageName + "." + methodName);
+    if (histogram == null) {
+      histogram = histograms.get(packageName);
+    }
+    return histogram;
+  }
+
+  /**
+   * Reads the histograms in {@code file}.
+   *
+   * @return the histograms, by call name
+   * @throws IOException if the file cannot be read
+   * @throws IllegalArgumentException if the file is not well formed
+   */
+  static Map<String, LatencyHistogram> load(File file) throws IOException {
+    Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      return parse(new BufferedReader(reader), file.getPath());
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static Map<String, LatencyHistogram> parse(BufferedReader reader, String source)
+      throws IOException {
+    Map<String, Map<Integer, Long>> countsByCall = new HashMap<String, Map<Integer, Long>>();
+    int lineNumber = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      line = line.trim();
+      if (line.length() == 0 || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\\s+");
+      if (fields.length != 3) {
+        throw new IllegalArgumentException(String.format(
+            "%s:%d: expected <call> <latency> <count>, got \"%s\"", source, lineNumber, line));
+      }
+      int latency;
+      long count;
+      try {
+        latency = Integer.parseInt(fields[1]);
+        count = Long.parseLong(fields[2]);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(String.format(
+            "%s:%d: illegal number in \"%s\"", source, lineNumber, line), e);
+      }
+      Map<Integer, Long> counts = countsByCall.get(fields[0]);
+      if (counts == null) {
+        counts = new HashMap<Integer, Long>();
+        countsByCall.put(fields[0], counts);
+      }
+      Long previous = counts.get(latency);
+      counts.put(latency, previous == null ? count : previous + count);
+    }
+
+    Map<String, LatencyHistogram> histograms = new HashMap<String, LatencyHistogram>();
+    for (Map.Entry<String, Map<Integer, Long>> entry : countsByCall.entrySet()) {
+      try {
+        histograms.put(entry.getKey(), new LatencyHistogram(entry.getValue()));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(source + ": " + entry.getKey() + ": " + e.getMessage());
+      }
+    }
+    return histograms;
+  }
+}
@@ -5,22 +5,43 @@ import static com.google.appengine.tools.development.LatencyPercentiles.UNDEFINE
 
 import java.util.Arrays;
 import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * Uses {@link LatencyPercentiles} to simulate production service latency in
- * the dev appserver.
+ * Uses {@link LatencyPercentiles}, or a recorded {@link LatencyHistogram}, to
+ * simulate production service latency in the dev appserver.
  *
  */
 class LatencySimulator {
 
+  private static final Logger logger = Logger.getLogger(LatencySimulator.class.getName());
+
   /**
-   * A random number generator we'll use to select an index into the
-   * {@link #latencies} array.
+   * The random number generators we'll use to select an index into the
+   * {@link #latencies} array, or to sample the {@link #histogram}.  Each
+   * thread has its own, so that simulating latency never contends on a lock.
    */
-  private static final Random RANDOM = new Random();
+  private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
 
   final DynamicLatencyAdjuster adjuster;
 
+  /**
+   * The recorded latencies to simulate, or {@code null} to simulate the
+   * {@link #latencies} derived from the percentiles.
+   */
+  private final LatencyHistogram histogram;
+
+  /**
+   * The name of the simulated call, for logging.
+   */
+  private final String callName;
+
   /**
    * An array containing latencies that correspond to the percentiles.  If the
    * 25th percentile is 5, the 50th percentile is 10, the 75th percentile is
@@ -35,6 +56,24 @@ class LatencySimulator {
   final int[] latencies = new int[100];
 
   public LatencySimulator(LatencyPercentiles latencyPercentiles) {
+    this(latencyPercentiles, null, null);
+  }
+
+  /**
+   * @param latencyPercentiles The percentiles to simulate, and the adjuster
+   * to apply.  May be {@code null} if {@code histogram} is not.
+   * @param histogram The recorded latencies to simulate instead of the
+   * percentiles, or {@code null}.
+   * @param callName The name of the simulated call, for logging.
+   */
+  LatencySimulator(LatencyPercentiles latencyPercentiles, LatencyHistogram histogram,
+      String callName) {
+    this.histogram = histogram;
+    this.callName = callName;
+    if (latencyPercentiles == null) {
+      adjuster = new DynamicLatencyAdjuster.Default();
+      return;
+    }
     try {
       adjuster = latencyPercentiles.dynamicAdjuster().newInstance();
     } catch (InstantiationException e) {
@@ -65,15 +104,21 @@ class LatencySimulator {
    * the {@link #adjuster}.
    */
   public void simulateLatency(long actualLatencyMs, LocalRpcService service, Object request) {
-    long latency = adjuster.adjust(service, request, latencies[nextInt()]);
-    if (actualLatencyMs > latency) {
+    int sampled = histogram != null ? histogram.sample(RANDOM.get()) : latencies[nextInt()];
+    long latency = adjuster.adjust(service, request, sampled);
+    long added = Math.max(0, latency - actualLatencyMs);
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine(String.format("%s: real latency %d ms, simulated latency %d ms, added %d ms",
+          callName != null ? callName : service.getPackage(), actualLatencyMs, latency, added));
+    }
+    if (added == 0) {
       return;
     }
-    sleep(latency - actualLatencyMs);
+    sleep(added);
   }
 
   int nextInt() {
-    return RANDOM.nextInt(100);
+    return RANDOM.get().nextInt(100);
   }
 
   void sleep(long millis) {
@@ -0,0 +1,309 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.tools.development;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runs local API calls on a bounded pool of threads per package.
+ * <p>
+ * Each package has its own pool, so a burst of calls to one service cannot
+ * starve the others.  The number of threads in a pool is the limit set by
+ * the {@link ApiProxyLocal#MAX_CONCURRENT_API_CALLS_PROPERTY} property for
+ * the package, or for all packages, and calls beyond it wait in a queue.  A
+ * call made while handling another call is run on the calling thread, so
+ * services that call each other cannot deadlock on a full pool.  When the
+ * properties change, the existing pools are resized to the new limits.
+ * <p>
+ * While calls are being made, the statistics of this executor are
+ * registered with the platform MBean server.
+ *
+ */
+class LocalApiCallExecutor implements LocalApiCallStatsMXBean {
+  private static final Logger logger = Logger.getLogger(LocalApiCallExecutor.class.getName());
+
+  /**
+   * The default maximum number of calls to a package handled at once.
+   */
+  static final int DEFAULT_MAX_CONCURRENT_CALLS = 100;
+
+  private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+
+  /**
+   * True on a thread that is handling an API call.
+   */
+  private static final ThreadLocal<Boolean> IN_API_CALL = new ThreadLocal<Boolean>() {
+    @Override
+    protected Boolean initialValue() {
+      return false;
+    }
+  };
+
+  /**
+   * A snapshot of the properties of the local services.
+   */
+  private volatile Map<String, String> properties = Collections.emptyMap();
+  private final ThreadFactory threadFactory;
+  private final ConcurrentMap<String, ThreadPoolExecutor> executors =
+      new ConcurrentHashMap<String, ThreadPoolExecutor>();
+  private final ConcurrentMap<String, CallStats> callStats =
+      new ConcurrentHashMap<String, CallStats>();
+
+  /**
+   * True if registering with the MBean server has been attempted since
+   * this executor was created or last stopped.
+   */
+  private volatile boolean registrationAttempted = false;
+
+  /**
+   * The name this executor is registered under, or {@code null} if it is
+   * not registered.
+   */
+  private ObjectName registeredName;
+
+  /**
+   * @param threadFactory creates the threads of the pools
+   */
+  LocalApiCallExecutor(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * Sets the properties of the local services and resizes the pools to the
+   * limits they set.
+   *
+   * @param properties a snapshot of the properties, which must not be
+   * modified afterwards
+   */
+  synchronized void setProperties(Map<String, String> properties) {
+    this.properties = properties;
+    for (Map.Entry<String, ThreadPoolExecutor> entry : executors.entrySet()) {
+      int maxCalls = getMaxConcurrentCalls(entry.getKey());
+      ThreadPoolExecutor executor = entry.getValue();
+      if (maxCalls > executor.getMaximumPoolSize()) {
+        executor.setMaximumPoolSize(maxCalls);
+        executor.setCorePoolSize(maxCalls);
+      } else {
+        executor.setCorePoolSize(maxCalls);
+        executor.setMaximumPoolSize(maxCalls);
+      }
+    }
+  }
+
+  /**
+   * Queues {@code callable}, a call to {@code methodName} of
+   * {@code packageName}.
+   */
+  Future<byte[]> submit(String packageName, String methodName, final Callable<byte[]> callable) {
+    final CallStats stats = getCallStats(packageName + "." + methodName);
+    Callable<byte[]> measured = new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        boolean nested = IN_API_CALL.get();
+        IN_API_CALL.set(true);
+        long start = System.nanoTime();
+        try {
+          return callable.call();
+        } finally {
+          stats.record(System.nanoTime() - start);
+          IN_API_CALL.set(nested);
+        }
+      }
+    };
+
+    if (IN_API_CALL.get()) {
+      FutureTask<byte[]> task = new FutureTask<byte[]>(measured);
+      task.run();
+      return task;
+    }
+    if (!registrationAttempted) {
+      register();
+    }
+    return getExecutor(packageName).submit(measured);
+  }
+
+  /**
+   * Unregisters the statistics of this executor.  Threads that become idle
+   * exit on their own.
+   */
+  synchronized void stop() {
+    registrationAttempted = false;
+    if (registeredName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+      } catch (Exception e) {
+        logger.log(Level.FINE, "Unable to unregister " + registeredName, e);
+      }
+      registeredName = null;
+    }
+  }
+
+  @Override
+  public int getQueuedCalls() {
+    int queued = 0;
+    for (ThreadPoolExecutor executor : executors.values()) {
+      queued += executor.getQueue().size();
+    }
+    return queued;
+  }
+
+  @Override
+  public int getActiveCalls() {
+    int active = 0;
+    for (ThreadPoolExecutor executor : executors.values()) {
+      active += executor.getActiveCount();
+    }
+    return active;
+  }
+
+  @Override
+  public Map<String, Integer> getMaxConcurrentCalls() {
+    Map<String, Integer> result = new TreeMap<String, Integer>();
+    for (Map.Entry<String, ThreadPoolExecutor> entry : executors.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getMaximumPoolSize());
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getCallCounts() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, CallStats> entry : callStats.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().count.get());
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getTotalLatencyMillis() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, CallStats> entry : callStats.entrySet()) {
+      result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue().totalNanos.get()));
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getMaxLatencyMillis() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, CallStats> entry : callStats.entrySet()) {
+      result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue().maxNanos.get()));
+    }
+    return result;
+  }
+
+  private ThreadPoolExecutor getExecutor(String packageName) {
+    ThreadPoolExecutor executor = executors.get(packageName);
+    if (executor == null) {
+      executor = createExecutor(packageName);
+    }
+    return executor;
+  }
+
+  /**
+   * Creates the pool of {@code packageName} unless another thread has.
+   * Synchronized with {@link #setProperties}, so that a pool created with
+   * the old limit is always resized.
+   */
+  private synchronized ThreadPoolExecutor createExecutor(String packageName) {
+    ThreadPoolExecutor executor = executors.get(packageName);
+    if (executor == null) {
+      int maxCalls = getMaxConcurrentCalls(packageName);
+      executor = new ThreadPoolExecutor(maxCalls, maxCalls,
+          IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), threadFactory);
+      executor.allowCoreThreadTimeOut(true);
+      executors.put(packageName, executor);
+    }
+    return executor;
+  }
+
+  /**
+   * Returns the limit set for {@code packageName}, falling back to the limit
+   * set for all packages and then to {@link #DEFAULT_MAX_CONCURRENT_CALLS}.
+   */
+  private int getMaxConcurrentCalls(String packageName) {
+    Map<String, String> properties = this.properties;
+    String value = properties.get(
+        ApiProxyLocal.MAX_CONCURRENT_API_CALLS_PROPERTY + "." + packageName);
+    if (value == null) {
+      value = properties.get(ApiProxyLocal.MAX_CONCURRENT_API_CALLS_PROPERTY);
+    }
+    if (value == null) {
+      return DEFAULT_MAX_CONCURRENT_CALLS;
+    }
+    try {
+      int maxCalls = Integer.parseInt(value.trim());
+      if (maxCalls > 0) {
+        return maxCalls;
+      }
+    } catch (NumberFormatException e) {
+    }
+    logger.warning("Ignoring illegal limit on concurrent " + packageName + " calls: " + value);
+    return DEFAULT_MAX_CONCURRENT_CALLS;
+  }
+
+  private CallStats getCallStats(String callName) {
+    CallStats stats = callStats.get(callName);
+    if (stats == null) {
+      stats = new CallStats();
+      CallStats existing = callStats.putIfAbsent(callName, stats);
+      if (existing != null) {
+        stats = existing;
+      }
+    }
+    return stats;
+  }
+
+  private synchronized void register() {
+    if (registrationAttempted) {
+      return;
+    }
+    registrationAttempted = true;
+    try {
+      ObjectName name = new ObjectName("com.google.appengine.tools.development:type=LocalApiCalls,"
+          + "id=" + Integer.toHexString(System.identityHashCode(this)));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(this, name);
+      registeredName = name;
+    } catch (Exception e) {
+      logger.log(Level.FINE, "Unable to register local API call statistics", e);
+    }
+  }
+
+  /**
+   * Latency counters for one {@code package.Method}.
+   */
+  private static class CallStats {
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong totalNanos = new AtomicLong();
+    final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+    }
+  }
+}
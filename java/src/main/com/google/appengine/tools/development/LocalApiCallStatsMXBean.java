@@ -0,0 +1,45 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.tools.development;
+
+import java.util.Map;
+
+/**
+ * Statistics about the API calls handled by local services, published
+ * through JMX while the local services are in use.
+ *
+ */
+public interface LocalApiCallStatsMXBean {
+
+  /**
+   * Returns the number of calls waiting for a thread.
+   */
+  int getQueuedCalls();
+
+  /**
+   * Returns the number of calls being handled.
+   */
+  int getActiveCalls();
+
+  /**
+   * Returns the maximum number of calls handled at once, by package.
+   */
+  Map<String, Integer> getMaxConcurrentCalls();
+
+  /**
+   * Returns the number of completed calls, by {@code package.Method}.
+   */
+  Map<String, Long> getCallCounts();
+
+  /**
+   * Returns the total time spent handling completed calls, in milliseconds,
+   * by {@code package.Method}.  Includes simulated latency.
+   */
+  Map<String, Long> getTotalLatencyMillis();
+
+  /**
+   * Returns the longest time spent handling a single call, in milliseconds,
+   * by {@code package.Method}.  Includes simulated latency.
+   */
+  Map<String, Long> getMaxLatencyMillis();
+}
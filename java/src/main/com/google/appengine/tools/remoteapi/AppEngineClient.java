@@ -112,6 +112,21 @@ abstract class AppEngineClient {
 
   abstract Response post(String path, String mimeType, byte[] body) throws IOException;
 
+  /**
+   * @return statistics about the connections used by this client, or
+   * {@code null} if it does not manage its own connections
+   */
+  ConnectionPoolStats getConnectionPoolStats() {
+    return null;
+  }
+
+  /**
+   * Releases the resources held by this client.  The client must not be used
+   * afterwards.
+   */
+  void shutdown() {
+  }
+
   static class Response {
     private final int statusCode;
     private final byte[] responseBody;
@@ -0,0 +1,71 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.tools.remoteapi;
+
+/**
+ * A snapshot of the HTTP connections used by the remote API to reach the
+ * server.
+ *
+ * @see RemoteApiInstaller#getConnectionPoolStats()
+ */
+public final class ConnectionPoolStats {
+  private final int maxConnections;
+  private final int openConnections;
+  private final int leasedConnections;
+  private final long connectionRequests;
+  private final long totalWaitMillis;
+
+  ConnectionPoolStats(int maxConnections, int openConnections, int leasedConnections,
+      long connectionRequests, long totalWaitMillis) {
+    this.maxConnections = maxConnections;
+    this.openConnections = openConnections;
+    this.leasedConnections = leasedConnections;
+    this.connectionRequests = connectionRequests;
+    this.totalWaitMillis = totalWaitMillis;
+  }
+
+  /**
+   * Returns the maximum number of connections the pool will open.
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Returns the number of connections currently open, whether in use or idle.
+   */
+  public int getOpenConnections() {
+    return openConnections;
+  }
+
+  /**
+   * Returns the number of connections currently in use by a request.
+   */
+  public int getLeasedConnections() {
+    return leasedConnections;
+  }
+
+  /**
+   * Returns the number of times a connection has been taken from the pool.
+   */
+  public long getConnectionRequests() {
+    return connectionRequests;
+  }
+
+  /**
+   * Returns the total time spent waiting for a connection to be available,
+   * summed over all requests.
+   */
+  public long getTotalWaitMillis() {
+    return totalWaitMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionPoolStats [maxConnections=" + maxConnections
+        + ", openConnections=" + openConnections
+        + ", leasedConnections=" + leasedConnections
+        + ", connectionRequests=" + connectionRequests
+        + ", totalWaitMillis=" + totalWaitMillis + "]";
+  }
+}
@@ -0,0 +1,418 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.tools.remoteapi;
+
+import com.google.apphosting.api.DatastorePb;
+import com.google.io.protocol.ProtocolMessage;
+import com.google.storage.onestore.v3.OnestoreEntity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Merges concurrent, non-transactional datastore Get, Put and Delete calls
+ * into single remote calls.
+ * <p>
+ * A call is queued, and a task that sends every queued call of the same
+ * method is handed to the {@link Executor}.  While the executor is busy,
+ * calls accumulate and are sent together by the next such task; when it is
+ * idle, a call is sent on its own without waiting.  A merged call that fails
+ * fails every call it contains.
+ * <p>
+ * This class is thread-safe.
+ *
+ */
+abstract class DatastoreCallCoalescer {
+
+  /**
+   * The maximum number of keys or entities sent in one merged call.
+   */
+  static final int MAX_ITEMS_PER_CALL = 500;
+
+  /**
+   * The maximum encoded size of one merged call.  A single call that is
+   * larger on its own is still sent.
+   */
+  static final int MAX_BYTES_PER_CALL = 1024 * 1024;
+
+  private final Executor executor;
+  private final Map<String, LinkedList<PendingCall<?>>> pendingByMethod =
+      new HashMap<String, LinkedList<PendingCall<?>>>();
+
+  DatastoreCallCoalescer(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Makes the remote call for {@code request}.
+   */
+  abstract byte[] call(String methodName, byte[] request);
+
+  /**
+   * Returns true if a call to {@code methodName} with {@code request} can
+   * be merged with others.
+   */
+  static boolean canCoalesce(String serviceName, String methodName, byte[] request) {
+    if (!serviceName.equals(RemoteDatastore.DATASTORE_SERVICE)) {
+      return false;
+    }
+    if (methodName.equals("Get")) {
+      DatastorePb.GetRequest get = new DatastorePb.GetRequest();
+      get.mergeFrom(request);
+      return !get.hasTransaction();
+    } else if (methodName.equals("Put")) {
+      DatastorePb.PutRequest put = new DatastorePb.PutRequest();
+      put.mergeFrom(request);
+      return !put.hasTransaction();
+    } else if (methodName.equals("Delete")) {
+      DatastorePb.DeleteRequest delete = new DatastorePb.DeleteRequest();
+      delete.mergeFrom(request);
+      return !delete.hasTransaction();
+    }
+    return false;
+  }
+
+  /**
+   * Queues a call that {@link #canCoalesce} accepted.
+   */
+  Future<byte[]> submit(String methodName, byte[] request) {
+    final PendingCall<?> call;
+    if (methodName.equals("Get")) {
+      call = new GetCall(request);
+    } else if (methodName.equals("Put")) {
+      call = new PutCall(request);
+    } else if (methodName.equals("Delete")) {
+      call = new DeleteCall(request);
+    } else {
+      throw new IllegalArgumentException("cannot coalesce " + methodName);
+    }
+    synchronized (pendingByMethod) {
+      LinkedList<PendingCall<?>> pending = pendingByMethod.get(methodName);
+      if (pending == null) {
+        pending = new LinkedList<PendingCall<?>>();
+        pendingByMethod.put(methodName, pending);
+      }
+      pending.add(call);
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        sendPending(call.methodName);
+      }
+    });
+    return call.result;
+  }
+
+  /**
+   * Sends the queued calls to {@code methodName} that can be merged with the
+   * oldest one.  Does nothing if an earlier task already sent them.
+   */
+  private void sendPending(String methodName) {
+    List<PendingCall<?>> batch = new ArrayList<PendingCall<?>>();
+    synchronized (pendingByMethod) {
+      LinkedList<PendingCall<?>> pending = pendingByMethod.get(methodName);
+      if (pending == null || pending.isEmpty()) {
+        return;
+      }
+      PendingCall<?> first = pending.removeFirst();
+      batch.add(first);
+      int numItems = first.numItems();
+      int numBytes = first.request.length;
+      for (Iterator<PendingCall<?>> it = pending.iterator(); it.hasNext(); ) {
+        PendingCall<?> call = it.next();
+        if (numItems + call.numItems() > MAX_ITEMS_PER_CALL
+            || numBytes + call.request.length > MAX_BYTES_PER_CALL) {
+          break;
+        }
+        if (call.options.equals(first.options)) {
+          it.remove();
+          batch.add(call);
+          numItems += call.numItems();
+          numBytes += call.request.length;
+        }
+      }
+    }
+
+    if (batch.size() == 1) {
+      PendingCall<?> call = batch.get(0);
+      try {
+        call.result.set(call(methodName, call.request));
+      } catch (Throwable t) {
+        call.result.setException(t);
+      }
+      return;
+    }
+    sendMerged(batch);
+  }
+
+  private <T extends ProtocolMessage<T>> void sendMerged(List<PendingCall<?>> batch) {
+    @SuppressWarnings("unchecked")
+    List<PendingCall<T>> calls = (List<PendingCall<T>>) (List<?>) batch;
+    PendingCall<T> first = calls.get(0);
+    try {
+      T merged = first.newRequest();
+      merged.copyFrom(first.options);
+      for (PendingCall<T> call : calls) {
+        call.addItemsTo(merged);
+      }
+      byte[] response = call(first.methodName, merged.toByteArray());
+      first.split(response, calls);
+    } catch (Throwable t) {
+      for (PendingCall<T> call : calls) {
+        call.result.setException(t);
+      }
+    }
+  }
+
+  /**
+   * A {@link Future} completed by {@link DatastoreCallCoalescer}.  Only the
+   * first outcome set is kept.  A queued call cannot be cancelled.
+   */
+  private static final class Result implements Future<byte[]> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private byte[] response;
+    private Throwable failure;
+
+    synchronized void set(byte[] response) {
+      if (done.getCount() > 0) {
+        this.response = response;
+        done.countDown();
+      }
+    }
+
+    synchronized void setException(Throwable failure) {
+      if (done.getCount() > 0) {
+        this.failure = failure;
+        done.countDown();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+      done.await();
+      return getResult();
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      if (!done.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+      return getResult();
+    }
+
+    private synchronized byte[] getResult() throws ExecutionException {
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+      return response;
+    }
+  }
+
+  /**
+   * A queued call.
+   *
+   * @param <T> The type of the request.
+   */
+  private abstract static class PendingCall<T extends ProtocolMessage<T>> {
+    final String methodName;
+    final byte[] request;
+    final T parsed;
+
+    /**
+     * {@link #parsed} without its keys or entities.  Only calls with equal
+     * options are merged.
+     */
+    final T options;
+    final Result result = new Result();
+
+    PendingCall(String methodName, byte[] request) {
+      this.methodName = methodName;
+      this.request = request;
+      this.parsed = newRequest();
+      parsed.mergeFrom(request);
+      this.options = newRequest();
+      options.copyFrom(parsed);
+      clearItems(options);
+    }
+
+    abstract T newRequest();
+
+    abstract void clearItems(T request);
+
+    abstract int numItems();
+
+    /**
+     * Adds the keys or entities of this call to {@code merged}.
+     */
+    abstract void addItemsTo(T merged);
+
+    /**
+     * Completes every call in {@code calls} from the response to the merged
+     * call.
+     */
+    abstract void split(byte[] response, List<PendingCall<T>> calls);
+  }
+
+  private static final class GetCall extends PendingCall<DatastorePb.GetRequest> {
+    GetCall(byte[] request) {
+      super("Get", request);
+    }
+
+    @Override
+    DatastorePb.GetRequest newRequest() {
+      return new DatastorePb.GetRequest();
+    }
+
+    @Override
+    void clearItems(DatastorePb.GetRequest request) {
+      request.mutableKeys().clear();
+    }
+
+    @Override
+    int numItems() {
+      return parsed.keySize();
+    }
+
+    @Override
+    void addItemsTo(DatastorePb.GetRequest merged) {
+      for (OnestoreEntity.Reference key : parsed.keys()) {
+        merged.addKey().copyFrom(key);
+      }
+    }
+
+    @Override
+    void split(byte[] responseBytes, List<PendingCall<DatastorePb.GetRequest>> calls) {
+      DatastorePb.GetResponse response = new DatastorePb.GetResponse();
+      response.mergeFrom(responseBytes);
+      int expected = 0;
+      for (PendingCall<DatastorePb.GetRequest> call : calls) {
+        expected += call.numItems();
+      }
+      if (response.entitySize() != expected) {
+        throw new RemoteApiException("expected " + expected + " entities, got "
+            + response.entitySize(), RemoteDatastore.DATASTORE_SERVICE, "Get", null);
+      }
+      Iterator<DatastorePb.GetResponse.Entity> entities = response.entitys().iterator();
+      for (PendingCall<DatastorePb.GetRequest> call : calls) {
+        DatastorePb.GetResponse callResponse = new DatastorePb.GetResponse();
+        for (int i = 0; i < call.numItems(); i++) {
+          callResponse.addEntity().copyFrom(entities.next());
+        }
+        call.result.set(callResponse.toByteArray());
+      }
+    }
+  }
+
+  private static final class PutCall extends PendingCall<DatastorePb.PutRequest> {
+    PutCall(byte[] request) {
+      super("Put", request);
+    }
+
+    @Override
+    DatastorePb.PutRequest newRequest() {
+      return new DatastorePb.PutRequest();
+    }
+
+    @Override
+    void clearItems(DatastorePb.PutRequest request) {
+      request.mutableEntitys().clear();
+    }
+
+    @Override
+    int numItems() {
+      return parsed.entitySize();
+    }
+
+    @Override
+    void addItemsTo(DatastorePb.PutRequest merged) {
+      for (OnestoreEntity.EntityProto entity : parsed.entitys()) {
+        merged.addEntity().copyFrom(entity);
+      }
+    }
+
+    @Override
+    void split(byte[] responseBytes, List<PendingCall<DatastorePb.PutRequest>> calls) {
+      DatastorePb.PutResponse response = new DatastorePb.PutResponse();
+      response.mergeFrom(responseBytes);
+      int expected = 0;
+      for (PendingCall<DatastorePb.PutRequest> call : calls) {
+        expected += call.numItems();
+      }
+      if (response.keySize() != expected) {
+        throw new RemoteApiException("expected " + expected + " keys, got "
+            + response.keySize(), RemoteDatastore.DATASTORE_SERVICE, "Put", null);
+      }
+      Iterator<OnestoreEntity.Reference> keys = response.keys().iterator();
+      for (PendingCall<DatastorePb.PutRequest> call : calls) {
+        DatastorePb.PutResponse callResponse = new DatastorePb.PutResponse();
+        for (int i = 0; i < call.numItems(); i++) {
+          callResponse.addKey().copyFrom(keys.next());
+        }
+        call.result.set(callResponse.toByteArray());
+      }
+    }
+  }
+
+  private static final class DeleteCall extends PendingCall<DatastorePb.DeleteRequest> {
+    DeleteCall(byte[] request) {
+      super("Delete", request);
+    }
+
+    @Override
+    DatastorePb.DeleteRequest newRequest() {
+      return new DatastorePb.DeleteRequest();
+    }
+
+    @Override
+    void clearItems(DatastorePb.DeleteRequest request) {
+      request.mutableKeys().clear();
+    }
+
+    @Override
+    int numItems() {
+      return parsed.keySize();
+    }
+
+    @Override
+    void addItemsTo(DatastorePb.DeleteRequest merged) {
+      for (OnestoreEntity.Reference key : parsed.keys()) {
+        merged.addKey().copyFrom(key);
+      }
+    }
+
+    @Override
+    void split(byte[] responseBytes, List<PendingCall<DatastorePb.DeleteRequest>> calls) {
+      byte[] callResponse = new DatastorePb.DeleteResponse().toByteArray();
+      for (PendingCall<DatastorePb.DeleteRequest> call : calls) {
+        call.result.set(callResponse);
+      }
+    }
+  }
+}
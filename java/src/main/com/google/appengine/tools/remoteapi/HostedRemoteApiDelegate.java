@@ -25,7 +25,7 @@ class HostedRemoteApiDelegate extends RemoteApiDelegate {
 
   public HostedRemoteApiDelegate(RemoteRpc rpc, RemoteApiOptions options,
       Delegate<Environment> containerDelegate) {
-    super(rpc, options);
+    super(rpc, options, null);
     if (containerDelegate == null) {
       throw new IllegalArgumentException("Options indicate we are running in an App Engine "
           + "container but App Engine services are not available.");
@@ -5,6 +5,8 @@ package com.google.appengine.tools.remoteapi;
 import com.google.apphosting.api.ApiProxy.Delegate;
 import com.google.apphosting.api.ApiProxy.Environment;
 
+import java.util.concurrent.ExecutorService;
+
 /**
  * Handles App Engine API calls by making HTTP requests to a remote server.
  * The exact mechanism by which the requests are made is an implementation
@@ -28,10 +30,13 @@ abstract class RemoteApiDelegate implements Delegate<Environment> {
   /**
    * Do not call directly, use
    * {@link #newInstance(RemoteRpc, RemoteApiOptions, Delegate)} instead.
+   *
+   * @param executor used to fetch datastore query results in the background,
+   * or {@code null} if all calls must be made on the calling thread
    */
-  RemoteApiDelegate(RemoteRpc rpc, RemoteApiOptions options) {
+  RemoteApiDelegate(RemoteRpc rpc, RemoteApiOptions options, ExecutorService executor) {
     this.remoteRpc = rpc;
-    this.remoteDatastore = new RemoteDatastore(remoteRpc, options);
+    this.remoteDatastore = new RemoteDatastore(remoteRpc, options, executor);
   }
 
   void resetRpcCount() {
@@ -51,6 +56,21 @@ abstract class RemoteApiDelegate implements Delegate<Environment> {
     }
   }
 
+  /**
+   * Sends any datastore writes that are still buffered.
+   */
+  void flushBufferedWrites() {
+    remoteDatastore.flushBufferedWrites();
+  }
+
+  /**
+   * Stops the background work of the datastore handlers, sending any
+   * buffered writes first.
+   */
+  void shutdownDatastore() {
+    remoteDatastore.shutdown();
+  }
+
   /**
    * Perform any necessary clean up and shut down.
    */
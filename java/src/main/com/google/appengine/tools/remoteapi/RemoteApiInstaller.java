@@ -129,7 +129,9 @@ public class RemoteApiInstaller {
   }
   /**
    * Uninstalls the remote API. If any async calls are in progress, waits for
-   * them to finish.
+   * them to finish. Datastore writes buffered by
+   * {@link RemoteApiOptions#datastoreWriteBehindBatchSize} are sent first; if
+   * sending them fails, the remote API stays installed.
    *
    * <p>If the remote API isn't installed, this method has no effect.</p>
    */
@@ -152,11 +154,13 @@ public class RemoteApiInstaller {
       if (tld.getDelegateForThread() == null) {
         throw new IllegalArgumentException("remote API is already uninstalled");
       }
+      installerState.remoteApiDelegate.flushBufferedWrites();
       tld.clearThreadDelegate();
       if (installerState.installedEnv != null) {
         ApiProxy.setEnvironmentForCurrentThread(installerState.savedEnv);
       }
       installerState.remoteApiDelegate.shutdown();
+      installerState.installedClient.shutdown();
       installerState = null;
     }
   }
@@ -199,6 +203,15 @@ public class RemoteApiInstaller {
     return installerState.remoteApiDelegate.getRpcCount();
   }
 
+  /**
+   * Returns statistics about the HTTP connections used to reach the server,
+   * or {@code null} when running in an App Engine container, where
+   * connections are managed by the URL Fetch service.
+   */
+  public ConnectionPoolStats getConnectionPoolStats() {
+    return installerState.installedClient.getConnectionPoolStats();
+  }
+
   protected AppEngineClient login(RemoteApiOptions options) throws IOException {
     return loginImpl(options);
   }
@@ -266,7 +279,12 @@ public class RemoteApiInstaller {
   String getAppIdFromServer(List<Cookie> authCookies, RemoteApiOptions options)
       throws IOException {
     AppEngineClient tempClient = createAppEngineClient(options, authCookies, null);
-    AppEngineClient.Response response = tempClient.get(options.getRemoteApiPath());
+    AppEngineClient.Response response;
+    try {
+      response = tempClient.get(options.getRemoteApiPath());
+    } finally {
+      tempClient.shutdown();
+    }
     int status = response.getStatusCode();
     if (status != 200) {
       throw new IOException("can't get appId from remote api; status code = " + status);
@@ -36,7 +36,13 @@ public class RemoteApiOptions {
   private String remoteApiPath = "/remote_api";
   private int maxConcurrentRequests = 5;
   private int datastoreQueryFetchSize = 500;
+  private boolean datastoreQueryPrefetch = false;
+  private int datastoreQueryShards = 1;
+  private boolean datastoreCallCoalescing = false;
+  private int datastoreWriteBehindBatchSize = 0;
+  private long datastoreWriteBehindDelayMillis = 1000;
   private int maxHttpResponseSize = 33 * 1024 * 1024;
+  private int maxHttpRequestSize = 32 * 1024 * 1024;
 
   public RemoteApiOptions() {}
 
@@ -49,7 +55,13 @@ public class RemoteApiOptions {
     this.remoteApiPath = original.remoteApiPath;
     this.maxConcurrentRequests = original.maxConcurrentRequests;
     this.datastoreQueryFetchSize = original.datastoreQueryFetchSize;
+    this.datastoreQueryPrefetch = original.datastoreQueryPrefetch;
+    this.datastoreQueryShards = original.datastoreQueryShards;
+    this.datastoreCallCoalescing = original.datastoreCallCoalescing;
+    this.datastoreWriteBehindBatchSize = original.datastoreWriteBehindBatchSize;
+    this.datastoreWriteBehindDelayMillis = original.datastoreWriteBehindDelayMillis;
     this.maxHttpResponseSize = original.maxHttpResponseSize;
+    this.maxHttpRequestSize = original.maxHttpRequestSize;
   }
 
   /**
@@ -120,6 +132,87 @@ public class RemoteApiOptions {
     return this;
   }
 
+  /**
+   * When executing a datastore query outside of a transaction, this controls
+   * whether the next batch of results is fetched in the background while the
+   * current one is being consumed. At most one batch is fetched that turns
+   * out not to be needed, and batches are kept for at most 16 queries, those
+   * read most recently. Defaults to false.
+   *
+   * <p>This setting has no effect when running in an App Engine container.</p>
+   */
+  public RemoteApiOptions datastoreQueryPrefetch(boolean newValue) {
+    datastoreQueryPrefetch = newValue;
+    return this;
+  }
+
+  /**
+   * When executing a query over all entities of a kind, with no filters,
+   * sort orders, ancestor, limit, offset or cursors, this is the number of
+   * key ranges the query is split into. The first batch of every range is
+   * fetched in parallel, and the ranges are returned one after another in
+   * key order. The ranges are chosen using the {@code __scatter__} property,
+   * at the cost of one extra round trip per query. Defaults to 1, which
+   * disables splitting.
+   *
+   * <p>This setting has no effect when running in an App Engine container.</p>
+   */
+  public RemoteApiOptions datastoreQueryShards(int newValue) {
+    datastoreQueryShards = newValue;
+    return this;
+  }
+
+  /**
+   * When true, asynchronous datastore gets, puts and deletes made outside of
+   * a transaction that are waiting for a free request slot (see
+   * {@link #maxConcurrentRequests}) are merged into a single round trip.
+   * Each merged call carries at most 500 keys or entities. If a merged call
+   * fails, every call it contains fails with the same exception. Defaults to
+   * false.
+   *
+   * <p>This setting has no effect when running in an App Engine container.</p>
+   */
+  public RemoteApiOptions datastoreCallCoalescing(boolean newValue) {
+    datastoreCallCoalescing = newValue;
+    return this;
+  }
+
+  /**
+   * When greater than zero, datastore puts and deletes made outside of a
+   * transaction are buffered locally and sent in groups, once this many
+   * writes are buffered (at most 500) or the oldest has waited for
+   * {@link #datastoreWriteBehindDelayMillis}. Gets see buffered writes.
+   * Buffered writes are sent before any other datastore call, such as a
+   * query or the start of a transaction, and when the remote API is
+   * uninstalled. Puts of entities without a complete key are never buffered.
+   *
+   * <p>Because a put or delete returns before it is sent, a failure is
+   * reported by the next datastore call instead. Writes that could not be
+   * sent stay buffered and are sent again by the next flush, so
+   * {@link RemoteApiInstaller#uninstall} throws rather than uninstalling
+   * while writes are still pending. Defaults to 0, which disables
+   * buffering.</p>
+   *
+   * <p>Buffered writes are sent by a daemon thread, so writes that are still
+   * buffered are lost if the JVM exits without
+   * {@link RemoteApiInstaller#uninstall} being called.</p>
+   *
+   * <p>This setting has no effect when running in an App Engine container.</p>
+   */
+  public RemoteApiOptions datastoreWriteBehindBatchSize(int newValue) {
+    datastoreWriteBehindBatchSize = newValue;
+    return this;
+  }
+
+  /**
+   * When write-behind is enabled (see {@link #datastoreWriteBehindBatchSize}),
+   * this is the longest a write is buffered, in milliseconds. Defaults to 1000.
+   */
+  public RemoteApiOptions datastoreWriteBehindDelayMillis(long newValue) {
+    datastoreWriteBehindDelayMillis = newValue;
+    return this;
+  }
+
   /**
    * When making a remote call, this is the maximum size of the HTTP response.
    * The default is 33M. Normally there's no reason to change this.  This
@@ -130,6 +223,18 @@ public class RemoteApiOptions {
     return this;
   }
 
+  /**
+   * This is the maximum size of the HTTP request that commits a datastore
+   * transaction. The datastore writes of a transaction, and the entities it
+   * reads, are all sent when it commits, so a get, put or delete that would
+   * make the commit request larger than this fails immediately. The default
+   * is 32M, the largest request App Engine accepts.
+   */
+  public RemoteApiOptions maxHttpRequestSize(int newValue) {
+    maxHttpRequestSize = newValue;
+    return this;
+  }
+
   public RemoteApiOptions copy() {
     return new RemoteApiOptions(this);
   }
@@ -166,7 +271,31 @@ public class RemoteApiOptions {
     return datastoreQueryFetchSize;
   }
 
+  public boolean getDatastoreQueryPrefetch() {
+    return datastoreQueryPrefetch;
+  }
+
+  public int getDatastoreQueryShards() {
+    return datastoreQueryShards;
+  }
+
+  public boolean getDatastoreCallCoalescing() {
+    return datastoreCallCoalescing;
+  }
+
+  public int getDatastoreWriteBehindBatchSize() {
+    return datastoreWriteBehindBatchSize;
+  }
+
+  public long getDatastoreWriteBehindDelayMillis() {
+    return datastoreWriteBehindDelayMillis;
+  }
+
   public int getMaxHttpResponseSize() {
     return maxHttpResponseSize;
   }
+
+  public int getMaxHttpRequestSize() {
+    return maxHttpRequestSize;
+  }
 }
@@ -2,15 +2,28 @@
 
 package com.google.appengine.tools.remoteapi;
 
+import com.google.appengine.api.datastore.DataTypeTranslator;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
 import com.google.apphosting.api.ApiBasePb;
 import com.google.apphosting.api.DatastorePb;
 import com.google.storage.onestore.v3.OnestoreEntity;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,15 +38,75 @@ class RemoteDatastore {
 
   private final static Logger logger = Logger.getLogger(RemoteDatastore.class.getName());
 
+  /**
+   * The property holding a random value used to sample the keys of a kind.
+   */
+  static final String SCATTER_PROPERTY = "__scatter__";
+
+  /**
+   * The number of keys sampled for every key range a query is split into.
+   */
+  static final int SCATTER_OVERSAMPLING_FACTOR = 32;
+
+  /**
+   * The maximum number of queries whose results are fetched ahead.  Past
+   * this, the results fetched ahead for the least recently read query are
+   * dropped, and fetched again if it is read.
+   */
+  static final int MAX_PREFETCHING_QUERIES = 16;
+
+  /**
+   * Orders keys-only results by key.
+   */
+  private static final Comparator<OnestoreEntity.EntityProto> KEY_ORDER =
+      new Comparator<OnestoreEntity.EntityProto>() {
+        @Override
+        public int compare(OnestoreEntity.EntityProto o1, OnestoreEntity.EntityProto o2) {
+          return toKey(o1).compareTo(toKey(o2));
+        }
+
+        private com.google.appengine.api.datastore.Key toKey(OnestoreEntity.EntityProto proto) {
+          return EntityTranslator.createFromPb(proto, Collections.<String>emptySet()).getKey();
+        }
+      };
+
   private final RemoteRpc remoteRpc;
   private final RemoteApiOptions options;
   private final String remoteAppId;
 
+  /**
+   * Runs queries in the background, or {@code null} if every call must be
+   * made on the calling thread.
+   */
+  private final ExecutorService prefetchExecutor;
+
+  /**
+   * Buffers non-transactional writes, or {@code null} if write-behind is
+   * disabled.
+   */
+  private final WriteBehindBuffer writeBuffer;
+
   /**
    * Contains an entry for every query we've ever run.
    */
   private final Map<Long, QueryState> idToCursor = new ConcurrentHashMap<Long, QueryState>();
 
+  /**
+   * The queries whose results are being fetched ahead, least recently read
+   * first.  Guarded by itself.
+   */
+  private final LinkedHashMap<Long, QueryState> prefetchingQueries =
+      new LinkedHashMap<Long, QueryState>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, QueryState> eldest) {
+          if (size() > MAX_PREFETCHING_QUERIES) {
+            eldest.getValue().discardPrefetches();
+            return true;
+          }
+          return false;
+        }
+      };
+
   /**
    * A counter used to allocate local cursor ids.
    */
@@ -50,13 +123,44 @@ class RemoteDatastore {
    */
   private final AtomicLong nextTransactionId = new AtomicLong(1);
 
-  RemoteDatastore(RemoteRpc remoteRpc, RemoteApiOptions options) {
+  RemoteDatastore(RemoteRpc remoteRpc, RemoteApiOptions options,
+      ExecutorService prefetchExecutor) {
     this.remoteRpc = remoteRpc;
     this.options = options;
     this.remoteAppId = remoteRpc.getClient().getAppId();
+    this.prefetchExecutor = prefetchExecutor;
+    if (prefetchExecutor != null && options.getDatastoreWriteBehindBatchSize() > 0) {
+      this.writeBuffer = new WriteBehindBuffer(remoteRpc,
+          options.getDatastoreWriteBehindBatchSize(), options.getDatastoreWriteBehindDelayMillis());
+    } else {
+      this.writeBuffer = null;
+    }
+  }
+
+  /**
+   * Sends any writes buffered by write-behind.
+   */
+  void flushBufferedWrites() {
+    if (writeBuffer != null) {
+      writeBuffer.flush();
+    }
+  }
+
+  /**
+   * Sends any writes buffered by write-behind and stops sending them in the
+   * background.
+   */
+  void shutdown() {
+    if (writeBuffer != null) {
+      writeBuffer.shutdown();
+    }
   }
 
   byte[] handleDatastoreCall(String methodName, byte[] request) {
+    if (writeBuffer != null && !methodName.equals("Get") && !methodName.equals("Put")
+        && !methodName.equals("Delete")) {
+      writeBuffer.flush();
+    }
     if (methodName.equals("RunQuery")) {
       return handleRunQuery(request);
     } else if (methodName.equals("Next")) {
@@ -79,13 +183,33 @@ class RemoteDatastore {
   }
 
   private byte[] handleRunQuery(byte[] request) {
-    return runQuery(request, nextCursorId.getAndIncrement());
+    long localCursorId = nextCursorId.getAndIncrement();
+    if (prefetchExecutor != null && options.getDatastoreQueryShards() > 1) {
+      DatastorePb.Query query = new DatastorePb.Query();
+      query.mergeFrom(request);
+      if (isShardable(query)) {
+        rewriteQueryAppIds(query, remoteAppId);
+        LinkedList<Prefetch> shards = splitQuery(query, options.getDatastoreQueryShards());
+        if (shards.size() > 1) {
+          Prefetch firstShard = shards.removeFirst();
+          for (Prefetch shard : shards) {
+            shard.start();
+          }
+          return finishQuery(firstShard.getQuery(), firstShard.getCount(), firstShard.get(),
+              localCursorId, null, shards);
+        }
+      }
+    }
+    return runQuery(request, localCursorId, null);
   }
 
   /**
    * Runs the query and remembers the current position using the given cursor id.
+   *
+   * @param remainingShards the key ranges still to be queried after this
+   * one, or {@code null} if the query is not split
    */
-  private byte[] runQuery(byte[] request, long localCursorId) {
+  private byte[] runQuery(byte[] request, long localCursorId, LinkedList<Prefetch> remainingShards) {
 
     DatastorePb.Query query = new DatastorePb.Query();
     query.mergeFrom(request);
@@ -107,12 +231,52 @@ class RemoteDatastore {
 
     byte[] resultBytes = remoteRpc.call(DATASTORE_SERVICE, "RunQuery", "", query.toByteArray());
 
+    return finishQuery(request, query.getCount(), resultBytes, localCursorId, tx, remainingShards);
+  }
+
+  /**
+   * Turns the result of a remote query into the result returned locally,
+   * and remembers where to continue.  Outside of a transaction, starts
+   * fetching the next batch of results.
+   *
+   * @param request the query that was run
+   * @param count the number of results that was requested
+   * @param resultBytes the serialized result of the remote query
+   * @param tx the transaction the query was run in, or {@code null}
+   * @param remainingShards the key ranges still to be queried after this
+   * one, or {@code null} if the query is not split
+   */
+  private byte[] finishQuery(byte[] request, int count, byte[] resultBytes, long localCursorId,
+      TransactionBuilder tx, LinkedList<Prefetch> remainingShards) {
     DatastorePb.QueryResult result = new DatastorePb.QueryResult();
     result.mergeFrom(resultBytes);
+    QueryState queryState;
     if (result.isMoreResults() && result.hasCompiledCursor()) {
-      idToCursor.put(localCursorId, new QueryState(request, result.getCompiledCursor()));
+      queryState = new QueryState(request, result.getCompiledCursor(), remainingShards);
+      if (tx == null && prefetchExecutor != null && options.getDatastoreQueryPrefetch()) {
+        Prefetch nextBatch = new Prefetch(queryState.makeNextQuery(count).toByteArray(), count);
+        nextBatch.start();
+        queryState.setNextBatch(nextBatch);
+      }
+    } else if (remainingShards != null && !remainingShards.isEmpty()) {
+      queryState = new QueryState(null, null, remainingShards);
     } else {
-      idToCursor.put(localCursorId, QueryState.NO_MORE_RESULTS);
+      queryState = QueryState.NO_MORE_RESULTS;
+    }
+    idToCursor.put(localCursorId, queryState);
+    synchronized (prefetchingQueries) {
+      if (queryState.isPrefetching()) {
+        prefetchingQueries.put(localCursorId, queryState);
+      } else {
+        prefetchingQueries.remove(localCursorId);
+      }
+    }
+
+    if (remainingShards != null) {
+      result.clearCompiledCursor();
+      if (!remainingShards.isEmpty()) {
+        result.setMoreResults(true);
+      }
     }
 
     if (tx != null) {
@@ -127,6 +291,75 @@ class RemoteDatastore {
     return result.toByteArray();
   }
 
+  /**
+   * Returns true if {@code query} reads every entity of a kind in key order,
+   * and so can be split into key ranges.
+   */
+  private static boolean isShardable(DatastorePb.Query query) {
+    return query.hasKind() && query.filterSize() == 0 && query.orderSize() == 0
+        && !query.hasAncestor() && !query.hasTransaction() && !query.hasLimit()
+        && query.getOffset() == 0 && !query.hasCompiledCursor()
+        && !query.hasEndCompiledCursor() && !query.isCompile() && !query.hasSearchQuery();
+  }
+
+  /**
+   * Splits {@code query} into at most {@code numShards} queries over
+   * consecutive key ranges, using a sample of {@code __scatter__} keys as
+   * split points.  Returns a single query if there are too few entities to
+   * split.
+   */
+  private LinkedList<Prefetch> splitQuery(DatastorePb.Query query, int numShards) {
+    DatastorePb.Query scatterQuery = new DatastorePb.Query();
+    scatterQuery.setApp(query.getApp());
+    if (query.hasNameSpace()) {
+      scatterQuery.setNameSpace(query.getNameSpace());
+    }
+    scatterQuery.setKind(query.getKind());
+    scatterQuery.setKeysOnly(true);
+    scatterQuery.addOrder().setProperty(SCATTER_PROPERTY)
+        .setDirection(DatastorePb.Query.Order.Direction.ASCENDING);
+    int sampleSize = numShards * SCATTER_OVERSAMPLING_FACTOR;
+    scatterQuery.setLimit(sampleSize);
+    scatterQuery.setCount(sampleSize);
+
+    DatastorePb.QueryResult scatterResult = new DatastorePb.QueryResult();
+    scatterResult.mergeFrom(
+        remoteRpc.call(DATASTORE_SERVICE, "RunQuery", "", scatterQuery.toByteArray()));
+
+    List<OnestoreEntity.EntityProto> sample =
+        new ArrayList<OnestoreEntity.EntityProto>(scatterResult.results());
+    Collections.sort(sample, KEY_ORDER);
+
+    List<OnestoreEntity.Property> splitPoints = new ArrayList<OnestoreEntity.Property>();
+    for (int i = 1; i < numShards && !sample.isEmpty(); i++) {
+      OnestoreEntity.EntityProto splitEntity = sample.get(i * sample.size() / numShards);
+      OnestoreEntity.Property splitPoint = DataTypeTranslator.findIndexedPropertiesOnPb(
+          splitEntity, Entity.KEY_RESERVED_PROPERTY).iterator().next();
+      if (splitPoints.isEmpty() || !splitPoints.get(splitPoints.size() - 1).equals(splitPoint)) {
+        splitPoints.add(splitPoint);
+      }
+    }
+
+    int count = query.hasCount() ? query.getCount() : options.getDatastoreQueryFetchSize();
+    LinkedList<Prefetch> shards = new LinkedList<Prefetch>();
+    for (int i = 0; i <= splitPoints.size(); i++) {
+      DatastorePb.Query shard = new DatastorePb.Query();
+      shard.copyFrom(query);
+      shard.setCompile(true);
+      shard.setCount(count);
+      if (i > 0) {
+        shard.addFilter().setOp(DatastorePb.Query.Filter.Operator.GREATER_THAN_OR_EQUAL)
+            .addProperty(splitPoints.get(i - 1));
+      }
+      if (i < splitPoints.size()) {
+        shard.addFilter().setOp(DatastorePb.Query.Filter.Operator.LESS_THAN)
+            .addProperty(splitPoints.get(i));
+      }
+      shards.add(new Prefetch(shard.toByteArray(), count));
+    }
+    return shards;
+  }
+
   /**
    * Rewrite app ids in the Query pb.
    * @return if any app ids were rewritten
@@ -166,15 +399,34 @@ class RemoteDatastore {
       DatastorePb.QueryResult result = new DatastorePb.QueryResult();
       result.setMoreResults(false);
       return result.toByteArray();
-    } else {
-      return runQuery(queryState.makeNextQuery(nextRequest).toByteArray(), cursorId);
     }
+
+    LinkedList<Prefetch> remainingShards = queryState.getRemainingShards();
+    if (!queryState.hasMoreResultsInShard()) {
+      Prefetch shard;
+      synchronized (remainingShards) {
+        shard = remainingShards.removeFirst();
+      }
+      return finishQuery(shard.getQuery(), shard.getCount(), shard.get(), cursorId, null,
+          remainingShards);
+    }
+
+    Prefetch nextBatch = queryState.takeNextBatch();
+    if (nextBatch != null) {
+      if (!nextRequest.hasCount() || nextRequest.getCount() >= nextBatch.getCount()) {
+        return finishQuery(queryState.getQuery(), nextBatch.getCount(), nextBatch.get(),
+            cursorId, null, remainingShards);
+      }
+      nextBatch.cancel();
+    }
+    return runQuery(queryState.makeNextQuery(nextRequest).toByteArray(), cursorId,
+        remainingShards);
   }
 
   private byte[] handleBeginTransaction() {
 
     long txId = nextTransactionId.getAndIncrement();
-    idToTransaction.put(txId, new TransactionBuilder());
+    idToTransaction.put(txId, new TransactionBuilder(options.getMaxHttpRequestSize()));
 
     DatastorePb.Transaction tx = new DatastorePb.Transaction();
     tx.setHandle(txId);
@@ -188,7 +440,13 @@ class RemoteDatastore {
     request.setApp(remoteAppId);
     TransactionBuilder tx = removeTransactionBuilder("Commit", request);
 
-    remoteRpc.call(REMOTE_API_SERVICE, "Transaction", "", tx.makeCommitRequest().toByteArray());
+    byte[] commitRequest = tx.makeCommitRequest().toByteArray();
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("remote API: committing transaction " + request.getHandle() + " with "
+          + tx.getReadCount() + " reads, " + tx.getWriteCount() + " writes, "
+          + commitRequest.length + " bytes");
+    }
+    remoteRpc.call(REMOTE_API_SERVICE, "Transaction", "", commitRequest);
 
     return new DatastorePb.CommitResponse().toByteArray();
   }
@@ -211,6 +469,8 @@ class RemoteDatastore {
 
     if (request.hasTransaction()) {
       return handleGetForTransaction(request);
+    } else if (writeBuffer != null) {
+      return writeBuffer.get(request);
     } else {
       return remoteRpc.call(DATASTORE_SERVICE, "Get", "", requestBytes);
     }
@@ -222,7 +482,12 @@ class RemoteDatastore {
     boolean reserialize = rewritePutAppIds(request, remoteAppId);
     if (request.hasTransaction()) {
       return handlePutForTransaction(request);
+    } else if (writeBuffer != null && WriteBehindBuffer.canBuffer(request)) {
+      return writeBuffer.put(request);
     } else {
+      if (writeBuffer != null) {
+        writeBuffer.discard(request);
+      }
       if (reserialize) {
         requestBytes = request.toByteArray();
       }
@@ -264,7 +529,12 @@ class RemoteDatastore {
     }
     if (request.hasTransaction()) {
       return handleDeleteForTransaction(request);
+    } else if (writeBuffer != null && WriteBehindBuffer.canBuffer(request)) {
+      return writeBuffer.delete(request);
     } else {
+      if (writeBuffer != null) {
+        writeBuffer.discard(request);
+      }
       return remoteRpc.call(DATASTORE_SERVICE, "Delete", "", requestBytes);
     }
   }
@@ -289,41 +559,29 @@ class RemoteDatastore {
 
     DatastorePb.GetRequest subRequest = new DatastorePb.GetRequest();
     for (OnestoreEntity.Reference key : request.keys()) {
-      if (!tx.isCachedEntity(key)) {
-        subRequest.addKey(key);
-      }
+      subRequest.addKey(key);
     }
 
-    if (subRequest.keySize() > 0) {
-      byte[] subResponseBytes =
-          remoteRpc.call(RemoteDatastore.DATASTORE_SERVICE, "Get", "", subRequest.toByteArray());
+    byte[] subResponseBytes =
+        remoteRpc.call(RemoteDatastore.DATASTORE_SERVICE, "Get", "", subRequest.toByteArray());
 
-      DatastorePb.GetResponse subResponse = new DatastorePb.GetResponse();
-      subResponse.mergeFrom(subResponseBytes);
+    DatastorePb.GetResponse subResponse = new DatastorePb.GetResponse();
+    subResponse.mergeFrom(subResponseBytes);
 
-      Iterator<OnestoreEntity.Reference> keys = request.keys().iterator();
-      for (DatastorePb.GetResponse.Entity entityPb : subResponse.entitys()) {
-        OnestoreEntity.Reference key = keys.next();
-        if (entityPb.hasEntity()) {
-          tx.addEntityToCache(entityPb.getEntity());
-        } else {
-          tx.addEntityAbsenceToCache(key);
-        }
+    Iterator<OnestoreEntity.Reference> keys = request.keys().iterator();
+    for (DatastorePb.GetResponse.Entity entityPb : subResponse.entitys()) {
+      OnestoreEntity.Reference key = keys.next();
+      if (tx.isCachedEntity(key)) {
+        continue;
       }
-    }
-
-    DatastorePb.GetResponse mergedResponse = new DatastorePb.GetResponse();
-    for (OnestoreEntity.Reference key : request.keys()) {
-      OnestoreEntity.EntityProto entity = tx.getCachedEntity(key);
-
-      if (entity == null) {
-        mergedResponse.addEntity();
+      if (entityPb.hasEntity()) {
+        tx.addEntityToCache(entityPb.getEntity());
       } else {
-        mergedResponse.addEntity().setEntity(entity);
+        tx.addEntityAbsenceToCache(key);
       }
     }
 
-    return mergedResponse.toByteArray();
+    return subResponseBytes;
   }
 
   byte[] handlePutForTransaction(DatastorePb.PutRequest request) {
@@ -434,43 +692,215 @@ class RemoteDatastore {
     return "[" + pathString + "]";
   }
 
+  /**
+   * A remote query that may be run in the background.  Whichever of
+   * {@link #get()} and the background task claims it first runs it, so a
+   * caller never waits for a query that is still queued behind others.
+   */
+  private final class Prefetch implements Callable<byte[]> {
+    private final byte[] query;
+    private final int count;
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+    private volatile Future<byte[]> future;
+    private volatile boolean discarded;
+
+    /**
+     * @param query the serialized query to run
+     * @param count the number of results {@code query} requests
+     */
+    Prefetch(byte[] query, int count) {
+      this.query = query;
+      this.count = count;
+    }
+
+    byte[] getQuery() {
+      return query;
+    }
+
+    int getCount() {
+      return count;
+    }
+
+    /**
+     * Queues the query to run in the background.
+     */
+    void start() {
+      try {
+        future = prefetchExecutor.submit(this);
+      } catch (RejectedExecutionException e) {
+        logger.log(Level.FINE, "remote API call: not prefetching query results", e);
+      }
+    }
+
+    @Override
+    public byte[] call() {
+      if (!claimed.compareAndSet(false, true)) {
+        return null;
+      }
+      return remoteRpc.call(DATASTORE_SERVICE, "RunQuery", "", query);
+    }
+
+    /**
+     * Returns the serialized result of the query, running it on this thread
+     * if it has not started yet.
+     */
+    byte[] get() {
+      if (claimed.compareAndSet(false, true) || discarded) {
+        cancel();
+        return remoteRpc.call(DATASTORE_SERVICE, "RunQuery", "", query);
+      }
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteApiException("interrupted while waiting for prefetched results",
+            DATASTORE_SERVICE, "RunQuery", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RemoteApiException("prefetching results failed", DATASTORE_SERVICE,
+            "RunQuery", cause);
+      }
+    }
+
+    /**
+     * Discards the query, without running it if it has not started yet.
+     */
+    void cancel() {
+      claimed.set(true);
+      Future<byte[]> started = future;
+      if (started != null) {
+        started.cancel(false);
+      }
+    }
+
+    /**
+     * Drops the result of the background query, if any.  {@link #get()} then
+     * runs the query on the calling thread.
+     */
+    void discard() {
+      discarded = true;
+      cancel();
+      future = null;
+    }
+  }
+
   /**
    * The current state of a remote query, allowing us to continue from previous
    * location. (We need to keep this locally because each round trip can be
    * executed on a different instance.)
    */
   private static class QueryState {
-    private static final QueryState NO_MORE_RESULTS = new QueryState(null, null);
+    private static final QueryState NO_MORE_RESULTS = new QueryState(null, null, null);
 
     private final byte[] query;
     private final DatastorePb.CompiledCursor cursor;
+    private final LinkedList<Prefetch> remainingShards;
+    private Prefetch nextBatch;
 
     /**
      * Creates a QueryState that can continue fetching results from a given cursor.
-     * @param query  the query that was previously executed
+     * @param query  the query that was previously executed, or {@code null}
+     * if it has no more results
      * @param cursor  the cursor that was returned after the previous remote call
+     * @param remainingShards  the key ranges still to be queried after
+     * {@code query}, or {@code null} if the query is not split
      */
-    QueryState(byte[] query, DatastorePb.CompiledCursor cursor) {
+    QueryState(byte[] query, DatastorePb.CompiledCursor cursor,
+        LinkedList<Prefetch> remainingShards) {
       this.query = query;
       this.cursor = cursor;
+      this.remainingShards = remainingShards;
     }
 
     boolean hasMoreResults() {
+      return hasMoreResultsInShard() || hasMoreResultsInAnotherShard();
+    }
+
+    /**
+     * Returns true if results of this query are being fetched in the
+     * background.
+     */
+    synchronized boolean isPrefetching() {
+      return nextBatch != null || hasMoreResultsInAnotherShard();
+    }
+
+    private boolean hasMoreResultsInAnotherShard() {
+      if (remainingShards == null) {
+        return false;
+      }
+      synchronized (remainingShards) {
+        return !remainingShards.isEmpty();
+      }
+    }
+
+    /**
+     * Drops the results fetched in the background, which are fetched again
+     * if they are needed.
+     */
+    void discardPrefetches() {
+      Prefetch batch = takeNextBatch();
+      if (batch != null) {
+        batch.cancel();
+      }
+      if (remainingShards != null) {
+        synchronized (remainingShards) {
+          for (Prefetch shard : remainingShards) {
+            shard.discard();
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns true if the key range currently being read, or the whole query
+     * if it is not split, has more results.
+     */
+    boolean hasMoreResultsInShard() {
       return query != null;
     }
 
+    byte[] getQuery() {
+      return query;
+    }
+
+    LinkedList<Prefetch> getRemainingShards() {
+      return remainingShards;
+    }
+
+    synchronized void setNextBatch(Prefetch nextBatch) {
+      this.nextBatch = nextBatch;
+    }
+
+    /**
+     * Returns the next batch of results being fetched in the background, if
+     * any.  Each batch is returned only once.
+     */
+    synchronized Prefetch takeNextBatch() {
+      Prefetch result = nextBatch;
+      nextBatch = null;
+      return result;
+    }
+
     private DatastorePb.Query makeNextQuery(DatastorePb.NextRequest nextRequest) {
+      DatastorePb.Query result = makeNextQuery(nextRequest.hasCount() ? nextRequest.getCount() : 0);
+      if (!nextRequest.hasCount()) {
+        result.clearCount();
+      }
+      return result;
+    }
+
+    private DatastorePb.Query makeNextQuery(int count) {
       DatastorePb.Query result = new DatastorePb.Query();
       result.mergeFrom(query);
       result.setOffset(0);
       result.setCompiledCursor(cursor);
       result.setCompile(true);
-
-      if (nextRequest.hasCount()) {
-        result.setCount(nextRequest.getCount());
-      } else {
-        result.clearCount();
-      }
+      result.setCount(count);
       return result;
     }
   }
@@ -1,32 +1,70 @@
 // Copyright 2011 Google. All Rights Reserved.
 package com.google.appengine.tools.remoteapi;
 
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
 import org.apache.commons.httpclient.Cookie;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpContentTooLargeException;
 import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 /**
  * An {@link AppEngineClient} implementation that uses apache's
  * {@link HttpClient}.  This implementation must be used when the client is
  * not an App Engine container, since it cannot not rely on the availability of
  * the local urlfetch service.
+ * <p>
+ * Connections are kept alive and shared by all threads.  The pool holds one
+ * connection per concurrent request allowed by
+ * {@link RemoteApiOptions#getMaxConcurrentRequests()}, plus one for the
+ * thread making synchronous calls.
  *
  */
 class StandaloneAppEngineClient extends AppEngineClient {
+  /**
+   * How long a pooled connection may stay unused before it is closed.
+   * App Engine front ends drop idle connections after about a minute, and a
+   * request sent on a connection the server has dropped fails.
+   */
+  static final long IDLE_CONNECTION_TIMEOUT_MILLIS = 30 * 1000;
+
   private final HttpClient httpClient;
+  private final PoolingConnectionManager connectionManager;
+
+  /**
+   * The User-Agent sent with every request.  App Engine only compresses
+   * responses to clients whose User-Agent contains "gzip".
+   */
+  private final String userAgent;
 
   StandaloneAppEngineClient(RemoteApiOptions options, List<Cookie> authCookies, String appId) {
     super(options, authCookies, appId);
-    HttpClient httpClient = new HttpClient(new MultiThreadedHttpConnectionManager());
+    int maxConnections = Math.max(1, options.getMaxConcurrentRequests()) + 1;
+    connectionManager = new PoolingConnectionManager(IDLE_CONNECTION_TIMEOUT_MILLIS);
+    HttpConnectionManagerParams params = connectionManager.getParams();
+    params.setMaxTotalConnections(maxConnections);
+    params.setDefaultMaxConnectionsPerHost(maxConnections);
+    params.setTcpNoDelay(true);
+    HttpClient httpClient = new HttpClient(connectionManager);
     httpClient.getState().addCookies(getAuthCookies());
     this.httpClient = httpClient;
+    this.userAgent = httpClient.getParams().getParameter(HttpMethodParams.USER_AGENT) + " (gzip)";
   }
 
   @Override
@@ -51,15 +89,117 @@ class StandaloneAppEngineClient extends AppEngineClient {
     return createResponse(post);
   }
 
+  @Override
+  ConnectionPoolStats getConnectionPoolStats() {
+    return connectionManager.getStats();
+  }
+
+  @Override
+  void shutdown() {
+    connectionManager.shutdown();
+  }
+
   private void addHeaders(HttpMethodBase method, List<String[]> headers) {
     for (String[] headerPair : headers) {
       method.addRequestHeader(headerPair[0], headerPair[1]);
     }
+    method.setRequestHeader("User-Agent", userAgent);
+    method.setRequestHeader("Accept-Encoding", "gzip");
   }
 
   private Response createResponse(HttpMethodBase method) throws IOException {
-    byte[] body = method.getResponseBody(getMaxResponseSize());
+    byte[] body;
+    Header contentEncoding = method.getResponseHeader("Content-Encoding");
+    if (contentEncoding != null && "gzip".equalsIgnoreCase(contentEncoding.getValue())) {
+      body = readGzipBody(method);
+    } else {
+      body = method.getResponseBody(getMaxResponseSize());
+    }
     return new Response(method.getStatusCode(),
         body, method.getResponseCharSet());
   }
+
+  /**
+   * Reads and decompresses a gzip encoded response body.  The limit on the
+   * response size applies to the decompressed body.
+   */
+  private byte[] readGzipBody(HttpMethodBase method) throws IOException {
+    InputStream compressed = method.getResponseBodyAsStream();
+    if (compressed == null) {
+      return null;
+    }
+    int maxSize = getMaxResponseSize();
+    InputStream in = new GZIPInputStream(compressed);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+      byte[] buffer = new byte[4096];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        if (out.size() + count > maxSize) {
+          throw new HttpContentTooLargeException(
+              "Decompressed response is larger than " + maxSize + " bytes", maxSize);
+        }
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * A {@link MultiThreadedHttpConnectionManager} that closes idle
+   * connections and counts the time spent waiting for a connection.
+   */
+  private static class PoolingConnectionManager extends MultiThreadedHttpConnectionManager {
+    private final long idleTimeoutMillis;
+    private final AtomicInteger leasedConnections = new AtomicInteger();
+    private final AtomicLong connectionRequests = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong lastIdleCheckMillis = new AtomicLong(System.currentTimeMillis());
+
+    PoolingConnectionManager(long idleTimeoutMillis) {
+      this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    @Override
+    public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration,
+        long timeout) throws ConnectionPoolTimeoutException {
+      closeIdleConnectionsIfDue();
+      long start = System.nanoTime();
+      HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+      totalWaitNanos.addAndGet(System.nanoTime() - start);
+      connectionRequests.incrementAndGet();
+      leasedConnections.incrementAndGet();
+      return connection;
+    }
+
+    @Override
+    public void releaseConnection(HttpConnection connection) {
+      leasedConnections.decrementAndGet();
+      super.releaseConnection(connection);
+    }
+
+    /**
+     * Closes connections that have been idle for longer than the timeout.
+     * Checks at most once per half timeout, so that no background thread is
+     * needed.
+     */
+    private void closeIdleConnectionsIfDue() {
+      long now = System.currentTimeMillis();
+      long last = lastIdleCheckMillis.get();
+      if (now - last >= idleTimeoutMillis / 2 && lastIdleCheckMillis.compareAndSet(last, now)) {
+        closeIdleConnections(idleTimeoutMillis);
+      }
+    }
+
+    ConnectionPoolStats getStats() {
+      return new ConnectionPoolStats(
+          getParams().getMaxTotalConnections(),
+          getConnectionsInPool(),
+          leasedConnections.get(),
+          connectionRequests.get(),
+          totalWaitNanos.get() / 1000000);
+    }
+  }
 }
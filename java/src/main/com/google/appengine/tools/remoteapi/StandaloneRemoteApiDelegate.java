@@ -25,28 +25,43 @@ class StandaloneRemoteApiDelegate extends RemoteApiDelegate {
 
   private final ExecutorService executor;
   private final String currentUserEmail;
+  private final DatastoreCallCoalescer coalescer;
 
   public StandaloneRemoteApiDelegate(RemoteRpc rpc, RemoteApiOptions options) {
-    super(rpc, options);
+    this(rpc, options, Executors.newFixedThreadPool(options.getMaxConcurrentRequests()));
+  }
+
+  private StandaloneRemoteApiDelegate(RemoteRpc rpc, RemoteApiOptions options,
+      ExecutorService executor) {
+    super(rpc, options, executor);
     this.currentUserEmail = options.getUserEmail();
-    this.executor = Executors.newFixedThreadPool(options.getMaxConcurrentRequests());
+    this.executor = executor;
+    if (options.getDatastoreCallCoalescing()) {
+      this.coalescer = new DatastoreCallCoalescer(executor) {
+        @Override
+        byte[] call(String methodName, byte[] request) {
+          return makeDefaultSyncCall(null, RemoteDatastore.DATASTORE_SERVICE, methodName, request);
+        }
+      };
+    } else {
+      this.coalescer = null;
+    }
   }
 
   @Override
   public byte[] makeSyncCall(Environment env, String serviceName, String methodName,
       byte[] request) {
-    if (!env.getEmail().equals(currentUserEmail)) {
-      String message =
-          String.format("remote API call: user '%s' can't use client that's logged in as '%s'",
-              env.getEmail(), currentUserEmail);
-      throw new ApiProxyException(message);
-    }
+    checkUser(env);
     return makeDefaultSyncCall(env, serviceName, methodName, request);
   }
 
   @Override
   public Future<byte[]> makeAsyncCall(final Environment env, final String serviceName,
       final String methodName, final byte[] request, ApiConfig apiConfig) {
+    if (coalescer != null && DatastoreCallCoalescer.canCoalesce(serviceName, methodName, request)) {
+      checkUser(env);
+      return coalescer.submit(methodName, request);
+    }
     return executor.submit(new Callable<byte[]>() {
       @Override
       public byte[] call() throws Exception {
@@ -55,6 +70,15 @@ class StandaloneRemoteApiDelegate extends RemoteApiDelegate {
     });
   }
 
+  private void checkUser(Environment env) {
+    if (!env.getEmail().equals(currentUserEmail)) {
+      String message =
+          String.format("remote API call: user '%s' can't use client that's logged in as '%s'",
+              env.getEmail(), currentUserEmail);
+      throw new ApiProxyException(message);
+    }
+  }
+
   @Override
   public void log(Environment environment, ApiProxy.LogRecord record) {
     logger.log(toJavaLevel(record.getLevel()),
@@ -72,8 +96,12 @@ class StandaloneRemoteApiDelegate extends RemoteApiDelegate {
 
   @Override
   public void shutdown() {
-    if (executor != null) {
-      executor.shutdown();
+    try {
+      shutdownDatastore();
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
     }
   }
 
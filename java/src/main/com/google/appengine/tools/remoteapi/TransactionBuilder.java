@@ -11,30 +11,56 @@ import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.annotation.Nullable;
-
 /**
  * An in-progress transaction that will be sent via the remote API on commit.
+ * <p>
+ * Only what the commit needs is kept: a hash of each entity read, and the
+ * serialized form of each entity written.  The size of the commit request is
+ * tracked as the transaction proceeds, so a transaction too large to send
+ * fails on the call that makes it so, rather than at commit.
  */
 class TransactionBuilder {
 
   /**
-   * A map containing a copy of each entity that we retrieved from the
-   * datastore during this transaction. On commit, we will assert
+   * The encoding overhead allowed for each precondition, put or delete in the
+   * commit request, in addition to the size of its key, hash or entity.
+   */
+  static final int ITEM_OVERHEAD_BYTES = 16;
+
+  /**
+   * The length of the hash of an entity.
+   */
+  private static final int HASH_BYTES = 20;
+
+  private final int maxCommitRequestSize;
+
+  /**
+   * A map containing the SHA-1 hash of each entity that we retrieved from
+   * the datastore during this transaction. On commit, we will assert
    * that these entities haven't changed. If the value is null, the
    * datastore didn't return any entity for the given key, and we will
    * assert that the entity doesn't exist at commit time.
    */
-  private final Map<ByteString, OnestoreEntity.EntityProto> getCache =
-      new HashMap<ByteString, OnestoreEntity.EntityProto>();
+  private final Map<ByteString, byte[]> getCache = new HashMap<ByteString, byte[]>();
+
+  /**
+   * A map from an entity's key to the serialized entity that should be
+   * saved when this transaction commits. If the value is null, the entity
+   * should be deleted.
+   */
+  private final Map<ByteString, byte[]> updates = new HashMap<ByteString, byte[]>();
+
+  /**
+   * The estimated size of the commit request.
+   */
+  private long commitRequestSize = 0;
 
   /**
-   * A map from an entity's key to the entity that should be saved when
-   * this transaction commits. If the value is null, the entity should
-   * be deleted.
+   * @param maxCommitRequestSize the largest commit request that may be sent
    */
-  private final Map<ByteString, OnestoreEntity.EntityProto> updates =
-      new HashMap<ByteString, OnestoreEntity.EntityProto>();
+  TransactionBuilder(int maxCommitRequestSize) {
+    this.maxCommitRequestSize = maxCommitRequestSize;
+  }
 
   /**
    * Returns true if we've cached the presence or absence of this entity.
@@ -44,15 +70,16 @@ class TransactionBuilder {
   }
 
   /**
-   * Saves the original value of an entity (as returned by the datastore)
-   * to the local cache.
+   * Saves the hash of the original value of an entity (as returned by the
+   * datastore).
    */
   public void addEntityToCache(OnestoreEntity.EntityProto entityPb) {
     ByteString key = entityPb.getKey().toByteString();
     if (getCache.containsKey(key)) {
       throw new IllegalStateException("shouldn't load the same entity twice within a transaction");
     }
-    getCache.put(key, entityPb);
+    reserve(key.size() + HASH_BYTES + ITEM_OVERHEAD_BYTES);
+    getCache.put(key, computeSha1(entityPb));
   }
 
   /**
@@ -63,27 +90,42 @@ class TransactionBuilder {
     if (getCache.containsKey(keyBytes)) {
       throw new IllegalStateException("shouldn't load the same entity twice within a transaction");
     }
-    getCache.put(keyBytes, (OnestoreEntity.EntityProto) null);
+    reserve(keyBytes.size() + ITEM_OVERHEAD_BYTES);
+    getCache.put(keyBytes, null);
+  }
+
+  public void putEntityOnCommit(OnestoreEntity.EntityProto entity) {
+    ByteString key = entity.getKey().toByteString();
+    byte[] entityBytes = entity.toByteArray();
+    reserve(sizeOfUpdate(key, entityBytes) - sizeOfUpdate(key));
+    updates.put(key, entityBytes);
+  }
+
+  public void deleteEntityOnCommit(OnestoreEntity.Reference key) {
+    ByteString keyBytes = key.toByteString();
+    reserve(sizeOfUpdate(keyBytes, null) - sizeOfUpdate(keyBytes));
+    updates.put(keyBytes, null);
   }
 
   /**
-   * Returns a cached entity, or null if the entity's absence was cached.
+   * Returns the estimated size of the commit request, in bytes.
    */
-  @Nullable
-  public OnestoreEntity.EntityProto getCachedEntity(OnestoreEntity.Reference key) {
-    ByteString keyBytes = key.toByteString();
-    if (!getCache.containsKey(keyBytes)) {
-      throw new IllegalStateException("entity's status unexpectedly not in cache");
-    }
-    return getCache.get(keyBytes);
+  long getCommitRequestSize() {
+    return commitRequestSize;
   }
 
-  public void putEntityOnCommit(OnestoreEntity.EntityProto entity) {
-    updates.put(entity.getKey().toByteString(), entity);
+  /**
+   * Returns the number of entities read in this transaction.
+   */
+  int getReadCount() {
+    return getCache.size();
   }
 
-  public void deleteEntityOnCommit(OnestoreEntity.Reference key) {
-    updates.put(key.toByteString(), null);
+  /**
+   * Returns the number of entities put or deleted in this transaction.
+   */
+  int getWriteCount() {
+    return updates.size();
   }
 
   /**
@@ -91,24 +133,52 @@ class TransactionBuilder {
    */
   public RemoteApiPb.TransactionRequest makeCommitRequest() {
     RemoteApiPb.TransactionRequest result = new RemoteApiPb.TransactionRequest();
-    for (Map.Entry<ByteString, OnestoreEntity.EntityProto> entry : getCache.entrySet()) {
+    for (Map.Entry<ByteString, byte[]> entry : getCache.entrySet()) {
       if (entry.getValue() == null) {
         result.addPrecondition(makeEntityNotFoundPrecondition(entry.getKey()));
       } else {
-        result.addPrecondition(makeEqualEntityPrecondition(entry.getValue()));
+        result.addPrecondition(makeEqualEntityPrecondition(entry.getKey(), entry.getValue()));
       }
     }
-    for (Map.Entry<ByteString, OnestoreEntity.EntityProto> entry : updates.entrySet()) {
-      OnestoreEntity.EntityProto entityPb = entry.getValue();
-      if (entityPb == null) {
+    for (Map.Entry<ByteString, byte[]> entry : updates.entrySet()) {
+      byte[] entityBytes = entry.getValue();
+      if (entityBytes == null) {
         result.getMutableDeletes().addKey().mergeFrom(entry.getKey().toByteArray());
       } else {
-        result.getMutablePuts().addEntity(entityPb);
+        result.getMutablePuts().addEntity().mergeFrom(entityBytes);
       }
     }
     return result;
   }
 
+  /**
+   * Adds {@code bytes} to the size of the commit request.
+   *
+   * @throws RemoteApiException if the commit request would become too large
+   */
+  private void reserve(long bytes) {
+    if (commitRequestSize + bytes > maxCommitRequestSize) {
+      throw new RemoteApiException("transaction is too large: the commit request would exceed "
+          + maxCommitRequestSize + " bytes", RemoteDatastore.DATASTORE_SERVICE, "Commit", null);
+    }
+    commitRequestSize += bytes;
+  }
+
+  /**
+   * Returns the size of the current update to {@code key} in the commit
+   * request, or 0 if there is none.
+   */
+  private long sizeOfUpdate(ByteString key) {
+    if (!updates.containsKey(key)) {
+      return 0;
+    }
+    return sizeOfUpdate(key, updates.get(key));
+  }
+
+  private static long sizeOfUpdate(ByteString key, byte[] entityBytes) {
+    return (entityBytes == null ? key.size() : entityBytes.length) + ITEM_OVERHEAD_BYTES;
+  }
+
   private static RemoteApiPb.TransactionRequest.Precondition makeEntityNotFoundPrecondition(
       ByteString key) {
     OnestoreEntity.Reference ref = new OnestoreEntity.Reference();
@@ -121,11 +191,14 @@ class TransactionBuilder {
   }
 
   private static RemoteApiPb.TransactionRequest.Precondition makeEqualEntityPrecondition(
-      OnestoreEntity.EntityProto entityPb) {
+      ByteString key, byte[] hash) {
+    OnestoreEntity.Reference ref = new OnestoreEntity.Reference();
+    ref.mergeFrom(key.toByteArray());
+
     RemoteApiPb.TransactionRequest.Precondition result =
         new RemoteApiPb.TransactionRequest.Precondition();
-    result.setKey(entityPb.getKey());
-    result.setHashAsBytes(computeSha1(entityPb));
+    result.setKey(ref);
+    result.setHashAsBytes(hash);
     return result;
   }
 
@@ -0,0 +1,338 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.tools.remoteapi;
+
+import com.google.apphosting.api.DatastorePb;
+import com.google.protobuf.ByteString;
+import com.google.storage.onestore.v3.OnestoreEntity;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffers non-transactional datastore puts and deletes and sends them in
+ * groups.
+ * <p>
+ * Writes are held until {@code batchSize} of them (at most 500) are buffered, or the
+ * oldest has been buffered for {@code maxDelayMillis}, and are then sent in
+ * as few Put and Delete calls as the datastore allows.  Only the last write
+ * to each key is sent.  A Get for a buffered key is answered from the
+ * buffer.
+ * <p>
+ * A write is removed from the buffer only once the call carrying it has
+ * succeeded; writes in a failed call, and in calls not yet attempted, stay
+ * buffered and are sent again by the next flush.  A write that is sent in
+ * the background and fails cannot be reported to its caller.  The failure
+ * is logged and thrown by the next call to this buffer instead.
+ * <p>
+ * This class is thread-safe.
+ *
+ */
+class WriteBehindBuffer {
+  private static final Logger logger = Logger.getLogger(WriteBehindBuffer.class.getName());
+
+  /**
+   * The maximum number of keys or entities sent in one call.
+   */
+  static final int MAX_WRITES_PER_CALL = 500;
+
+  /**
+   * The maximum encoded size of the entities sent in one Put call.
+   */
+  static final int MAX_BYTES_PER_CALL = 1024 * 1024;
+
+  private final RemoteRpc remoteRpc;
+  private final int batchSize;
+  private final long maxDelayMillis;
+  private final ScheduledExecutorService timer;
+
+  /**
+   * The buffered writes, by key, in the order they were first written.  A
+   * null value is a delete.
+   */
+  private final Map<ByteString, OnestoreEntity.EntityProto> writes =
+      new LinkedHashMap<ByteString, OnestoreEntity.EntityProto>();
+
+  /**
+   * True if a timed flush has been scheduled for the current writes.
+   */
+  private boolean flushScheduled = false;
+
+  /**
+   * The failure of the last background flush, not yet reported.
+   */
+  private RuntimeException backgroundFailure;
+
+  WriteBehindBuffer(RemoteRpc remoteRpc, int batchSize, long maxDelayMillis) {
+    this.remoteRpc = remoteRpc;
+    this.batchSize = Math.max(1, Math.min(batchSize, MAX_WRITES_PER_CALL));
+    this.maxDelayMillis = maxDelayMillis;
+    this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "remote-api-write-behind");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Returns true if {@code request} can be buffered: it is not part of a
+   * transaction, has no options and every key in it is complete.
+   */
+  static boolean canBuffer(DatastorePb.PutRequest request) {
+    DatastorePb.PutRequest options = new DatastorePb.PutRequest();
+    options.copyFrom(request);
+    options.mutableEntitys().clear();
+    if (!options.equals(new DatastorePb.PutRequest())) {
+      return false;
+    }
+    for (OnestoreEntity.EntityProto entity : request.entitys()) {
+      OnestoreEntity.Path path = entity.getKey().getPath();
+      OnestoreEntity.Path.Element lastElement = path.elements().get(path.elementSize() - 1);
+      if (lastElement.getId() == 0 && !lastElement.hasName()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if {@code request} can be buffered: it is not part of a
+   * transaction and has no options.
+   */
+  static boolean canBuffer(DatastorePb.DeleteRequest request) {
+    DatastorePb.DeleteRequest options = new DatastorePb.DeleteRequest();
+    options.copyFrom(request);
+    options.mutableKeys().clear();
+    return options.equals(new DatastorePb.DeleteRequest());
+  }
+
+  /**
+   * Buffers the entities of a request accepted by {@link #canBuffer}.
+   *
+   * @return the response to the request
+   */
+  byte[] put(DatastorePb.PutRequest request) {
+    DatastorePb.PutResponse response = new DatastorePb.PutResponse();
+    synchronized (this) {
+      throwBackgroundFailure();
+      for (OnestoreEntity.EntityProto entity : request.entitys()) {
+        write(entity.getKey().toByteString(), entity);
+        response.addKey().copyFrom(entity.getKey());
+      }
+      flushIfFull();
+    }
+    return response.toByteArray();
+  }
+
+  /**
+   * Buffers the keys of a request accepted by {@link #canBuffer}.
+   *
+   * @return the response to the request
+   */
+  byte[] delete(DatastorePb.DeleteRequest request) {
+    synchronized (this) {
+      throwBackgroundFailure();
+      for (OnestoreEntity.Reference key : request.keys()) {
+        write(key.toByteString(), null);
+      }
+      flushIfFull();
+    }
+    return new DatastorePb.DeleteResponse().toByteArray();
+  }
+
+  /**
+   * Discards the buffered writes to the keys written by {@code request}, which
+   * is about to be sent directly and supersedes them.
+   */
+  synchronized void discard(DatastorePb.PutRequest request) {
+    throwBackgroundFailure();
+    for (OnestoreEntity.EntityProto entity : request.entitys()) {
+      writes.remove(entity.getKey().toByteString());
+    }
+  }
+
+  /**
+   * Discards the buffered writes to the keys deleted by {@code request}, which
+   * is about to be sent directly and supersedes them.
+   */
+  synchronized void discard(DatastorePb.DeleteRequest request) {
+    throwBackgroundFailure();
+    for (OnestoreEntity.Reference key : request.keys()) {
+      writes.remove(key.toByteString());
+    }
+  }
+
+  /**
+   * Handles a non-transactional Get, answering for buffered keys locally.
+   */
+  byte[] get(DatastorePb.GetRequest request) {
+    DatastorePb.GetResponse response = new DatastorePb.GetResponse();
+    DatastorePb.GetRequest remoteRequest = new DatastorePb.GetRequest();
+    remoteRequest.copyFrom(request);
+    remoteRequest.mutableKeys().clear();
+    boolean[] isRemote = new boolean[request.keySize()];
+    synchronized (this) {
+      throwBackgroundFailure();
+      int index = 0;
+      for (OnestoreEntity.Reference key : request.keys()) {
+        ByteString keyBytes = key.toByteString();
+        if (writes.containsKey(keyBytes)) {
+          OnestoreEntity.EntityProto entity = writes.get(keyBytes);
+          if (entity == null) {
+            response.addEntity();
+          } else {
+            response.addEntity().setEntity(entity);
+          }
+        } else {
+          response.addEntity();
+          remoteRequest.addKey().copyFrom(key);
+          isRemote[index] = true;
+        }
+        index++;
+      }
+    }
+
+    if (remoteRequest.keySize() == request.keySize()) {
+      return remoteRpc.call(RemoteDatastore.DATASTORE_SERVICE, "Get", "", request.toByteArray());
+    } else if (remoteRequest.keySize() == 0) {
+      return response.toByteArray();
+    }
+    DatastorePb.GetResponse remoteResponse = new DatastorePb.GetResponse();
+    remoteResponse.mergeFrom(remoteRpc.call(RemoteDatastore.DATASTORE_SERVICE, "Get", "",
+        remoteRequest.toByteArray()));
+    Iterator<DatastorePb.GetResponse.Entity> remoteEntities = remoteResponse.entitys().iterator();
+    Iterator<DatastorePb.GetResponse.Entity> entities = response.mutableEntitys().iterator();
+    for (boolean remote : isRemote) {
+      DatastorePb.GetResponse.Entity entity = entities.next();
+      if (remote) {
+        entity.copyFrom(remoteEntities.next());
+      }
+    }
+    return response.toByteArray();
+  }
+
+  /**
+   * Sends every buffered write, including those left buffered by an earlier
+   * failure.
+   *
+   * @throws RuntimeException if a write failed; the writes not yet sent stay
+   * buffered
+   */
+  synchronized void flush() {
+    backgroundFailure = null;
+    sendWrites();
+  }
+
+  /**
+   * Sends every buffered write and stops the background flushes.
+   */
+  void shutdown() {
+    try {
+      flush();
+    } finally {
+      timer.shutdown();
+    }
+  }
+
+  private void write(ByteString key, OnestoreEntity.EntityProto entity) {
+    writes.remove(key);
+    writes.put(key, entity);
+    if (!flushScheduled) {
+      flushScheduled = true;
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flushInBackground();
+        }
+      }, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void flushIfFull() {
+    if (writes.size() >= batchSize) {
+      sendWrites();
+    }
+  }
+
+  private synchronized void flushInBackground() {
+    flushScheduled = false;
+    try {
+      sendWrites();
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "remote API: sending buffered datastore writes failed", e);
+      if (backgroundFailure == null) {
+        backgroundFailure = e;
+      }
+    }
+  }
+
+  private void throwBackgroundFailure() {
+    RuntimeException failure = backgroundFailure;
+    if (failure != null) {
+      backgroundFailure = null;
+      throw failure;
+    }
+  }
+
+  /**
+   * Sends the buffered writes, in calls of at most {@code batchSize} keys or
+   * entities, removing each write once its call has succeeded.  If a call
+   * fails, its writes and those not sent yet stay buffered.
+   */
+  private void sendWrites() {
+    while (!writes.isEmpty()) {
+      DatastorePb.PutRequest put = new DatastorePb.PutRequest();
+      DatastorePb.DeleteRequest delete = new DatastorePb.DeleteRequest();
+      List<ByteString> putKeys = new ArrayList<ByteString>();
+      List<ByteString> deleteKeys = new ArrayList<ByteString>();
+      int putBytes = 0;
+      for (Map.Entry<ByteString, OnestoreEntity.EntityProto> write : writes.entrySet()) {
+        OnestoreEntity.EntityProto entity = write.getValue();
+        if (entity == null) {
+          if (delete.keySize() < batchSize) {
+            delete.addKey().mergeFrom(write.getKey().toByteArray());
+            deleteKeys.add(write.getKey());
+          }
+        } else {
+          int entityBytes = entity.encodingSize();
+          if (put.entitySize() < batchSize
+              && (put.entitySize() == 0 || putBytes + entityBytes <= MAX_BYTES_PER_CALL)) {
+            put.addEntity(entity);
+            putKeys.add(write.getKey());
+            putBytes += entityBytes;
+          }
+        }
+      }
+      if (put.entitySize() > 0) {
+        sendPut(put);
+        writes.keySet().removeAll(putKeys);
+      }
+      if (delete.keySize() > 0) {
+        sendDelete(delete);
+        writes.keySet().removeAll(deleteKeys);
+      }
+    }
+  }
+
+  private void sendPut(DatastorePb.PutRequest request) {
+    remoteRpc.call(RemoteDatastore.DATASTORE_SERVICE, "Put", "(" + request.entitySize() + ")",
+        request.toByteArray());
+  }
+
+  private void sendDelete(DatastorePb.DeleteRequest request) {
+    remoteRpc.call(RemoteDatastore.DATASTORE_SERVICE, "Delete", "(" + request.keySize() + ")",
+        request.toByteArray());
+  }
+}